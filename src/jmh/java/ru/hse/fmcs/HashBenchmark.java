@@ -0,0 +1,53 @@
+package ru.hse.fmcs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Compares SHA-1 and SHA-256 object ids on typical blob sizes (small sources up to multi-megabyte assets)
+// and the pooled hasher against looking up a new MessageDigest for every object.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+    @Param({"SHA1", "SHA256"})
+    GitHashService.ObjectFormat format;
+
+    @Param({"256", "4096", "65536", "1048576"})
+    int blobSize;
+
+    private GitHashService service;
+    private byte[] data;
+    private ByteBuffer directData;
+
+    @Setup
+    public void setUp() {
+        service = GitHashService.of(format);
+        data = new byte[blobSize];
+        new Random(42).nextBytes(data);
+        directData = ByteBuffer.allocateDirect(blobSize);
+        directData.put(data).flip();
+    }
+
+    @Benchmark
+    public String pooledDigest() {
+        return service.hash(data);
+    }
+
+    @Benchmark
+    public String directBuffer() {
+        directData.rewind();
+        return service.newHasher().update(directData).digestHex();
+    }
+
+    @Benchmark
+    public byte[] newDigestPerCall() throws Exception {
+        return MessageDigest.getInstance(format.algorithm).digest(data);
+    }
+}
@@ -0,0 +1,64 @@
+package ru.hse.fmcs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Counts objects reachable from the refs of a packed repository with and without reachability bitmaps.
+// Every commit changes one file, so a walk without bitmaps reads all commits and their root trees.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReachabilityBenchmark {
+    private static final int FILES = 50;
+
+    @Param({"200", "1000"})
+    int commits;
+
+    private Path dir;
+    private Repository repository;
+    private Set<String> tips;
+    private ReachabilityBitmaps bitmaps;
+
+    @Setup
+    public void setUp() throws IOException, GitException {
+        dir = Files.createTempDirectory("reachability");
+        repository = Repository.create(dir.toString());
+        for (int i = 0; i < commits; i++) {
+            String name = "file" + (i % FILES) + ".txt";
+            Files.writeString(dir.resolve(name), "version " + i);
+            GitIndex.getIndex(repository).addFiles(List.of(name));
+            repository.commit("commit " + i);
+        }
+        new GarbageCollector(repository, GarbageCollector.parseExpire("now")).gc();
+        tips = repository.getRefTips();
+        bitmaps = ReachabilityBitmaps.load(repository);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int walkWithBitmaps() throws GitException {
+        return bitmaps.reachableFrom(tips).total();
+    }
+
+    @Benchmark
+    public int walkWithoutBitmaps() throws GitException {
+        return ReachabilityBitmaps.walkWithoutBitmaps(repository, tips).total();
+    }
+}
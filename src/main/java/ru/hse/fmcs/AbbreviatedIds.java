@@ -0,0 +1,124 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Resolves abbreviated object ids and finds the shortest unambiguous abbreviation of an id. Packs are searched
+// in their sorted indexes, loose objects in a sorted set of the one fan-out directory the prefix selects, which
+// is listed once per command. Neither depends on how many objects are stored elsewhere.
+public class AbbreviatedIds {
+    public static final int MIN_LENGTH = 4;
+    public static final int DEFAULT_LENGTH = 7;
+
+    private final Repository repository;
+    private final Map<String, TreeSet<String>> looseByDir = new HashMap<>();
+
+    AbbreviatedIds(@NotNull Repository rep) {
+        repository = rep;
+    }
+
+    // hex string long enough to be taken for an abbreviated id
+    public boolean isAbbreviation(@NotNull String revision) {
+        if (revision.length() < MIN_LENGTH || revision.length() > repository.getObjectFormat().hexLength()) {
+            return false;
+        }
+        for (int i = 0; i < revision.length(); i++) {
+            if (Character.digit(revision.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the only object whose id starts with the prefix, null if there is none
+    public @Nullable String resolve(@NotNull String prefix) throws GitException {
+        List<String> matches = findMatches(prefix, 5);
+        if (matches.size() > 1) {
+            throw new GitException("Short object id " + prefix + " is ambiguous, candidates: " + String.join(", ", matches)
+                    + (matches.size() == 5 ? ", ..." : ""));
+        }
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    public @NotNull List<String> findMatches(@NotNull String prefix, int limit) throws GitException {
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        TreeSet<String> matches = new TreeSet<>();
+        for (String sha : getLooseDir(lower.substring(0, 2)).tailSet(lower)) {
+            if (!sha.startsWith(lower) || matches.size() >= limit) {
+                break;
+            }
+            matches.add(sha);
+        }
+        for (PackFile pack : repository.getPacks()) {
+            for (int i = pack.lowerBound(lower); i < pack.getObjectCount() && matches.size() < limit; i++) {
+                String sha = pack.getId(i);
+                if (!sha.startsWith(lower)) {
+                    break;
+                }
+                matches.add(sha);
+            }
+        }
+        return new ArrayList<>(matches);
+    }
+
+    // the shortest prefix of the id, but not shorter than minLength, that no other stored object shares
+    public @NotNull String abbreviate(@NotNull String sha, int minLength) throws GitException {
+        int common = 0;
+        TreeSet<String> loose = getLooseDir(sha.substring(0, 2));
+        common = Math.max(common, commonPrefix(sha, loose.lower(sha)));
+        common = Math.max(common, commonPrefix(sha, loose.higher(sha)));
+        for (PackFile pack : repository.getPacks()) {
+            int i = pack.lowerBound(sha);
+            if (i > 0) {
+                common = Math.max(common, commonPrefix(sha, pack.getId(i - 1)));
+            }
+            if (i < pack.getObjectCount() && pack.getId(i).equals(sha)) {
+                i++;
+            }
+            if (i < pack.getObjectCount()) {
+                common = Math.max(common, commonPrefix(sha, pack.getId(i)));
+            }
+        }
+        return sha.substring(0, Math.min(sha.length(), Math.max(minLength, common + 1)));
+    }
+
+    private static int commonPrefix(String sha, @Nullable String other) {
+        if (other == null) {
+            return 0;
+        }
+        int i = 0;
+        while (i < sha.length() && i < other.length() && sha.charAt(i) == other.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private TreeSet<String> getLooseDir(String dir) throws GitException {
+        TreeSet<String> ids = looseByDir.get(dir);
+        if (ids != null) {
+            return ids;
+        }
+        ids = new TreeSet<>();
+        Path dirPath = repository.getGitDir().resolve("objects").resolve(dir);
+        if (Files.isDirectory(dirPath)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath)) {
+                for (Path object : stream) {
+                    String name = object.getFileName().toString();
+                    if (!name.startsWith(LooseObjectWriter.TEMP_PREFIX)) {
+                        ids.add(dir + name);
+                    }
+                }
+            } catch (IOException e) {
+                throw new GitException("Error while listing objects in " + dir, e);
+            }
+        }
+        looseByDir.put(dir, ids);
+        return ids;
+    }
+}
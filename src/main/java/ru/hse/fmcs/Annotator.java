@@ -0,0 +1,159 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Attributes every line of a file to the commit that last changed it. History is walked from the starting
+// commit along first parents. A commit whose changed-path filter rules the path out, or whose tree entry for
+// the path has the same id as its parent's, is passed without reading the blob. Otherwise the version is diffed
+// only against its parent version and the lines that are kept are carried back. The walk stops once every line
+// is attributed, and leading lines are handed out as soon as their commit is known.
+public class Annotator {
+    private static final int BLOB_CACHE_SIZE = 16;
+
+    public interface LineConsumer {
+        void accept(int lineNumber, String commitSha, String line) throws GitException;
+    }
+
+    private final Repository repository;
+    private final String path;
+    private final Map<String, Integer> lineIds = new HashMap<>();
+    // versions of the file as interned line ids; reverted versions come back through it without decoding
+    private final Map<String, int[]> blobCache = new LinkedHashMap<>(BLOB_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > BLOB_CACHE_SIZE;
+        }
+    };
+
+    public Annotator(@NotNull Repository rep, @NotNull String filePath) {
+        repository = rep;
+        path = filePath;
+    }
+
+    public void annotate(@NotNull String startSha, @NotNull LineConsumer consumer) throws GitException {
+        Revisions revisions = repository.getRevisions();
+        String commitSha = startSha;
+        GitCommitObject commit = revisions.readCommit(commitSha);
+        String blobSha = getBlobSha(commit);
+        if (blobSha == null) {
+            throw new GitException("No file " + path + " in " + startSha);
+        }
+        String[] text = splitLines(ChunkedFiles.readContent(repository, blobSha));
+        int[] lines = intern(text);
+        blobCache.put(blobSha, lines);
+        String[] owners = new String[text.length];
+        // for every line of the version being looked at, the line of the final version it is, or -1
+        int[] toFinal = new int[lines.length];
+        for (int i = 0; i < toFinal.length; i++) {
+            toFinal[i] = i;
+        }
+        int remaining = lines.length;
+        int printed = 0;
+        while (remaining > 0) {
+            String parentSha = commit.getFirstParent();
+            GitCommitObject parent = parentSha == null ? null : revisions.readCommit(parentSha);
+            String parentBlobSha = null;
+            if (parent != null) {
+                // the path wasn't touched if the filter rules it out or the entry has the same id
+                boolean unchanged = !repository.getChangedPaths().mightHaveChanged(commitSha, path);
+                if (!unchanged) {
+                    parentBlobSha = getBlobSha(parent);
+                    unchanged = blobSha.equals(parentBlobSha);
+                }
+                if (unchanged) {
+                    commitSha = parentSha;
+                    commit = parent;
+                    continue;
+                }
+            }
+            if (parentBlobSha == null) {
+                // the file was created here, the remaining lines come from this commit
+                for (int finalLine : toFinal) {
+                    if (finalLine >= 0) {
+                        owners[finalLine] = commitSha;
+                    }
+                }
+                break;
+            }
+            int[] parentLines = getLines(parentBlobSha);
+            int[] matches = LineDiff.matchLines(parentLines, lines);
+            int[] parentToFinal = new int[parentLines.length];
+            Arrays.fill(parentToFinal, -1);
+            for (int i = 0; i < lines.length; i++) {
+                if (toFinal[i] < 0) {
+                    continue;
+                }
+                if (matches[i] >= 0) {
+                    parentToFinal[matches[i]] = toFinal[i];
+                } else {
+                    owners[toFinal[i]] = commitSha;
+                    remaining--;
+                }
+            }
+            printed = emit(owners, text, printed, consumer);
+            commitSha = parentSha;
+            commit = parent;
+            blobSha = parentBlobSha;
+            lines = parentLines;
+            toFinal = parentToFinal;
+        }
+        emit(owners, text, printed, consumer);
+    }
+
+    private int emit(String[] owners, String[] text, int from, LineConsumer consumer) throws GitException {
+        int line = from;
+        while (line < owners.length && owners[line] != null) {
+            consumer.accept(line + 1, owners[line], text[line]);
+            line++;
+        }
+        return line;
+    }
+
+    private @Nullable String getBlobSha(GitCommitObject commit) throws GitException {
+        GitTreeObject.TreeElement element = commit.getTree().lookup(path);
+        return element == null || element.type != GitObject.ObjectType.blob ? null : element.sha;
+    }
+
+    private int[] getLines(String blobSha) throws GitException {
+        int[] lines = blobCache.get(blobSha);
+        if (lines == null) {
+            lines = intern(splitLines(ChunkedFiles.readContent(repository, blobSha)));
+            blobCache.put(blobSha, lines);
+        }
+        return lines;
+    }
+
+    private int[] intern(String[] text) {
+        int[] ids = new int[text.length];
+        for (int i = 0; i < text.length; i++) {
+            Integer id = lineIds.putIfAbsent(text[i], lineIds.size());
+            ids[i] = id == null ? lineIds.size() - 1 : id;
+        }
+        return ids;
+    }
+
+    // a final newline doesn't start another line
+    private static String[] splitLines(byte[] content) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n') {
+                lines.add(new String(content, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        if (start < content.length) {
+            lines.add(new String(content, start, content.length - start, StandardCharsets.UTF_8));
+        }
+        return lines.toArray(new String[0]);
+    }
+}
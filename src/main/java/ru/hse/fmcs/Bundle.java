@@ -0,0 +1,418 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// History of some refs in one file, for moving it between repositories without a connection. A header names the
+// refs and the commits the receiving repository must already have, the objects follow as a pack:
+//   # v2 git bundle
+//   -<id> <subject>      prerequisite commit
+//   <id> <ref>
+//   <empty line>
+//   <pack>
+// create walks commits newest first from the refs and the bases together and stops once only history of the
+// bases is left, so an incremental bundle reads about as much as it carries. A new commit contributes the trees
+// and blobs that differ from its first parent's. unbundle reads the file once: every entry is inflated to get its
+// id and copied as it is into a new pack in the object store, then the refs are updated. Chunk manifests aren't
+// told by their content, so a bundle carrying some is a "# v3 git bundle" listing them as "@manifest=<id>"
+// capability lines after the signature.
+public class Bundle {
+    public static final String SIGNATURE = "# v2 git bundle";
+    public static final String SIGNATURE_V3 = "# v3 git bundle";
+    private static final String MANIFEST_CAPABILITY = "@manifest=";
+
+    public static class Result {
+        public final Map<String, String> refs = new LinkedHashMap<>();
+        public final List<String> prerequisites = new ArrayList<>();
+        public final List<String> manifests = new ArrayList<>();
+        public int commits;
+        public int objects;
+    }
+
+    // objects of a bundle in pack order, collected before the header that lists the manifests among them
+    private static class Contents {
+        final ObjectIdSet listed;
+        final List<String> objects = new ArrayList<>();
+
+        Contents(int rawLength) {
+            listed = new ObjectIdSet(rawLength);
+        }
+    }
+
+    // a commit waiting in the walk; ids of the bases' side are in the uninteresting set
+    private static class Pending {
+        final String sha;
+        final long timestamp;
+
+        Pending(String commitSha, long time) {
+            sha = commitSha;
+            timestamp = time;
+        }
+    }
+
+    private Bundle() {}
+
+    public static @NotNull Result create(@NotNull Repository repository, @NotNull Path file, @NotNull Map<String, String> refs,
+                                         @NotNull Collection<String> bases) throws GitException {
+        Result result = new Result();
+        result.refs.putAll(refs);
+        int rawLength = repository.getObjectFormat().rawLength;
+        ObjectIdSet uninteresting = new ObjectIdSet(rawLength);
+        List<String> commits = findNewCommits(repository, refs.values(), bases, uninteresting);
+
+        Contents contents = new Contents(rawLength);
+        // oldest first, so that a reader of the pack meets parents before their children
+        for (int i = commits.size() - 1; i >= 0; i--) {
+            String sha = commits.get(i);
+            GitCommitObject commit = readCommit(repository, sha);
+            String parentSha = commit.getFirstParent();
+            GitCommitObject parent = parentSha == null ? null : readCommit(repository, parentSha);
+            add(repository, contents, result, sha);
+            if ((parent == null || !commit.treeSha.equals(parent.treeSha)) && add(repository, contents, result, commit.treeSha)) {
+                addChanged(repository, contents, result, parent == null ? null : parent.getTree(), commit.getTree());
+            }
+        }
+
+        StringBuilder header = new StringBuilder(result.manifests.isEmpty() ? SIGNATURE : SIGNATURE_V3).append('\n');
+        for (String manifest : result.manifests) {
+            header.append(MANIFEST_CAPABILITY).append(manifest).append('\n');
+        }
+        // parents left out of the bundle, each listed once
+        Set<String> listed = new HashSet<>(commits);
+        for (String sha : commits) {
+            for (String parent : readCommit(repository, sha).parents) {
+                if (uninteresting.contains(parent) && listed.add(parent)) {
+                    result.prerequisites.add(parent);
+                    header.append('-').append(parent).append(' ').append(subject(readCommit(repository, parent)))
+                            .append('\n');
+                }
+            }
+        }
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            header.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+        }
+        header.append('\n');
+
+        try (PackWriter pack = new PackWriter(repository, file, header.toString().getBytes(StandardCharsets.UTF_8))) {
+            for (String sha : contents.objects) {
+                GitObject.RawObject object = GitObject.readRawObject(repository, sha);
+                pack.add(sha, object.header.type, object.payload);
+            }
+            pack.finishFile();
+        }
+        result.commits = commits.size();
+        result.objects = contents.objects.size();
+        return result;
+    }
+
+    // commits reachable from the tips but not from the bases, newest first. Both sides are walked together by
+    // commit time; ids reached from a base are marked uninteresting and the walk ends when nothing else is queued.
+    // A commit dated before its ancestors may be taken before a base reaches it, which only makes the bundle bigger.
+    // fast-export limits its walk the same way.
+    static List<String> findNewCommits(Repository repository, Collection<String> tips, Collection<String> bases,
+                                               ObjectIdSet uninteresting) throws GitException {
+        ObjectIdSet queued = new ObjectIdSet(repository.getObjectFormat().rawLength);
+        PriorityQueue<Pending> queue = new PriorityQueue<>(Comparator.comparingLong((Pending p) -> p.timestamp).reversed());
+        Set<String> interestingQueued = new HashSet<>();
+        for (String base : bases) {
+            uninteresting.add(base);
+            if (queued.add(base)) {
+                queue.add(new Pending(base, readCommit(repository, base).timestamp));
+            }
+        }
+        for (String tip : tips) {
+            if (queued.add(tip)) {
+                queue.add(new Pending(tip, readCommit(repository, tip).timestamp));
+                interestingQueued.add(tip);
+            }
+        }
+        List<String> commits = new ArrayList<>();
+        while (!interestingQueued.isEmpty()) {
+            Pending pending = queue.poll();
+            interestingQueued.remove(pending.sha);
+            boolean isNew = !uninteresting.contains(pending.sha);
+            if (isNew) {
+                commits.add(pending.sha);
+            }
+            for (String parent : readCommit(repository, pending.sha).parents) {
+                if (!isNew && uninteresting.add(parent)) {
+                    interestingQueued.remove(parent);
+                }
+                if (queued.add(parent)) {
+                    queue.add(new Pending(parent, readCommit(repository, parent).timestamp));
+                    if (isNew) {
+                        interestingQueued.add(parent);
+                    }
+                }
+            }
+        }
+        return commits;
+    }
+
+    // trees and blobs of the new tree that differ from the old one; equal subtrees are skipped without reading
+    private static void addChanged(Repository repository, Contents contents, Result result,
+                                   @Nullable GitTreeObject oldTree, GitTreeObject newTree) throws GitException {
+        GitTreeObject.Cursor oldCursor = oldTree == null ? null : oldTree.cursor();
+        GitTreeObject.Cursor newCursor = newTree.cursor();
+        boolean hasOld = oldCursor != null && oldCursor.next();
+        while (newCursor.next()) {
+            while (hasOld && oldCursor.compareNameTo(newCursor) < 0) {
+                hasOld = oldCursor.next();
+            }
+            boolean sameName = hasOld && oldCursor.compareNameTo(newCursor) == 0;
+            if (sameName && oldCursor.sameEntryAs(newCursor)) {
+                continue;
+            }
+            if (add(repository, contents, result, newCursor.getSha()) && newCursor.getType() == GitObject.ObjectType.tree) {
+                GitTreeObject oldSubtree = sameName && oldCursor.getType() == GitObject.ObjectType.tree
+                        ? oldCursor.readSubtree() : null;
+                addChanged(repository, contents, result, oldSubtree, newCursor.readSubtree());
+            }
+        }
+    }
+
+    // false if the object is already listed
+    private static boolean add(Repository repository, Contents contents, Result result, String sha) throws GitException {
+        if (!contents.listed.add(sha)) {
+            return false;
+        }
+        contents.objects.add(sha);
+        // chunks of a large file travel with its manifest
+        if (ChunkedFiles.isManifest(repository, sha)) {
+            result.manifests.add(sha);
+            for (String chunk : ChunkedFiles.getChunkIds(repository, sha)) {
+                add(repository, contents, result, chunk);
+            }
+        }
+        return true;
+    }
+
+    public static @NotNull Result unbundle(@NotNull Repository repository, @NotNull Path file) throws GitException {
+        Result result = new Result();
+        String checkedOutRef;
+        String checkedOutSha;
+        try (PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16),
+                1 << 16)) {
+            readHeader(repository, in, file, result);
+            checkedOutRef = repository.getHeadRef();
+            checkedOutSha = checkedOutRef == null ? null : repository.convertRevisionToSha(checkedOutRef);
+            // like git fetch, the branch in the working tree isn't moved under it, unless it has no commits yet
+            String incoming = checkedOutRef == null ? null : result.refs.get(checkedOutRef);
+            if (incoming != null && checkedOutSha != null && !incoming.equals(checkedOutSha)) {
+                throw new GitException("Refusing to update the checked-out branch " + checkedOutRef
+                        + ", check out another revision first");
+            }
+            for (String prerequisite : result.prerequisites) {
+                if (!repository.getKnownObjects().contains(prerequisite)) {
+                    throw new GitException("Repository lacks the prerequisite commit " + prerequisite);
+                }
+            }
+            try (PackWriter pack = new PackWriter(repository)) {
+                readPack(repository, in, file, pack, result);
+                List<String> listed = new ArrayList<>(result.refs.values());
+                listed.addAll(result.manifests);
+                for (String sha : listed) {
+                    if (!pack.contains(sha) && !repository.getKnownObjects().contains(sha)) {
+                        throw new GitException("Bundle " + file.getFileName() + " doesn't contain " + sha);
+                    }
+                }
+                if (pack.getObjectCount() > 0) {
+                    pack.finish();
+                    repository.reloadPacks();
+                }
+                // manifests are recorded once their chunks are stored, so gc keeps the chunks from then on
+                for (String manifest : result.manifests) {
+                    repository.addChunkManifest(manifest);
+                }
+                if (!result.manifests.isEmpty() && !ChunkedFiles.isEnabledIn(repository)) {
+                    repository.setConfigValue("extensions", "chunkedfiles", "true");
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while reading bundle " + file.getFileName(), e);
+        }
+        for (Map.Entry<String, String> ref : result.refs.entrySet()) {
+            repository.updateRef(ref.getKey(), ref.getValue(), "unbundle: " + file.getFileName());
+        }
+        if (checkedOutSha == null && checkedOutRef != null && result.refs.containsKey(checkedOutRef)) {
+            // the branch was born here, its files are checked out as a clone would do
+            repository.updateWorkDirToRevision(result.refs.get(checkedOutRef));
+        }
+        return result;
+    }
+
+    private static void readHeader(Repository repository, InputStream in, Path file, Result result)
+            throws IOException, GitException {
+        String signature = readLine(in);
+        if (!SIGNATURE.equals(signature) && !SIGNATURE_V3.equals(signature)) {
+            throw new GitException(file.getFileName() + " isn't a bundle");
+        }
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            if (SIGNATURE_V3.equals(signature) && line.startsWith("@")) {
+                if (!line.startsWith(MANIFEST_CAPABILITY)) {
+                    throw new GitException("Unsupported bundle capability: " + line);
+                }
+                String manifest = line.substring(MANIFEST_CAPABILITY.length());
+                if (!repository.isObjectId(manifest)) {
+                    throw new GitException("Bad object id in bundle header line: " + line);
+                }
+                result.manifests.add(manifest);
+                continue;
+            }
+            int space = line.indexOf(' ');
+            String sha = line.startsWith("-") ? line.substring(1, space < 0 ? line.length() : space)
+                    : line.substring(0, Math.max(space, 0));
+            if (!repository.isObjectId(sha)) {
+                throw new GitException("Bad object id in bundle header line: " + line);
+            }
+            if (line.startsWith("-")) {
+                result.prerequisites.add(sha);
+            } else if (space > 0 && Repository.isValidRefName(line.substring(space + 1))) {
+                result.refs.put(line.substring(space + 1), sha);
+            } else {
+                throw new GitException("Bad bundle header line: " + line);
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException, GitException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new GitException("Bundle header isn't terminated");
+            }
+            line.write(c);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // copies the entries of the pack into the writer, skipping known objects
+    private static void readPack(Repository repository, PushbackInputStream in, Path file, PackWriter pack,
+                                    Result result) throws IOException, GitException {
+        try (GitHashService.Hasher hasher = repository.getHashService().newHasher()) {
+            byte[] header = in.readNBytes(PackFile.PACK_HEADER_LENGTH);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            byte[] signature = new byte[4];
+            if (header.length == PackFile.PACK_HEADER_LENGTH) {
+                headerBuffer.get(signature);
+            }
+            if (!Arrays.equals(signature, PackFile.PACK_SIGNATURE) || headerBuffer.getInt() != PackFile.PACK_VERSION) {
+                throw new GitException("Bundle " + file.getFileName() + " doesn't contain a pack");
+            }
+            int count = headerBuffer.getInt();
+            hasher.update(header);
+            Inflater inflater = new Inflater();
+            byte[] input = new byte[1 << 16];
+            try {
+                for (int i = 0; i < count; i++) {
+                    ByteArrayOutputStream entry = new ByteArrayOutputStream();
+                    int b = readByte(in, file);
+                    entry.write(b);
+                    GitObject.ObjectType type = PackFile.typeOf((b >> 4) & 0x7);
+                    long size = b & 0x0f;
+                    int shift = 4;
+                    while ((b & 0x80) != 0) {
+                        b = readByte(in, file);
+                        entry.write(b);
+                        size |= (long) (b & 0x7f) << shift;
+                        shift += 7;
+                    }
+                    if (size > Integer.MAX_VALUE - 1) {
+                        throw new GitException("Object in bundle " + file.getFileName() + " is too big");
+                    }
+                    // one spare byte, so that the end of the stream is reached even for an empty object
+                    byte[] payload = new byte[(int) size + 1];
+                    int inflated = 0;
+                    int length = 0;
+                    inflater.reset();
+                    while (!inflater.finished()) {
+                        if (inflater.needsInput()) {
+                            entry.write(input, 0, length);
+                            length = in.read(input);
+                            if (length < 0) {
+                                throw new GitException("Bundle " + file.getFileName() + " is truncated");
+                            }
+                            inflater.setInput(input, 0, length);
+                        }
+                        inflated += inflater.inflate(payload, inflated, payload.length - inflated);
+                        if (inflated > size) {
+                            throw new GitException("Object in bundle " + file.getFileName() + " is bigger than its entry says");
+                        }
+                    }
+                    // what the stream didn't use belongs to the next entry
+                    int used = length - inflater.getRemaining();
+                    entry.write(input, 0, used);
+                    in.unread(input, used, length - used);
+                    if (inflated != size) {
+                        throw new GitException("Object in bundle " + file.getFileName() + " is smaller than its entry says");
+                    }
+                    byte[] entryBytes = entry.toByteArray();
+                    hasher.update(entryBytes);
+                    byte[] content = Arrays.copyOf(payload, (int) size);
+                    String sha = repository.getHashService().hashObject(type, content);
+                    result.objects++;
+                    if (type == GitObject.ObjectType.commit) {
+                        result.commits++;
+                    }
+                    if (pack.contains(sha) || repository.getKnownObjects().contains(sha)) {
+                        continue;
+                    }
+                    pack.addEntry(sha, entryBytes);
+                }
+            } catch (DataFormatException e) {
+                throw new GitException("Bundle " + file.getFileName() + " is corrupted", e);
+            } finally {
+                inflater.end();
+            }
+            byte[] trailer = in.readNBytes(repository.getObjectFormat().rawLength);
+            if (!Arrays.equals(trailer, hasher.digest())) {
+                throw new GitException("Checksum of the pack in bundle " + file.getFileName() + " doesn't match");
+            }
+        }
+    }
+
+    private static int readByte(InputStream in, Path file) throws IOException, GitException {
+        int b = in.read();
+        if (b < 0) {
+            throw new GitException("Bundle " + file.getFileName() + " is truncated");
+        }
+        return b;
+    }
+
+    private static GitCommitObject readCommit(Repository repository, String sha) throws GitException {
+        GitObject object = GitObject.readObject(repository, sha);
+        if (!(object instanceof GitCommitObject)) {
+            throw new GitException(sha + " isn't a commit");
+        }
+        return (GitCommitObject) object;
+    }
+
+    private static String subject(GitCommitObject commit) {
+        int end = commit.message.indexOf('\n');
+        return end < 0 ? commit.message : commit.message.substring(0, end);
+    }
+}
@@ -0,0 +1,195 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Bloom filters of the paths every commit changed against its first parent, so that path-limited log rules out
+// most commits without reading a tree. Changed files and all their parent directories go into the filter.
+// commit appends the filter of the new commit to objects/info/changed-paths, gc rewrites the file with the
+// filters of all reachable commits, computing the missing ones:
+//   <commit id, raw> <number of 64-bit words, int> <words>
+// A commit that changed more than MAX_PATHS paths gets an empty filter, which matches every path.
+public class ChangedPaths {
+    private static final int BITS_PER_PATH = 10;
+    private static final int HASH_FUNCTIONS = 7;
+    private static final int MAX_PATHS = 512;
+
+    private final Repository repository;
+    private Map<String, long[]> filters;    // read on the first lookup
+
+    ChangedPaths(@NotNull Repository rep) {
+        repository = rep;
+    }
+
+    public static @NotNull Path getPath(@NotNull Repository repository) {
+        return repository.getGitDir().resolve("objects").resolve("info").resolve("changed-paths");
+    }
+
+    // false only if the commit certainly didn't change the path; a commit without a filter may have
+    public boolean mightHaveChanged(@NotNull String commitSha, @NotNull String path) throws GitException {
+        long[] filter = getFilters().get(commitSha);
+        if (filter == null || filter.length == 0) {
+            return true;
+        }
+        long h1 = hash(path);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = Math.floorMod(h1 + i * h2, filter.length * 64L);
+            if ((filter[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void record(@NotNull String commitSha, @Nullable GitTreeObject parentTree, @NotNull GitTreeObject tree)
+            throws GitException {
+        long[] filter = computeFilter(parentTree, tree);
+        try {
+            Files.createDirectories(getPath(repository).getParent());
+            // one write per record, so concurrent commits don't interleave
+            Files.write(getPath(repository), encode(Map.of(commitSha, filter)),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new GitException("Error while writing changed-path filter", e);
+        }
+        if (filters != null) {
+            filters.put(commitSha, filter);
+        }
+    }
+
+    // keeps the filters of the given commits, computes the missing ones and drops the rest; returns how many were computed
+    public int rewrite(@NotNull Collection<String> commits) throws GitException {
+        Map<String, long[]> existing = getFilters();
+        Map<String, long[]> kept = new TreeMap<>();
+        int computed = 0;
+        for (String sha : commits) {
+            long[] filter = existing.get(sha);
+            if (filter == null) {
+                GitCommitObject commit = (GitCommitObject) GitObject.readObject(repository, sha);
+                String parent = commit.getFirstParent();
+                GitTreeObject parentTree = parent == null ? null
+                        : ((GitCommitObject) GitObject.readObject(repository, parent)).getTree();
+                filter = computeFilter(parentTree, commit.getTree());
+                computed++;
+            }
+            kept.put(sha, filter);
+        }
+        Path path = getPath(repository);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(temp, encode(kept));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new GitException("Error while writing changed-path filters", e);
+        }
+        filters = new HashMap<>(kept);
+        return computed;
+    }
+
+    private static long[] computeFilter(@Nullable GitTreeObject parentTree, @NotNull GitTreeObject tree) throws GitException {
+        Set<String> paths = new HashSet<>();
+        GitTreeObject.diff(parentTree, tree, "", (path, oldSha, newSha) -> {
+            // parent directories are added until one is already there
+            String p = path;
+            while (p != null && paths.add(p)) {
+                p = parentOf(p);
+            }
+        });
+        if (paths.size() > MAX_PATHS) {
+            return new long[0];
+        }
+        long[] filter = new long[Math.max(1, (paths.size() * BITS_PER_PATH + 63) / 64)];
+        for (String path : paths) {
+            long h1 = hash(path);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                long bit = Math.floorMod(h1 + i * h2, filter.length * 64L);
+                filter[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+        return filter;
+    }
+
+    private static @Nullable String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? null : path.substring(0, slash);
+    }
+
+    // FNV-1a over the UTF-8 bytes, the second hash function is derived from it
+    private static long hash(String path) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private byte[] encode(Map<String, long[]> records) throws GitException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (Map.Entry<String, long[]> record : records.entrySet()) {
+                out.write(Hex.decodeHex(record.getKey().toCharArray()));
+                out.writeInt(record.getValue().length);
+                for (long word : record.getValue()) {
+                    out.writeLong(word);
+                }
+            }
+        } catch (IOException | DecoderException e) {
+            throw new GitException("Error while encoding changed-path filters", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private Map<String, long[]> getFilters() throws GitException {
+        if (filters != null) {
+            return filters;
+        }
+        filters = new HashMap<>();
+        Path path = getPath(repository);
+        if (!Files.exists(path)) {
+            return filters;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new GitException("Error while reading changed-path filters", e);
+        }
+        byte[] rawId = new byte[repository.getObjectFormat().rawLength];
+        try {
+            while (buffer.hasRemaining()) {
+                buffer.get(rawId);
+                long[] filter = new long[buffer.getInt()];
+                for (int i = 0; i < filter.length; i++) {
+                    filter[i] = buffer.getLong();
+                }
+                filters.put(Hex.encodeHexString(rawId), filter);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            // a record cut short by an interrupted append; the commit is checked without a filter
+        }
+        return filters;
+    }
+}
@@ -0,0 +1,281 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Large-file mode: files over largefiles.threshold bytes or matching a glob from largefiles.patterns are cut into
+// content-defined chunks (FastCDC: gear rolling hash with a stricter mask before the average size and a looser one
+// after it), so an edit moves only the chunk boundaries around it. Every chunk is stored as a blob and the file as
+// a manifest blob that the index and trees point to:
+//   "vcs chunked file\n" "size <total>\n" then "<chunk id> <length>\n" for every chunk in order
+// Unchanged chunks of a new version are already known to the object writer and aren't written again. Once a
+// manifest is stored, extensions.chunkedfiles is set and gc, bitmaps and fsck follow manifests to their chunks.
+// Stored manifests are listed in git/chunked-manifests: a blob is never taken for a manifest by its content, since
+// an ordinary file may start the same way.
+public class ChunkedFiles {
+    private static final byte[] MANIFEST_MAGIC = "vcs chunked file\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int DEFAULT_AVERAGE_SIZE = 64 * 1024;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6765617254616231L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public static class Chunk {
+        public final String sha;
+        public final int length;
+
+        Chunk(String id, int chunkLength) {
+            sha = id;
+            length = chunkLength;
+        }
+    }
+
+    private final Repository repository;
+    private final long threshold;
+    private final List<PathMatcher> nameMatchers = new ArrayList<>();
+    private final List<PathMatcher> pathMatchers = new ArrayList<>();
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    private ChunkedFiles(Repository rep, long sizeThreshold, List<String> patterns, int average) {
+        repository = rep;
+        threshold = sizeThreshold;
+        for (String pattern : patterns) {
+            // patterns without a slash match the file name in any directory, as in .gitignore
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            (pattern.contains("/") ? pathMatchers : nameMatchers).add(matcher);
+        }
+        averageSize = average;
+        minSize = average / 4;
+        maxSize = average * 8;
+        int bits = 63 - Long.numberOfLeadingZeros(average);
+        // the top bits of the gear hash depend on the last 64 bytes, low bits only on the last few
+        maskSmall = -1L << (64 - (bits + 2));
+        maskLarge = -1L << (64 - (bits - 2));
+    }
+
+    // null if large-file mode isn't configured; Repository.getChunkedFiles keeps the result
+    public static @Nullable ChunkedFiles load(@NotNull Repository repository) throws GitException {
+        String thresholdValue = repository.getConfigValue("largefiles", "threshold");
+        String patternsValue = repository.getConfigValue("largefiles", "patterns");
+        if (thresholdValue == null && patternsValue == null) {
+            return null;
+        }
+        long threshold = Long.MAX_VALUE;
+        if (thresholdValue != null) {
+            try {
+                threshold = Long.parseLong(thresholdValue.trim());
+            } catch (NumberFormatException e) {
+                throw new GitException("Bad numeric config value '" + thresholdValue + "' for largefiles.threshold");
+            }
+        }
+        List<String> patterns = new ArrayList<>();
+        if (patternsValue != null) {
+            for (String pattern : patternsValue.split(",")) {
+                if (!pattern.isBlank()) {
+                    patterns.add(pattern.trim());
+                }
+            }
+        }
+        int average = repository.getConfigInt("largefiles", "chunksize", DEFAULT_AVERAGE_SIZE);
+        if (average < 256 || Integer.bitCount(average) != 1 || average > (1 << 24)) {
+            throw new GitException("largefiles.chunksize must be a power of two between 256 and 16777216");
+        }
+        return new ChunkedFiles(repository, threshold, patterns, average);
+    }
+
+    // whether manifests may exist, so that their chunks have to be treated as reachable
+    public static boolean isEnabledIn(@NotNull Repository repository) throws GitException {
+        return repository.getConfigBoolean("extensions", "chunkedfiles", false);
+    }
+
+    public boolean applies(@NotNull String relativePath, long size) {
+        if (size >= threshold) {
+            return true;
+        }
+        Path path = Path.of(relativePath);
+        for (PathMatcher matcher : pathMatchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        Path name = path.getFileName();
+        for (PathMatcher matcher : nameMatchers) {
+            if (name != null && matcher.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // writes the chunks that aren't stored yet and the manifest; the manifest blob is returned
+    public @NotNull GitBlobObject store(@NotNull Path file) throws GitException {
+        if (!isEnabledIn(repository)) {
+            repository.setConfigValue("extensions", "chunkedfiles", "true");
+        }
+        GitBlobObject manifest = chunk(file, true);
+        repository.addChunkManifest(GitObject.writeObject(manifest));
+        return manifest;
+    }
+
+    // id the file would get from store, nothing is written
+    public @NotNull String hash(@NotNull Path file) throws GitException {
+        return GitObject.getObjectHash(chunk(file, false));
+    }
+
+    private GitBlobObject chunk(Path file, boolean write) throws GitException {
+        StringBuilder lines = new StringBuilder();
+        long total = 0;
+        byte[] buffer = new byte[maxSize * 2];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        try (InputStream in = Files.newInputStream(file)) {
+            while (true) {
+                if (!eof && end - start < maxSize) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int read = in.readNBytes(buffer, end, buffer.length - end);
+                    eof = read < buffer.length - end;
+                    end += read;
+                }
+                if (start == end) {
+                    break;
+                }
+                int length = cut(buffer, start, end - start);
+                GitBlobObject chunk = new GitBlobObject(repository, Arrays.copyOfRange(buffer, start, start + length));
+                String sha = write ? GitObject.writeObject(chunk) : GitObject.getObjectHash(chunk);
+                lines.append(sha).append(' ').append(length).append('\n');
+                total += length;
+                start += length;
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while reading " + file, e);
+        }
+        String header = new String(MANIFEST_MAGIC, StandardCharsets.US_ASCII) + "size " + total + "\n";
+        return new GitBlobObject(repository, (header + lines).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // length of the chunk starting at offset; data up to the minimum size is skipped without hashing
+    private int cut(byte[] data, int offset, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int limit = Math.min(available, maxSize);
+        int normal = Math.min(averageSize, limit);
+        long fingerprint = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+            if ((fingerprint & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+            if ((fingerprint & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    public static boolean isManifest(@NotNull Repository repository, @NotNull String blobSha) throws GitException {
+        return repository.isChunkManifest(blobSha);
+    }
+
+    public static @NotNull List<Chunk> parseManifest(byte[] payload) throws GitException {
+        String[] lines = new String(payload, StandardCharsets.US_ASCII).split("\n");
+        if (lines.length < 2 || !(lines[0] + "\n").equals(new String(MANIFEST_MAGIC, StandardCharsets.US_ASCII))
+                || !lines[1].startsWith("size ")) {
+            throw new GitException("Corrupted chunk manifest");
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        long total = 0;
+        try {
+            for (int i = 2; i < lines.length; i++) {
+                int space = lines[i].indexOf(' ');
+                Chunk chunk = new Chunk(lines[i].substring(0, space), Integer.parseInt(lines[i].substring(space + 1)));
+                chunks.add(chunk);
+                total += chunk.length;
+            }
+            if (total != Long.parseLong(lines[1].substring("size ".length()))) {
+                throw new GitException("Chunk manifest size doesn't match its chunks");
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new GitException("Corrupted chunk manifest", e);
+        }
+        return chunks;
+    }
+
+    // chunks of the blob if it is a manifest, other blobs aren't read
+    public static @NotNull List<String> getChunkIds(@NotNull Repository repository, @NotNull String blobSha) throws GitException {
+        if (!isManifest(repository, blobSha)) {
+            return List.of();
+        }
+        List<String> ids = new ArrayList<>();
+        for (Chunk chunk : parseManifest(GitObject.readRawObject(repository, blobSha).payload)) {
+            ids.add(chunk.sha);
+        }
+        return ids;
+    }
+
+    // content of a blob in memory, a manifest is reassembled from its chunks
+    public static byte[] readContent(@NotNull Repository repository, @NotNull String blobSha) throws GitException {
+        byte[] payload = GitObject.readRawObject(repository, blobSha).payload;
+        if (!isManifest(repository, blobSha)) {
+            return payload;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Chunk chunk : parseManifest(payload)) {
+            out.writeBytes(GitObject.readRawObject(repository, chunk.sha).payload);
+        }
+        return out.toByteArray();
+    }
+
+    // writes the content of a blob to the file; a manifest is reassembled one chunk at a time
+    public static void writeContent(@NotNull Repository repository, @NotNull String blobSha, @NotNull Path target) throws GitException {
+        GitObject.RawObject raw = GitObject.readRawObject(repository, blobSha);
+        try {
+            Files.createDirectories(target.getParent());
+            if (!isManifest(repository, blobSha)) {
+                Files.write(target, raw.payload);
+                return;
+            }
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+                for (Chunk chunk : parseManifest(raw.payload)) {
+                    byte[] data = GitObject.readRawObject(repository, chunk.sha).payload;
+                    if (data.length != chunk.length) {
+                        throw new GitException("Chunk " + chunk.sha + " of " + blobSha + " has a wrong length");
+                    }
+                    out.write(data);
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while writing " + target, e);
+        }
+    }
+}
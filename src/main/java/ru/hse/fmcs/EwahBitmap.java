@@ -0,0 +1,103 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Word-aligned hybrid (EWAH) compression of a bitmap. The 64-bit words are grouped into runs of clean words
+// (all zeros or all ones) followed by literal words copied as they are. Every group starts with a marker word:
+//   bit 0 -- bit of the clean words, bits 1..32 -- number of clean words, bits 33..63 -- number of literal words
+// Reachability bitmaps are mostly long runs, so they shrink to a few words. They are decoded to a BitSet to be combined.
+public final class EwahBitmap {
+    private static final long MAX_RUN = (1L << 32) - 1;
+    private static final long MAX_LITERALS = (1L << 31) - 1;
+
+    private EwahBitmap() {}
+
+    public static long[] encode(@NotNull BitSet bits) {
+        long[] words = bits.toLongArray();
+        List<Long> out = new ArrayList<>();
+        int i = 0;
+        while (i < words.length) {
+            boolean runBit = words[i] == -1L;
+            long cleanWord = runBit ? -1L : 0L;
+            long run = 0;
+            while (i < words.length && words[i] == cleanWord && run < MAX_RUN) {
+                run++;
+                i++;
+            }
+            int literalsStart = i;
+            while (i < words.length && words[i] != 0L && words[i] != -1L && i - literalsStart < MAX_LITERALS) {
+                i++;
+            }
+            out.add((runBit ? 1L : 0L) | run << 1 | (long) (i - literalsStart) << 33);
+            for (int j = literalsStart; j < i; j++) {
+                out.add(words[j]);
+            }
+        }
+        long[] encoded = new long[out.size()];
+        for (int j = 0; j < encoded.length; j++) {
+            encoded[j] = out.get(j);
+        }
+        return encoded;
+    }
+
+    public static @NotNull BitSet decode(long[] encoded) throws GitException {
+        int length = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            long literals = encoded[i] >>> 33;
+            length += runLength(encoded[i]) + literals;
+            i += literals;
+        }
+        long[] words = new long[length];
+        int position = 0;
+        int i = 0;
+        while (i < encoded.length) {
+            long marker = encoded[i++];
+            long run = runLength(marker);
+            long literals = marker >>> 33;
+            if (i + literals > encoded.length) {
+                throw new GitException("Corrupted bitmap");
+            }
+            if ((marker & 1) != 0) {
+                for (long j = 0; j < run; j++) {
+                    words[position + (int) j] = -1L;
+                }
+            }
+            position += run;
+            for (long j = 0; j < literals; j++) {
+                words[position++] = encoded[i++];
+            }
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private static long runLength(long marker) {
+        return (marker >>> 1) & MAX_RUN;
+    }
+
+    public static void write(@NotNull DataOutput out, @NotNull BitSet bits) throws IOException {
+        long[] encoded = encode(bits);
+        out.writeInt(encoded.length);
+        for (long word : encoded) {
+            out.writeLong(word);
+        }
+    }
+
+    public static @NotNull BitSet read(@NotNull DataInput in) throws IOException, GitException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new GitException("Corrupted bitmap");
+        }
+        long[] encoded = new long[length];
+        for (int i = 0; i < length; i++) {
+            encoded[i] = in.readLong();
+        }
+        return decode(encoded);
+    }
+}
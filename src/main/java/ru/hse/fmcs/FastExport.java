@@ -0,0 +1,204 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Writes history as a fast-import stream that FastImport reads back. Commits are written parents first: a
+// depth-first walk from the tip keeps only the ids of the commits on its current path and writes a commit as soon
+// as all its parents are written. Files of a commit are the differences between its tree and its first parent's,
+// found by the tree diff that skips equal subtrees. A blob is written right before the first commit that needs
+// it. Written blobs and commits are remembered in an ObjectIdSet, whose numbers are the marks. With excluded
+// commits the walk is limited to the commits Bundle.findNewCommits finds, walking by commit time from the tip and
+// the excluded commits together, so the excluded history is read only as far as it meets the exported one.
+public class FastExport {
+    public static class Result {
+        public int blobs;
+        public int commits;
+    }
+
+    // a commit on the path of the walk and the next of its parents to visit
+    private static class Frame {
+        final String sha;
+        final List<String> parents;
+        int next;
+
+        Frame(String commitSha, List<String> parentShas) {
+            sha = commitSha;
+            parents = parentShas;
+        }
+    }
+
+    private final Repository repository;
+    private final OutputStream out;
+    private final ObjectIdSet written;
+    private final List<String> bases = new ArrayList<>();
+    private final Result result = new Result();
+
+    public FastExport(@NotNull Repository rep, @NotNull OutputStream output) {
+        repository = rep;
+        out = output;
+        written = new ObjectIdSet(rep.getObjectFormat().rawLength);
+    }
+
+    // the commit and its ancestors aren't written, commits on top of them refer to them by id
+    public void exclude(@NotNull String commitSha) {
+        bases.add(commitSha);
+    }
+
+    // writes the commits of the ref that aren't written or excluded yet and points the ref to its tip
+    public void export(@NotNull String refName, @NotNull String tipSha) throws GitException {
+        // null when nothing is excluded: then every commit that isn't written yet is new
+        Set<String> newCommits = null;
+        if (!bases.isEmpty()) {
+            newCommits = new HashSet<>(Bundle.findNewCommits(repository, List.of(tipSha), bases,
+                    new ObjectIdSet(repository.getObjectFormat().rawLength)));
+            if (!written.contains(tipSha) && !newCommits.contains(tipSha)) {
+                return;
+            }
+        }
+        Deque<Frame> path = new ArrayDeque<>();
+        if (!written.contains(tipSha)) {
+            path.push(new Frame(tipSha, readCommit(tipSha).parents));
+        }
+        while (!path.isEmpty()) {
+            Frame frame = path.peek();
+            if (frame.next < frame.parents.size()) {
+                String parent = frame.parents.get(frame.next++);
+                if (!written.contains(parent) && (newCommits == null || newCommits.contains(parent))) {
+                    path.push(new Frame(parent, readCommit(parent).parents));
+                }
+            } else {
+                path.pop();
+                // the commit is read again rather than kept on the path with its message
+                writeCommit(refName, frame.sha, readCommit(frame.sha));
+            }
+        }
+        write("reset " + refName + "\nfrom :" + mark(tipSha) + "\n\n");
+        flush();
+        // the history of the tip is written or excluded now, later refs stop their walks at it
+        bases.add(tipSha);
+    }
+
+    public @NotNull Result finish() throws GitException {
+        write("done\n");
+        flush();
+        return result;
+    }
+
+    private void writeCommit(String refName, String sha, GitCommitObject commit) throws GitException {
+        String firstParent = commit.getFirstParent();
+        GitTreeObject parentTree = firstParent == null ? null : readCommit(firstParent).getTree();
+        StringBuilder changes = new StringBuilder();
+        GitTreeObject.diff(parentTree, commit.getTree(), "", (path, oldSha, newSha) -> {
+            if (newSha == null) {
+                changes.append("D ").append(quote(path)).append('\n');
+            } else {
+                changes.append("M 100644 :").append(writeBlob(newSha)).append(' ').append(quote(path)).append('\n');
+            }
+        });
+        written.add(sha);
+        result.commits++;
+        StringBuilder header = new StringBuilder();
+        if (firstParent == null) {
+            // a root commit doesn't continue the branch written so far
+            header.append("reset ").append(refName).append('\n');
+        }
+        String signature = " " + commit.timestamp + " " + commit.timezone + "\n";
+        byte[] message = commit.message.getBytes(StandardCharsets.UTF_8);
+        header.append("commit ").append(refName).append('\n')
+                .append("mark :").append(mark(sha)).append('\n')
+                .append("author ").append(commit.author).append(signature)
+                .append("committer ").append(commit.committer).append(signature)
+                .append("data ").append(message.length).append('\n');
+        write(header.toString());
+        write(message);
+        StringBuilder parents = new StringBuilder("\n");
+        for (int i = 0; i < commit.parents.size(); i++) {
+            parents.append(i == 0 ? "from " : "merge ").append(reference(commit.parents.get(i))).append('\n');
+        }
+        write(parents.append(changes).append('\n').toString());
+        flush();
+    }
+
+    private int writeBlob(String sha) throws GitException {
+        if (written.add(sha)) {
+            byte[] content = ChunkedFiles.readContent(repository, sha);
+            write("blob\nmark :" + mark(sha) + "\ndata " + content.length + "\n");
+            write(content);
+            write("\n");
+            result.blobs++;
+        }
+        return mark(sha);
+    }
+
+    private int mark(String sha) {
+        return written.indexOf(sha) + 1;
+    }
+
+    // excluded commits aren't in the stream, the importing side has them
+    private String reference(String commitSha) {
+        return written.contains(commitSha) ? ":" + mark(commitSha) : commitSha;
+    }
+
+    // C-style quoting as FastImport.unquote reads it, for paths that would end the line or look quoted
+    private static String quote(String path) {
+        boolean plain = !path.startsWith("\"");
+        for (int i = 0; i < path.length() && plain; i++) {
+            char c = path.charAt(i);
+            plain = c >= ' ' && c != 0x7f && c != '"' && c != '\\';
+        }
+        if (plain) {
+            return path;
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            int escape = FastImport.UNESCAPED.indexOf(c);
+            if (escape >= 0) {
+                quoted.append('\\').append(FastImport.ESCAPES.charAt(escape));
+            } else if (c < ' ' || c == 0x7f) {
+                quoted.append(String.format("\\%03o", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private GitCommitObject readCommit(String sha) throws GitException {
+        GitObject object = GitObject.readObject(repository, sha);
+        if (!(object instanceof GitCommitObject)) {
+            throw new GitException(sha + " isn't a commit");
+        }
+        return (GitCommitObject) object;
+    }
+
+    private void write(String text) throws GitException {
+        write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(byte[] bytes) throws GitException {
+        try {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new GitException("Error while writing fast-export stream", e);
+        }
+    }
+
+    private void flush() throws GitException {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new GitException("Error while writing fast-export stream", e);
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Imports history from a fast-import stream (this subset of git's syntax) into one new pack, without touching the
+// working tree or the index:
+//   blob, mark :<n>, data <length> | data <<<delimiter>
+//   commit <ref>, mark, author, committer, data, from <rev>, merge <rev>,
+//       M <mode> (<id> | :<mark> | inline) <path>, D <path>, deleteall
+//   reset <ref> [from <rev>], progress <text>, checkpoint, feature <name>, done
+// Trees are kept in memory as nodes shared between commits: a commit copies only the directories on the paths it
+// changes, and only those are encoded and hashed when it is written. Objects that are already stored or written
+// are skipped by id. Refs are updated once the pack is complete.
+public class FastImport {
+    public static class Result {
+        public int blobs;
+        public int trees;
+        public int commits;
+        public int refs;
+        public @Nullable PackFile pack;
+    }
+
+    // a blob or a directory; directories from this stream have children and no id until written,
+    // existing trees have an id and are read when they are first changed
+    private static class Node {
+        final GitObject.ObjectType type;
+        String sha;
+        Map<String, Node> children;
+
+        Node(GitObject.ObjectType nodeType, @Nullable String id, @Nullable Map<String, Node> entries) {
+            type = nodeType;
+            sha = id;
+            children = entries;
+        }
+    }
+
+    private static class Branch {
+        @Nullable String tip;
+        Node root;
+
+        Branch(@Nullable String tipSha, Node rootNode) {
+            tip = tipSha;
+            root = rootNode;
+        }
+    }
+
+    // escapes of quoted paths and the characters they stand for, shared with FastExport
+    static final String ESCAPES = "\\\"abfnrtv";
+    static final String UNESCAPED = "\\\"\u0007\b\f\n\r\t\u000b";
+
+    private final Repository repository;
+    private final GitHashService hashService;
+    private final BufferedInputStream in;
+    private final PrintStream progressOut;
+    private final Map<Integer, String> marks = new HashMap<>();
+    private final Map<String, Node> commitRoots = new HashMap<>();
+    private final Map<String, Branch> branches = new LinkedHashMap<>();
+    private final Result result = new Result();
+    private PackWriter pack;
+    private String pendingLine;
+
+    public FastImport(@NotNull Repository rep, @NotNull InputStream input, @NotNull PrintStream progress) {
+        repository = rep;
+        hashService = rep.getHashService();
+        in = new BufferedInputStream(input, 1 << 16);
+        progressOut = progress;
+    }
+
+    public @NotNull Result run() throws GitException {
+        try (PackWriter writer = new PackWriter(repository)) {
+            pack = writer;
+            String line;
+            while ((line = nextCommand()) != null) {
+                if (line.equals("blob")) {
+                    parseBlob();
+                } else if (line.startsWith("commit ")) {
+                    parseCommit(line.substring("commit ".length()));
+                } else if (line.startsWith("reset ")) {
+                    parseReset(line.substring("reset ".length()));
+                } else if (line.startsWith("progress ")) {
+                    progressOut.println(line);
+                } else if (line.equals("done")) {
+                    break;
+                } else if (!line.equals("checkpoint") && !line.startsWith("feature ")) {
+                    throw new GitException("Unsupported fast-import command: " + line);
+                }
+            }
+            if (writer.getObjectCount() > 0) {
+                result.pack = writer.finish();
+                repository.reloadPacks();
+            }
+        }
+        for (Map.Entry<String, Branch> entry : branches.entrySet()) {
+            if (entry.getValue().tip != null) {
+                repository.updateRef(entry.getKey(), entry.getValue().tip, "fast-import");
+                result.refs++;
+            }
+        }
+        return result;
+    }
+
+    private void parseBlob() throws GitException {
+        String line = readLine();
+        Integer mark = null;
+        if (line != null && line.startsWith("mark ")) {
+            mark = parseMark(line.substring("mark ".length()));
+            line = readLine();
+        }
+        String sha = storeBlob(readData(line));
+        if (mark != null) {
+            marks.put(mark, sha);
+        }
+    }
+
+    private String storeBlob(byte[] payload) throws GitException {
+        String sha = hashService.hashObject(GitObject.ObjectType.blob, payload);
+        if (store(sha, GitObject.ObjectType.blob, payload)) {
+            result.blobs++;
+        }
+        return sha;
+    }
+
+    // false if the object is already there
+    private boolean store(String sha, GitObject.ObjectType type, byte[] payload) throws GitException {
+        if (pack.contains(sha) || repository.getKnownObjects().contains(sha)) {
+            return false;
+        }
+        pack.add(sha, type, payload);
+        return true;
+    }
+
+    private void parseCommit(String ref) throws GitException {
+        String line = readLine();
+        Integer mark = null;
+        String author = null;
+        String committer = null;
+        if (line != null && line.startsWith("mark ")) {
+            mark = parseMark(line.substring("mark ".length()));
+            line = readLine();
+        }
+        if (line != null && line.startsWith("original-oid ")) {
+            line = readLine();
+        }
+        if (line != null && line.startsWith("author ")) {
+            author = line.substring("author ".length());
+            line = readLine();
+        }
+        if (line == null || !line.startsWith("committer ")) {
+            throw new GitException("Commit to " + ref + " has no committer");
+        }
+        committer = line.substring("committer ".length());
+        String message = new String(readData(readLine()), StandardCharsets.UTF_8);
+
+        Branch branch = getBranch(ref);
+        List<String> parents = new ArrayList<>();
+        line = readLine();
+        if (line != null && line.startsWith("from ")) {
+            String from = resolveCommit(line.substring("from ".length()));
+            branch.tip = from;
+            branch.root = getRoot(from);
+            line = readLine();
+        }
+        if (branch.tip != null) {
+            parents.add(branch.tip);
+        }
+        while (line != null && line.startsWith("merge ")) {
+            parents.add(resolveCommit(line.substring("merge ".length())));
+            line = readLine();
+        }
+        while (line != null) {
+            if (line.startsWith("M ")) {
+                parseModify(branch, line);
+            } else if (line.startsWith("D ")) {
+                branch.root = remove(branch.root, splitPath(line.substring("D ".length())), 0);
+            } else if (line.equals("deleteall")) {
+                branch.root = emptyDir();
+            } else {
+                pendingLine = line;
+                break;
+            }
+            line = readLine();
+        }
+
+        String treeSha = writeTree(branch.root);
+        String[] committerParts = splitSignature(committer);
+        String[] authorParts = author == null ? committerParts : splitSignature(author);
+        long time;
+        try {
+            time = Long.parseLong(committerParts[1]);
+        } catch (NumberFormatException e) {
+            throw new GitException("Bad commit time in '" + committer + "'", e);
+        }
+        GitCommitObject commit = new GitCommitObject(repository, message, treeSha, parents, authorParts[0],
+                committerParts[0], time, committerParts[2]);
+        byte[] payload = commit.serialize();
+        String sha = hashService.hashObject(GitObject.ObjectType.commit, payload);
+        if (store(sha, GitObject.ObjectType.commit, payload)) {
+            result.commits++;
+        }
+        branch.tip = sha;
+        commitRoots.put(sha, branch.root);
+        if (mark != null) {
+            marks.put(mark, sha);
+        }
+    }
+
+    private void parseModify(Branch branch, String line) throws GitException {
+        // M <mode> <dataref> <path>
+        int modeEnd = line.indexOf(' ', 2);
+        int refEnd = modeEnd < 0 ? -1 : line.indexOf(' ', modeEnd + 1);
+        if (refEnd < 0) {
+            throw new GitException("Bad file modification: " + line);
+        }
+        String mode = line.substring(2, modeEnd);
+        String dataRef = line.substring(modeEnd + 1, refEnd);
+        String path = line.substring(refEnd + 1);
+        GitObject.ObjectType type;
+        if (mode.equals("040000") || mode.equals("40000")) {
+            type = GitObject.ObjectType.tree;
+        } else if (mode.equals("100644") || mode.equals("644") || mode.equals("100755") || mode.equals("755")
+                || mode.equals("120000")) {
+            // file modes aren't stored, every file is a regular one
+            type = GitObject.ObjectType.blob;
+        } else {
+            throw new GitException("Unsupported file mode " + mode + " in: " + line);
+        }
+        String sha;
+        if (dataRef.equals("inline")) {
+            sha = storeBlob(readData(readLine()));
+        } else if (dataRef.startsWith(":")) {
+            sha = marks.get(parseMark(dataRef));
+            if (sha == null) {
+                throw new GitException("Unknown mark " + dataRef);
+            }
+        } else if (repository.isObjectId(dataRef)) {
+            sha = dataRef;
+            // an object of this stream, or one that is stored with the type the mode says
+            if (!pack.contains(sha) && (!repository.getKnownObjects().contains(sha)
+                    || GitObject.getObjectType(repository, sha) != type)) {
+                throw new GitException("No " + type + " " + sha + " for: " + line);
+            }
+        } else {
+            throw new GitException("Bad data reference in: " + line);
+        }
+        branch.root = put(branch.root, splitPath(path), 0, new Node(type, sha, null));
+    }
+
+    private void parseReset(String ref) throws GitException {
+        checkRefName(ref);
+        Branch branch = new Branch(null, emptyDir());
+        branches.put(ref, branch);
+        String line = readLine();
+        if (line != null && line.startsWith("from ")) {
+            branch.tip = resolveCommit(line.substring("from ".length()));
+            branch.root = getRoot(branch.tip);
+        } else {
+            pendingLine = line;
+        }
+    }
+
+    // a branch seen for the first time continues from the commit its ref points to
+    private Branch getBranch(String ref) throws GitException {
+        Branch branch = branches.get(ref);
+        if (branch == null) {
+            checkRefName(ref);
+            String tip = repository.convertRevisionToSha(ref);
+            branch = new Branch(tip, tip == null ? emptyDir() : getRoot(tip));
+            branches.put(ref, branch);
+        }
+        return branch;
+    }
+
+    private static void checkRefName(String ref) throws GitException {
+        if (!Repository.isValidRefName(ref)) {
+            throw new GitException("Bad ref name '" + ref + "' in fast-import stream");
+        }
+    }
+
+    private String resolveCommit(String rev) throws GitException {
+        String sha;
+        if (rev.startsWith(":")) {
+            sha = marks.get(parseMark(rev));
+        } else if (branches.containsKey(rev)) {
+            sha = branches.get(rev).tip;
+        } else {
+            sha = repository.getRevisions().resolveCommit(rev);
+        }
+        if (sha == null) {
+            throw new GitException("Unknown commit " + rev);
+        }
+        return sha;
+    }
+
+    private Node getRoot(String commitSha) throws GitException {
+        Node root = commitRoots.get(commitSha);
+        if (root == null) {
+            GitCommitObject commit = repository.getRevisions().readCommit(commitSha);
+            root = new Node(GitObject.ObjectType.tree, commit.treeSha, null);
+            commitRoots.put(commitSha, root);
+        }
+        return root;
+    }
+
+    private static Node emptyDir() {
+        return new Node(GitObject.ObjectType.tree, null, new HashMap<>());
+    }
+
+    // copy of the directory that can be changed; existing trees are read on their first change
+    private Node copyDir(@Nullable Node dir) throws GitException {
+        if (dir == null || dir.type != GitObject.ObjectType.tree) {
+            return emptyDir();
+        }
+        if (dir.children == null) {
+            Map<String, Node> children = new HashMap<>();
+            GitTreeObject.Cursor cursor = ((GitTreeObject) GitObject.readObject(repository, dir.sha)).cursor();
+            while (cursor.next()) {
+                children.put(cursor.getName(), new Node(cursor.getType(), cursor.getSha(), null));
+            }
+            dir.children = children;
+        }
+        return new Node(GitObject.ObjectType.tree, null, new HashMap<>(dir.children));
+    }
+
+    private Node put(Node dir, String[] path, int depth, Node leaf) throws GitException {
+        Node copy = copyDir(dir);
+        if (depth == path.length - 1) {
+            copy.children.put(path[depth], leaf);
+        } else {
+            copy.children.put(path[depth], put(copy.children.get(path[depth]), path, depth + 1, leaf));
+        }
+        return copy;
+    }
+
+    // empty directories aren't stored, so they disappear with their last file
+    private Node remove(Node dir, String[] path, int depth) throws GitException {
+        Node copy = copyDir(dir);
+        Node child = copy.children.get(path[depth]);
+        if (child == null) {
+            return dir;
+        }
+        if (depth == path.length - 1) {
+            copy.children.remove(path[depth]);
+        } else {
+            Node updated = remove(child, path, depth + 1);
+            if (updated.children != null && updated.children.isEmpty()) {
+                copy.children.remove(path[depth]);
+            } else {
+                copy.children.put(path[depth], updated);
+            }
+        }
+        return copy;
+    }
+
+    private String writeTree(Node dir) throws GitException {
+        if (dir.sha != null) {
+            return dir.sha;
+        }
+        List<GitTreeObject.TreeElement> elements = new ArrayList<>();
+        for (Map.Entry<String, Node> child : dir.children.entrySet()) {
+            Node node = child.getValue();
+            String sha = node.type == GitObject.ObjectType.tree ? writeTree(node) : node.sha;
+            elements.add(new GitTreeObject.TreeElement(node.type, sha, child.getKey()));
+        }
+        byte[] payload = GitTreeObject.fromElements(repository, elements).serialize();
+        dir.sha = hashService.hashObject(GitObject.ObjectType.tree, payload);
+        if (store(dir.sha, GitObject.ObjectType.tree, payload)) {
+            result.trees++;
+        }
+        return dir.sha;
+    }
+
+    private static String[] splitPath(String path) throws GitException {
+        String unquoted = path.startsWith("\"") ? unquote(path) : path;
+        String[] parts = unquoted.split("/", -1);
+        for (String part : parts) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new GitException("Bad path " + path);
+            }
+        }
+        return parts;
+    }
+
+    // path in double quotes with C-style escapes: \\, \", \n, \t and the like, and bytes in octal like \303\251
+    private static String unquote(String path) throws GitException {
+        if (path.length() < 2 || !path.endsWith("\"")) {
+            throw new GitException("Bad quoted path " + path);
+        }
+        byte[] bytes = path.substring(1, path.length() - 1).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\\') {
+                out.write(bytes[i]);
+                continue;
+            }
+            if (++i == bytes.length) {
+                throw new GitException("Bad quoted path " + path);
+            }
+            int escape = ESCAPES.indexOf(bytes[i]);
+            if (escape >= 0) {
+                out.write(UNESCAPED.charAt(escape));
+            } else if (bytes[i] >= '0' && bytes[i] <= '3' && i + 2 < bytes.length) {
+                out.write((bytes[i] - '0') << 6 | (bytes[i + 1] - '0') << 3 | (bytes[i + 2] - '0'));
+                i += 2;
+            } else {
+                throw new GitException("Bad escape in quoted path " + path);
+            }
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    // {identity, epoch seconds, timezone} of "<name> <<email>> <time> <tz>"
+    private static String[] splitSignature(String signature) throws GitException {
+        int tzStart = signature.lastIndexOf(' ');
+        int timeStart = tzStart < 0 ? -1 : signature.lastIndexOf(' ', tzStart - 1);
+        if (timeStart < 0) {
+            throw new GitException("Bad signature '" + signature + "'");
+        }
+        return new String[]{signature.substring(0, timeStart), signature.substring(timeStart + 1, tzStart),
+                signature.substring(tzStart + 1)};
+    }
+
+    private static int parseMark(String mark) throws GitException {
+        try {
+            return Integer.parseInt(mark.startsWith(":") ? mark.substring(1) : mark);
+        } catch (NumberFormatException e) {
+            throw new GitException("Bad mark " + mark);
+        }
+    }
+
+    private byte[] readData(@Nullable String line) throws GitException {
+        if (line == null || !line.startsWith("data ")) {
+            throw new GitException("Expected data, got: " + line);
+        }
+        String spec = line.substring("data ".length());
+        try {
+            if (spec.startsWith("<<")) {
+                String delimiter = spec.substring(2);
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                String dataLine;
+                while (!delimiter.equals(dataLine = readLine())) {
+                    if (dataLine == null) {
+                        throw new GitException("Data isn't terminated by " + delimiter);
+                    }
+                    data.writeBytes((dataLine + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                return data.toByteArray();
+            }
+            int length = Integer.parseInt(spec);
+            byte[] data = in.readNBytes(length);
+            if (data.length != length) {
+                throw new GitException("Stream ends inside data of " + length + " bytes");
+            }
+            // an optional newline may follow the data
+            in.mark(1);
+            if (in.read() != '\n') {
+                in.reset();
+            }
+            return data;
+        } catch (NumberFormatException e) {
+            throw new GitException("Bad data length: " + line);
+        } catch (IOException e) {
+            throw new GitException("Error while reading fast-import stream", e);
+        }
+    }
+
+    // next line that isn't empty or a comment
+    private @Nullable String nextCommand() throws GitException {
+        String line;
+        if (pendingLine != null) {
+            line = pendingLine;
+            pendingLine = null;
+        } else {
+            line = readLine();
+        }
+        while (line != null && (line.isEmpty() || line.startsWith("#"))) {
+            line = readLine();
+        }
+        return line;
+    }
+
+    private @Nullable String readLine() throws GitException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        try {
+            int c = in.read();
+            if (c < 0) {
+                return null;
+            }
+            while (c >= 0 && c != '\n') {
+                line.write(c);
+                c = in.read();
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while reading fast-import stream", e);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,244 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// File system monitor. The daemon watches the working tree with a WatchService and appends every changed path
+// to a journal, one path per line ("*" when events were lost). A token is "<daemon instance>:<journal offset>",
+// status keeps it in the index and asks only for the paths journaled after it.
+public class FsMonitor {
+    private static final String OVERFLOW_MARK = "*";
+
+    public static class Changes {
+        public final String token;
+        public final Set<String> paths;
+
+        Changes(String newToken, Set<String> changedPaths) {
+            token = newToken;
+            paths = changedPaths;
+        }
+    }
+
+    private static Path getDir(Repository repository) {
+        return repository.getGitDir().resolve("fsmonitor");
+    }
+
+    private static Path getJournalPath(Repository repository) {
+        return getDir(repository).resolve("journal");
+    }
+
+    private static Path getInstancePath(Repository repository) {
+        return getDir(repository).resolve("instance");
+    }
+
+    private static Path getLockPath(Repository repository) {
+        return getDir(repository).resolve("lock");
+    }
+
+    // the daemon holds the lock for its whole life, so a free lock means nobody records changes
+    public static boolean isDaemonRunning(@NotNull Repository repository) {
+        Path lockPath = getLockPath(repository);
+        if (!Files.exists(lockPath)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;    // the daemon runs inside this process
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static @Nullable String readInstance(Repository repository) {
+        try {
+            return Files.readString(getInstancePath(repository)).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // token describing "now", null if no daemon is running
+    public static @Nullable String currentToken(@NotNull Repository repository) {
+        String instance = readInstance(repository);
+        if (instance == null || !isDaemonRunning(repository)) {
+            return null;
+        }
+        try {
+            return instance + ":" + Files.size(getJournalPath(repository));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // paths changed since the token or null if they are unknown and the whole tree has to be scanned
+    public static @Nullable Changes queryChanges(@NotNull Repository repository, @Nullable String token) throws GitException {
+        if (token == null) {
+            return null;
+        }
+        int colon = token.lastIndexOf(':');
+        String instance = readInstance(repository);
+        if (colon < 0 || instance == null || !instance.equals(token.substring(0, colon)) || !isDaemonRunning(repository)) {
+            return null;
+        }
+        long offset;
+        try {
+            offset = Long.parseLong(token.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        try (RandomAccessFile journal = new RandomAccessFile(getJournalPath(repository).toFile(), "r")) {
+            long length = journal.length();
+            if (offset > length) {
+                return null;
+            }
+            if (offset > 0) {
+                // token has to point to the beginning of a line
+                journal.seek(offset - 1);
+                if (journal.read() != '\n') {
+                    return null;
+                }
+            }
+            byte[] tail = new byte[(int) (length - offset)];
+            journal.readFully(tail);
+            int consumed = 0;
+            Set<String> paths = new HashSet<>();
+            for (int i = 0; i < tail.length; i++) {
+                if (tail[i] == '\n') {
+                    String path = new String(tail, consumed, i - consumed, StandardCharsets.UTF_8);
+                    if (path.equals(OVERFLOW_MARK)) {
+                        return null;
+                    }
+                    paths.add(path);
+                    consumed = i + 1;
+                }
+            }
+            // an incomplete last line is read again next time
+            return new Changes(instance + ":" + (offset + consumed), paths);
+        } catch (IOException e) {
+            throw new GitException("Error while reading fsmonitor journal", e);
+        }
+    }
+
+    // blocks until the process is killed
+    public static void runDaemon(@NotNull Repository repository) throws GitException {
+        Path root = repository.getWorkingDirPath();
+        try {
+            Files.createDirectories(getDir(repository));
+            FileChannel lockChannel = FileChannel.open(getLockPath(repository), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = lockChannel.tryLock();
+            if (lock == null) {
+                throw new GitException("fsmonitor daemon is already running");
+            }
+            // new instance invalidates tokens of the previous one, so the journal can start from scratch
+            Files.deleteIfExists(getJournalPath(repository));
+            Files.writeString(getInstancePath(repository), UUID.randomUUID().toString());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(getInstancePath(repository));
+                    lock.release();
+                    lockChannel.close();
+                } catch (IOException ignored) {
+                    // the lock is released by the OS anyway
+                }
+            }));
+            try (WatchService watchService = root.getFileSystem().newWatchService();
+                 FileChannel journal = FileChannel.open(getJournalPath(repository), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                Map<Path, WatchKey> keys = new HashMap<>();
+                registerAll(repository, watchService, keys, root, null);
+                System.out.println("fsmonitor is watching " + root);
+                while (true) {
+                    WatchKey key = watchService.take();
+                    Path dir = (Path) key.watchable();
+                    StringBuilder lines = new StringBuilder();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            lines.append(OVERFLOW_MARK).append('\n');
+                            continue;
+                        }
+                        Path child = dir.resolve((Path) event.context());
+                        if (child.startsWith(repository.getGitDir())) {
+                            continue;
+                        }
+                        lines.append(root.relativize(child)).append('\n');
+                        if (event.kind() == ENTRY_DELETE) {
+                            // a moved directory keeps its watch, it has to be dropped to be registered under the new name
+                            keys.entrySet().removeIf(entry -> {
+                                boolean under = entry.getKey().startsWith(child);
+                                if (under) {
+                                    entry.getValue().cancel();
+                                }
+                                return under;
+                            });
+                        } else if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            // whatever was created inside before the directory got registered is reported too
+                            registerAll(repository, watchService, keys, child, lines);
+                        }
+                    }
+                    key.reset();
+                    journal.write(ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while watching the working tree", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void registerAll(Repository repository, WatchService watchService, Map<Path, WatchKey> keys,
+                                    Path start, @Nullable StringBuilder created) throws IOException {
+        Path root = repository.getWorkingDirPath();
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.equals(repository.getGitDir())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                if (!key.watchable().equals(dir)) {
+                    // same directory seen under its old name, the old watch would report wrong paths
+                    keys.remove((Path) key.watchable());
+                    key.cancel();
+                    key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                }
+                keys.put(dir, key);
+                if (created != null && !dir.equals(start)) {
+                    created.append(root.relativize(dir)).append('\n');
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (created != null) {
+                    created.append(root.relativize(file)).append('\n');
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
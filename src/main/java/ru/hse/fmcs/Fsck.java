@@ -0,0 +1,339 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+
+// Verifies the object store in two passes. The first rehashes every loose and packed object on a pool of
+// I/O threads (one task per fan-out directory or slice of a pack), checks the header, the size, the id and that
+// commits and trees parse, and records their links. The second checks the links, refs and index entries against
+// what the first pass found. Problems are reported as soon as they are found, one line per object.
+public class Fsck {
+    private static final int PACK_SLICE = 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 200;
+
+    public interface Reporter {
+        void progress(int checked, int total);
+
+        void error(String sha, String message);
+
+        void dangling(String sha, GitObject.ObjectType type);
+    }
+
+    private static class Link {
+        final String from;
+        final String to;
+        final GitObject.ObjectType expectedType;
+        final String description;
+
+        Link(String fromSha, String toSha, GitObject.ObjectType type, String what) {
+            from = fromSha;
+            to = toSha;
+            expectedType = type;
+            description = what;
+        }
+    }
+
+    private final Repository repository;
+    private final GitHashService hashService;
+    private final Reporter reporter;
+    private final Map<String, GitObject.ObjectType> found = new ConcurrentHashMap<>();
+    private final Set<String> corrupt = ConcurrentHashMap.newKeySet();
+    private final Queue<Link> links = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger checked = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private int total;
+    private volatile long lastProgress;
+
+    public Fsck(@NotNull Repository rep, @NotNull Reporter fsckReporter) {
+        repository = rep;
+        hashService = rep.getHashService();
+        reporter = fsckReporter;
+    }
+
+    // returns the number of errors
+    public int run(int threads) throws GitException {
+        repository.flushObjectWrites();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        total = collectLooseTasks(tasks) + collectPackTasks(tasks);
+        reporter.progress(0, total);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitException("fsck was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new GitException("Error while checking objects", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        reporter.progress(checked.get(), total);
+        checkConnectivity();
+        return errors.get();
+    }
+
+    private void error(String sha, String message) {
+        errors.incrementAndGet();
+        synchronized (reporter) {
+            reporter.error(sha, message);
+        }
+    }
+
+    private void objectError(String sha, String message) {
+        corrupt.add(sha);
+        error(sha, message);
+    }
+
+    private void objectChecked() {
+        int done = checked.incrementAndGet();
+        long now = System.currentTimeMillis();
+        if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+            synchronized (reporter) {
+                if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+                    lastProgress = now;
+                    reporter.progress(done, total);
+                }
+            }
+        }
+    }
+
+    private int collectLooseTasks(List<Callable<Void>> tasks) throws GitException {
+        Path objectsDir = repository.getGitDir().resolve("objects");
+        int count = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(objectsDir)) {
+            for (Path dir : dirs) {
+                String prefix = dir.getFileName().toString();
+                if (prefix.length() != 2 || !Files.isDirectory(dir)) {
+                    continue;
+                }
+                List<Path> objects = new ArrayList<>();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        if (!file.getFileName().toString().startsWith(LooseObjectWriter.TEMP_PREFIX)) {
+                            objects.add(file);
+                        }
+                    }
+                }
+                count += objects.size();
+                tasks.add(() -> {
+                    for (Path file : objects) {
+                        checkLooseObject(prefix + file.getFileName(), file);
+                        objectChecked();
+                    }
+                    return null;
+                });
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while listing " + objectsDir, e);
+        }
+        return count;
+    }
+
+    private void checkLooseObject(String sha, Path file) {
+        if (!hashService.isValidId(sha)) {
+            objectError(sha, "file name " + file.getFileName() + " isn't an object id");
+            return;
+        }
+        byte[] header;
+        byte[] payload;
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+            header = readHeader(in);
+            if (header == null) {
+                objectError(sha, "object header isn't terminated");
+                return;
+            }
+            payload = in.readAllBytes();
+        } catch (IOException e) {
+            objectError(sha, "corrupt or truncated zlib data: " + e.getMessage());
+            return;
+        }
+        String headerStr = new String(header, StandardCharsets.US_ASCII);
+        int space = headerStr.indexOf(' ');
+        GitObject.ObjectType type;
+        long size;
+        try {
+            type = GitObject.ObjectType.valueOf(headerStr.substring(0, Math.max(space, 0)));
+            size = Long.parseLong(headerStr.substring(space + 1));
+        } catch (IllegalArgumentException e) {
+            objectError(sha, "bad object header '" + headerStr + "'");
+            return;
+        }
+        if (size != payload.length) {
+            objectError(sha, "header says " + size + " bytes, payload has " + payload.length);
+            return;
+        }
+        checkPayload(sha, type, payload);
+    }
+
+    // bytes up to the NUL ending the header, null if there is none in a sensible length
+    private static byte[] readHeader(InputStream in) throws IOException {
+        byte[] header = new byte[32];
+        for (int length = 0; length < header.length; length++) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            if (b == 0) {
+                return Arrays.copyOf(header, length);
+            }
+            header[length] = (byte) b;
+        }
+        return null;
+    }
+
+    private int collectPackTasks(List<Callable<Void>> tasks) throws GitException {
+        int count = 0;
+        for (PackFile pack : repository.getPacks()) {
+            String name = pack.getPackPath().getFileName().toString();
+            if (!pack.idxChecksumMatches(hashService)) {
+                error(name, "index checksum mismatch");
+            }
+            if (!pack.packChecksumMatches(hashService)) {
+                error(name, "pack checksum mismatch");
+            }
+            long[] ends = entryEnds(pack);
+            for (int start = 0; start < pack.getObjectCount(); start += PACK_SLICE) {
+                int from = start;
+                int to = Math.min(start + PACK_SLICE, pack.getObjectCount());
+                tasks.add(() -> {
+                    for (int i = from; i < to; i++) {
+                        checkPackedObject(pack, i, ends[i]);
+                        objectChecked();
+                    }
+                    return null;
+                });
+            }
+            count += pack.getObjectCount();
+        }
+        return count;
+    }
+
+    // entries are contiguous, each ends where the next one by offset starts; the last one at the trailer
+    private long[] entryEnds(PackFile pack) {
+        int count = pack.getObjectCount();
+        Integer[] byOffset = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            byOffset[i] = i;
+        }
+        Arrays.sort(byOffset, (a, b) -> Long.compare(pack.getOffset(a), pack.getOffset(b)));
+        long[] ends = new long[count];
+        for (int j = 0; j < count; j++) {
+            ends[byOffset[j]] = j + 1 < count ? pack.getOffset(byOffset[j + 1])
+                    : pack.getPackSize() - repository.getObjectFormat().rawLength;
+        }
+        return ends;
+    }
+
+    private void checkPackedObject(PackFile pack, int i, long end) {
+        String sha = pack.getId(i);
+        CRC32 crc = new CRC32();
+        crc.update(pack.slice(pack.getOffset(i), end));
+        if ((int) crc.getValue() != pack.getCrc(i)) {
+            objectError(sha, "CRC mismatch in " + pack.getPackPath().getFileName());
+            return;
+        }
+        GitObject.RawObject raw;
+        try {
+            raw = pack.read(i);
+        } catch (GitException e) {
+            objectError(sha, e.getMessage());
+            return;
+        }
+        checkPayload(sha, raw.header.type, raw.payload);
+    }
+
+    private void checkPayload(String sha, GitObject.ObjectType type, byte[] payload) {
+        String actual = hashService.hashObject(type, payload);
+        if (!actual.equals(sha)) {
+            objectError(sha, "content hashes to " + actual);
+            return;
+        }
+        try {
+            if (type == GitObject.ObjectType.commit) {
+                GitCommitObject commit = GitCommitObject.parse(repository, payload);
+                links.add(new Link(sha, commit.treeSha, GitObject.ObjectType.tree, "tree"));
+                for (String parent : commit.parents) {
+                    links.add(new Link(sha, parent, GitObject.ObjectType.commit, "parent"));
+                }
+            } else if (type == GitObject.ObjectType.tree) {
+                GitTreeObject.Cursor cursor = new GitTreeObject(repository, payload).cursor();
+                while (cursor.next()) {
+                    links.add(new Link(sha, cursor.getSha(), cursor.getType(), "entry '" + cursor.getName() + "'"));
+                }
+            } else if (type == GitObject.ObjectType.blob && ChunkedFiles.isManifest(repository, sha)) {
+                for (ChunkedFiles.Chunk chunk : ChunkedFiles.parseManifest(payload)) {
+                    links.add(new Link(sha, chunk.sha, GitObject.ObjectType.blob, "chunk"));
+                }
+            } else if (type == GitObject.ObjectType.tag) {
+                links.add(new Link(sha, GitTagObject.getTarget(payload), GitTagObject.getTargetType(payload), "object"));
+            }
+        } catch (GitException | RuntimeException e) {
+            objectError(sha, "unparsable " + type + ": " + e.getMessage());
+            return;
+        }
+        found.put(sha, type);
+    }
+
+    private void checkConnectivity() throws GitException {
+        Set<String> referenced = new HashSet<>();
+        for (Link link : links) {
+            referenced.add(link.to);
+            GitObject.ObjectType type = found.get(link.to);
+            if (type == null) {
+                error(link.from, "broken link: " + link.description + " points to "
+                        + (corrupt.contains(link.to) ? "corrupt " : "missing ") + link.expectedType + " " + link.to);
+            } else if (type != link.expectedType) {
+                error(link.from, "broken link: " + link.description + " points to " + type + " " + link.to
+                        + ", expected " + link.expectedType);
+            }
+        }
+        for (String tip : repository.getRefTips()) {
+            referenced.add(tip);
+            if (!found.containsKey(tip)) {
+                error(tip, "ref points to a missing object");
+            }
+        }
+        referenced.addAll(RefLog.collectIds(repository));
+        if (Files.exists(repository.getIndexPath())) {
+            for (GitIndex.IndexItem item : GitIndex.getIndex(repository).stagedItemsSet) {
+                referenced.add(item.sha);
+                if (found.get(item.sha) != GitObject.ObjectType.blob) {
+                    error(item.sha, "index entry " + item.filePath + " points to a missing blob");
+                }
+            }
+        }
+        // sorted, so that the report doesn't depend on the order the workers finished in
+        for (Map.Entry<String, GitObject.ObjectType> entry : new TreeMap<>(found).entrySet()) {
+            if (!referenced.contains(entry.getKey())) {
+                reporter.dangling(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
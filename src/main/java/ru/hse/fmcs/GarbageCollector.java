@@ -0,0 +1,507 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Mark and sweep over the object store. Everything reachable from refs, HEAD and the index is marked in parallel:
+// a task follows the first-parent chain of a commit and forks tasks for trees and other parents. With reachability
+// bitmaps the refs are resolved through them instead. Unreachable loose
+// objects and leftover temporary files older than the expiry are then deleted. gc additionally moves every
+// reachable object into a single new pack (commits, then trees, then blobs) and drops the packs it replaces.
+// Nothing is deleted if any reachable object couldn't be read.
+public class GarbageCollector {
+    public static final String DEFAULT_EXPIRE = "14d";
+    private static final Pattern DURATION = Pattern.compile("(\\d+)([dhms])");
+
+    // sizes count loose objects, temporary files and the pack directory. Packing may take more space than the
+    // loose objects it replaces, so the store can grow.
+    public static class Result {
+        public int packed;
+        public int pruned;
+        public long sizeBefore;
+        public long sizeAfter;
+        private long reclaimedBytes;    // deleted minus written, negative if the store grew
+    }
+
+    private static class LooseObject {
+        final String sha;
+        final Path path;
+        final Instant modified;
+        final long size;
+
+        LooseObject(String id, Path file, BasicFileAttributes attributes) {
+            sha = id;
+            path = file;
+            modified = attributes.lastModifiedTime().toInstant();
+            size = attributes.size();
+        }
+    }
+
+    private final Repository repository;
+    private final Path objectsDir;
+    private final @Nullable Instant expireBefore;     // null: nothing expires
+    private final Map<String, GitObject.ObjectType> reachable = new ConcurrentHashMap<>();
+    private final Queue<GitException> errors = new ConcurrentLinkedQueue<>();
+    private boolean followChunks;
+
+    public GarbageCollector(@NotNull Repository rep, @Nullable Instant expire) {
+        repository = rep;
+        objectsDir = rep.getGitDir().resolve("objects");
+        expireBefore = expire;
+    }
+
+    // "now", "never" or an age like 14d, 2h, 30m, 45s
+    public static @Nullable Instant parseExpire(@NotNull String when) throws GitException {
+        if (when.equals("now")) {
+            return Instant.now();
+        }
+        if (when.equals("never")) {
+            return null;
+        }
+        Matcher matcher = DURATION.matcher(when);
+        if (!matcher.matches()) {
+            throw new GitException("Bad expiry '" + when + "', expected now, never or <number>[dhms]");
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        Duration age;
+        switch (matcher.group(2)) {
+            case "d":
+                age = Duration.ofDays(amount);
+                break;
+            case "h":
+                age = Duration.ofHours(amount);
+                break;
+            case "m":
+                age = Duration.ofMinutes(amount);
+                break;
+            default:
+                age = Duration.ofSeconds(amount);
+                break;
+        }
+        return Instant.now().minus(age);
+    }
+
+    public static @Nullable Instant getDefaultExpire(@NotNull Repository repository) throws GitException {
+        String configured = repository.getConfigValue("gc", "pruneexpire");
+        return parseExpire(configured == null ? DEFAULT_EXPIRE : configured.trim());
+    }
+
+    public @NotNull Result gc() throws GitException {
+        return run(true);
+    }
+
+    public @NotNull Result prune() throws GitException {
+        return run(false);
+    }
+
+    private Result run(boolean repack) throws GitException {
+        repository.flushObjectWrites();
+        markReachable();
+        if (!errors.isEmpty()) {
+            GitException first = errors.peek();
+            throw new GitException("Couldn't read " + errors.size() + " reachable object(s), nothing was deleted: "
+                    + first.getMessage(), first);
+        }
+        Result result = new Result();
+        result.sizeBefore = packDirSize();
+        List<LooseObject> loose = listLooseObjects(result);
+        if (repack) {
+            List<String> commits = new ArrayList<>();
+            for (Map.Entry<String, GitObject.ObjectType> entry : reachable.entrySet()) {
+                if (entry.getValue() == GitObject.ObjectType.commit) {
+                    commits.add(entry.getKey());
+                }
+            }
+            // before the objects move, so that missing filters are computed from the current store
+            repository.getChangedPaths().rewrite(commits);
+            repack(loose, result);
+        }
+        for (LooseObject object : loose) {
+            if (!reachable.containsKey(object.sha) && isExpired(object.modified)) {
+                delete(object.path, result);
+                result.pruned++;
+            }
+        }
+        removeEmptyFanOutDirs();
+        repository.reloadPacks();
+        result.sizeAfter = result.sizeBefore - result.reclaimedBytes;
+        return result;
+    }
+
+    private boolean isExpired(Instant modified) {
+        return expireBefore != null && !modified.isAfter(expireBefore);
+    }
+
+    private void markReachable() throws GitException {
+        followChunks = ChunkedFiles.isEnabledIn(repository);
+        List<RecursiveAction> roots = new ArrayList<>();
+        Set<String> tips = new TreeSet<>(repository.getRefTips());
+        // previous ref values are kept as long as they are stored, so a bad reset can be undone
+        for (String sha : RefLog.collectIds(repository)) {
+            if (repository.getKnownObjects().contains(sha)) {
+                tips.add(sha);
+            }
+        }
+        ReachabilityBitmaps bitmaps = ReachabilityBitmaps.load(repository);
+        if (bitmaps != null) {
+            // only commits newer than the bitmapped ones are read
+            reachable.putAll(bitmaps.reachableFrom(tips).toMap());
+        } else {
+            for (String sha : tips) {
+                roots.add(new MarkTask(sha, null, false));
+            }
+        }
+        if (Files.exists(repository.getIndexPath())) {
+            GitIndex index = GitIndex.getIndex(repository);
+            for (GitIndex.IndexItem item : index.stagedItemsSet) {
+                markBlob(item.sha, false);
+            }
+            // trees written by add but not committed yet are read back from the store on the next commit
+            roots.add(new TreeTask(index.tree, true));
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (RecursiveAction root : roots) {
+                pool.execute(root);
+            }
+            for (RecursiveAction root : roots) {
+                root.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private class MarkTask extends RecursiveAction {
+        private final String start;
+        private @Nullable GitObject.ObjectType type;
+        private final boolean mayBeMissing;
+
+        MarkTask(String sha, @Nullable GitObject.ObjectType knownType, boolean missingAllowed) {
+            start = sha;
+            type = knownType;
+            mayBeMissing = missingAllowed;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> forked = new ArrayList<>();
+            try {
+                if (mayBeMissing && !repository.getKnownObjects().contains(start)) {
+                    return;
+                }
+                if (type == null) {
+                    type = GitObject.getObjectType(repository, start);
+                }
+                if (type == GitObject.ObjectType.commit) {
+                    markCommits(forked);
+                } else if (reachable.putIfAbsent(start, type) == null) {
+                    if (type == GitObject.ObjectType.tree) {
+                        markTree((GitTreeObject) GitObject.readObject(repository, start), mayBeMissing, forked);
+                    } else if (type == GitObject.ObjectType.tag) {
+                        // an annotated tag keeps the object it tags, as in Revisions the tag is peeled by its payload
+                        byte[] payload = GitObject.readRawObject(repository, start).payload;
+                        forkTask(new MarkTask(GitTagObject.getTarget(payload), GitTagObject.getTargetType(payload),
+                                false), forked);
+                    }
+                }
+            } catch (GitException e) {
+                errors.add(e);
+            } finally {
+                for (RecursiveAction task : forked) {
+                    task.join();
+                }
+            }
+        }
+
+        // the first-parent chain is followed in a loop, so long histories don't nest tasks
+        private void markCommits(List<RecursiveAction> forked) throws GitException {
+            String sha = start;
+            while (sha != null && reachable.putIfAbsent(sha, GitObject.ObjectType.commit) == null) {
+                GitCommitObject commit = (GitCommitObject) GitObject.readObject(repository, sha);
+                forkTask(new MarkTask(commit.treeSha, GitObject.ObjectType.tree, false), forked);
+                for (int i = 1; i < commit.parents.size(); i++) {
+                    forkTask(new MarkTask(commit.parents.get(i), GitObject.ObjectType.commit, false), forked);
+                }
+                sha = commit.getFirstParent();
+            }
+        }
+    }
+
+    private class TreeTask extends RecursiveAction {
+        private final GitTreeObject tree;
+        private final boolean mayBeMissing;
+
+        TreeTask(GitTreeObject root, boolean missingAllowed) {
+            tree = root;
+            mayBeMissing = missingAllowed;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> forked = new ArrayList<>();
+            try {
+                markTree(tree, mayBeMissing, forked);
+            } catch (GitException e) {
+                errors.add(e);
+            } finally {
+                for (RecursiveAction task : forked) {
+                    task.join();
+                }
+            }
+        }
+    }
+
+    // blobs are marked without being read, subtrees get their own tasks
+    private void markTree(GitTreeObject tree, boolean mayBeMissing, List<RecursiveAction> forked) throws GitException {
+        GitTreeObject.Cursor cursor = tree.cursor();
+        while (cursor.next()) {
+            if (cursor.getType() == GitObject.ObjectType.tree) {
+                forkTask(new MarkTask(cursor.getSha(), GitObject.ObjectType.tree, mayBeMissing), forked);
+            } else {
+                markBlob(cursor.getSha(), mayBeMissing);
+            }
+        }
+    }
+
+    // chunks of large files are reachable through their manifests
+    private void markBlob(String sha, boolean mayBeMissing) throws GitException {
+        if (reachable.putIfAbsent(sha, GitObject.ObjectType.blob) != null || !followChunks) {
+            return;
+        }
+        if (mayBeMissing && !repository.getKnownObjects().contains(sha)) {
+            return;
+        }
+        for (String chunk : ChunkedFiles.getChunkIds(repository, sha)) {
+            reachable.putIfAbsent(chunk, GitObject.ObjectType.blob);
+        }
+    }
+
+    private static void forkTask(RecursiveAction task, List<RecursiveAction> forked) {
+        task.fork();
+        forked.add(task);
+    }
+
+    // fan-out directories are listed in parallel; stale temporary files are deleted on the way
+    private List<LooseObject> listLooseObjects(Result result) throws GitException {
+        List<Path> fanOutDirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objectsDir)) {
+            for (Path dir : stream) {
+                String name = dir.getFileName().toString();
+                if (name.length() == 2 && Files.isDirectory(dir)) {
+                    fanOutDirs.add(dir);
+                } else if (name.startsWith(LooseObjectWriter.TEMP_PREFIX)) {
+                    result.sizeBefore += size(dir);
+                    deleteIfExpiredTemp(dir, result);
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while listing " + objectsDir, e);
+        }
+        Queue<LooseObject> objects = new ConcurrentLinkedQueue<>();
+        Queue<Path> expiredTemps = new ConcurrentLinkedQueue<>();
+        LongAdder tempsSize = new LongAdder();
+        try {
+            fanOutDirs.parallelStream().forEach(dir -> {
+                String prefix = dir.getFileName().toString();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path file : stream) {
+                        String name = file.getFileName().toString();
+                        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        if (name.startsWith(LooseObjectWriter.TEMP_PREFIX)) {
+                            tempsSize.add(attributes.size());
+                            if (isExpired(attributes.lastModifiedTime().toInstant())) {
+                                expiredTemps.add(file);
+                            }
+                        } else if (repository.isObjectId(prefix + name)) {
+                            objects.add(new LooseObject(prefix + name, file, attributes));
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw new GitException("Error while listing loose objects", e.getCause());
+        }
+        result.sizeBefore += tempsSize.sum();
+        for (LooseObject object : objects) {
+            result.sizeBefore += object.size;
+        }
+        for (Path temp : expiredTemps) {
+            delete(temp, result);
+        }
+        return new ArrayList<>(objects);
+    }
+
+    private void deleteIfExpiredTemp(Path file, Result result) throws GitException {
+        try {
+            if (isExpired(Files.getLastModifiedTime(file).toInstant())) {
+                delete(file, result);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while reading " + file, e);
+        }
+    }
+
+    // writes all reachable objects and young unreachable packed ones into a new pack, then drops what it replaces
+    private void repack(List<LooseObject> loose, Result result) throws GitException {
+        List<PackFile> oldPacks = new ArrayList<>(repository.getPacks());
+        Map<String, GitObject.ObjectType> keep = new ConcurrentHashMap<>(reachable);
+        for (PackFile pack : oldPacks) {
+            if (isExpired(Files.exists(pack.getPackPath()) ? lastModified(pack.getPackPath()) : Instant.MIN)) {
+                continue;
+            }
+            for (int i = 0; i < pack.getObjectCount(); i++) {
+                String sha = pack.getId(i);
+                if (!keep.containsKey(sha)) {
+                    keep.put(sha, pack.readHeader(i).type);
+                }
+            }
+        }
+        Path packDir = PackWriter.getPackDir(repository);
+        if (Files.isDirectory(packDir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(packDir, PackWriter.TEMP_PREFIX + "*")) {
+                for (Path temp : stream) {
+                    deleteIfExpiredTemp(temp, result);
+                }
+            } catch (IOException e) {
+                throw new GitException("Error while listing " + packDir, e);
+            }
+        }
+        Set<String> dropped = new TreeSet<>();
+        for (PackFile pack : oldPacks) {
+            for (int i = 0; i < pack.getObjectCount(); i++) {
+                String sha = pack.getId(i);
+                if (!keep.containsKey(sha)) {
+                    dropped.add(sha);
+                }
+            }
+        }
+        if (keep.isEmpty() && oldPacks.isEmpty()) {
+            return;
+        }
+
+        PackFile newPack = null;
+        if (!keep.isEmpty()) {
+            try (PackWriter writer = new PackWriter(repository)) {
+                for (GitObject.ObjectType type : List.of(GitObject.ObjectType.commit, GitObject.ObjectType.tree,
+                        GitObject.ObjectType.blob, GitObject.ObjectType.tag)) {
+                    for (String sha : new TreeSet<>(keep.keySet())) {
+                        if (keep.get(sha) == type) {
+                            GitObject.RawObject raw = GitObject.readRawObject(repository, sha);
+                            writer.add(sha, raw.header.type, raw.payload);
+                        }
+                    }
+                }
+                newPack = writer.finish();
+            }
+            ReachabilityBitmaps.write(repository, newPack, repository.getRefTips());
+            result.packed = newPack.getObjectCount();
+            result.reclaimedBytes -= size(newPack.getPackPath()) + size(newPack.getIdxPath())
+                    + size(ReachabilityBitmaps.getBitmapPath(newPack));
+        }
+        // the new pack is in place, so the old ones and loose copies can go
+        for (PackFile pack : oldPacks) {
+            if (newPack != null && pack.getPackPath().equals(newPack.getPackPath())) {
+                // same content packed again, the file was replaced in place
+                result.reclaimedBytes += size(newPack.getPackPath()) + size(newPack.getIdxPath())
+                        + size(ReachabilityBitmaps.getBitmapPath(newPack));
+                continue;
+            }
+            if (Files.exists(ReachabilityBitmaps.getBitmapPath(pack))) {
+                delete(ReachabilityBitmaps.getBitmapPath(pack), result);
+            }
+            delete(pack.getIdxPath(), result);
+            delete(pack.getPackPath(), result);
+        }
+        result.pruned += dropped.size();
+        for (LooseObject object : loose) {
+            if (keep.containsKey(object.sha)) {
+                delete(object.path, result);
+            }
+        }
+        loose.removeIf(object -> keep.containsKey(object.sha));
+    }
+
+    private void removeEmptyFanOutDirs() throws GitException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objectsDir)) {
+            for (Path dir : stream) {
+                if (dir.getFileName().toString().length() == 2 && Files.isDirectory(dir)) {
+                    try {
+                        Files.delete(dir);
+                    } catch (DirectoryNotEmptyException ignored) {
+                        // still has objects
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while cleaning " + objectsDir, e);
+        }
+    }
+
+    private static void delete(Path file, Result result) throws GitException {
+        try {
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file)) {
+                result.reclaimedBytes += size;
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while deleting " + file, e);
+        }
+    }
+
+    private long packDirSize() throws GitException {
+        Path packDir = PackWriter.getPackDir(repository);
+        long total = 0;
+        if (Files.isDirectory(packDir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(packDir)) {
+                for (Path file : stream) {
+                    total += size(file);
+                }
+            } catch (IOException e) {
+                throw new GitException("Error while listing " + packDir, e);
+            }
+        }
+        return total;
+    }
+
+    private static long size(Path file) throws GitException {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new GitException("Error while reading size of " + file, e);
+        }
+    }
+
+    private static Instant lastModified(Path file) throws GitException {
+        try {
+            return Files.getLastModifiedTime(file).toInstant();
+        } catch (IOException e) {
+            throw new GitException("Error while reading " + file, e);
+        }
+    }
+}
@@ -2,6 +2,8 @@ package ru.hse.fmcs;
 
 import picocli.CommandLine;
 
+import java.util.List;
+
 @CommandLine.Command(name = "add", description = "adds specified files to staging area")
 public class GitAdd implements Runnable {
     @CommandLine.Parameters
@@ -12,9 +14,7 @@ public class GitAdd implements Runnable {
         try {
             Repository repository = Repository.findRepository();
             GitIndex index = GitIndex.getIndex(repository);
-            for (var path : paths) {
-                index.addFile(path);
-            }
+            index.addFiles(List.of(paths));
         }
         catch(GitException e) {
             System.out.println("Error while adding the files to staging area");
@@ -0,0 +1,61 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+
+@CommandLine.Command(name = "annotate", description = "show the commit that last changed every line of a file")
+public class GitAnnotate implements Runnable {
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    @CommandLine.Option(names = "--rev", description = "commit to start from (default HEAD)")
+    String revision = "HEAD";
+
+    @CommandLine.Parameters(description = "file path relative to the repository root")
+    String file;
+
+    @Override
+    public void run() {
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try {
+            Repository repository = Repository.findRepository();
+            String startSha = repository.getRevisions().resolveCommit(revision);
+            String path = Path.of(file).normalize().toString().replace('\\', '/');
+            Map<String, String> prefixes = new HashMap<>();
+            new Annotator(repository, path).annotate(startSha, (lineNumber, commitSha, line) -> {
+                String prefix = prefixes.get(commitSha);
+                if (prefix == null) {
+                    GitCommitObject commit = repository.getRevisions().readCommit(commitSha);
+                    String author = commit.author.replaceAll("\\s*<[^>]*>$", "");
+                    String date = Instant.ofEpochSecond(commit.timestamp).atZone(ZoneId.systemDefault()).format(DATE_FORMATTER);
+                    prefix = repository.getAbbreviatedIds().abbreviate(commitSha, AbbreviatedIds.DEFAULT_LENGTH + 1)
+                            + " (" + author + " " + date + " ";
+                    prefixes.put(commitSha, prefix);
+                }
+                try {
+                    out.write(prefix + lineNumber + ") " + line);
+                    out.newLine();
+                } catch (IOException e) {
+                    throw new GitException("Error while writing annotations", e);
+                }
+            });
+            out.flush();
+        }
+        catch (GitException | IOException e) {
+            System.out.println("Error while annotating file");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -14,10 +14,20 @@ public class GitBlobObject extends GitObject implements Serializable {
 //        GitObject.writeObject(this);
     }
 
-    public static GitBlobObject createBlob(String filepath) throws GitException {
+    @Override
+    protected byte[] serialize() {
+        return binaryData;
+    }
+
+    // large files are stored as chunks and a manifest if large-file mode covers them, see ChunkedFiles
+    public static GitBlobObject createBlob(Repository repository, String filepath) throws GitException {
         try {
+            ChunkedFiles chunkedFiles = repository.getChunkedFiles();
+            if (chunkedFiles != null && chunkedFiles.applies(repository.getRelativePath(filepath), Files.size(Path.of(filepath)))) {
+                return chunkedFiles.store(Path.of(filepath));
+            }
             byte[] fileContent = Files.readAllBytes(Path.of(filepath));
-            GitBlobObject blob = new GitBlobObject(Repository.findRepository(), fileContent);
+            GitBlobObject blob = new GitBlobObject(repository, fileContent);
             GitObject.writeObject(blob);
             return blob;
         }
@@ -0,0 +1,59 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@CommandLine.Command(name = "bundle", description = "create <file> <refs>: write the history of refs into a file,\n" +
+        "       ^<rev> and <rev>..<ref> leave out history the receiving side has,\n" +
+        "       unbundle <file>: store the history of a bundle and update its refs")
+public class GitBundle implements Runnable {
+    @CommandLine.Parameters(index = "0", description = "create or unbundle")
+    String action;
+
+    @CommandLine.Parameters(index = "1", description = "bundle file")
+    String file;
+
+    @CommandLine.Parameters(index = "2..*")
+    List<String> revisions = new ArrayList<>();
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            Bundle.Result result;
+            switch (action) {
+                case "create":
+                    List<String> bases = new ArrayList<>();
+                    Map<String, String> refs = new LinkedHashMap<>();
+                    repository.getRevisions().resolveRefArguments(revisions.isEmpty() ? List.of("HEAD") : revisions,
+                            refs, bases);
+                    result = Bundle.create(repository, repository.getWorkingDirPath().resolve(file), refs, bases);
+                    System.out.println("Bundled " + result.commits + " commits, " + result.objects + " objects");
+                    break;
+                case "unbundle":
+                    result = Bundle.unbundle(repository, repository.getWorkingDirPath().resolve(file));
+                    System.out.println("Unbundled " + result.commits + " commits, " + result.objects + " objects");
+                    break;
+                default:
+                    throw new GitException("Unknown bundle action " + action);
+            }
+            for (String prerequisite : result.prerequisites) {
+                System.out.println("requires " + prerequisite);
+            }
+            for (Map.Entry<String, String> ref : result.refs.entrySet()) {
+                System.out.println(ref.getValue() + " " + ref.getKey());
+            }
+        }
+        catch (GitException e) {
+            System.out.println("Error while processing bundle");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+import java.nio.charset.StandardCharsets;
+
+@CommandLine.Command(name = "cat-file", description = "provide content, type or size information for repository objects")
+public class GitCatFile implements Runnable {
+    @CommandLine.Option(names = "-t", description = "show object type")
+    boolean showType;
+
+    @CommandLine.Option(names = "-s", description = "show object size")
+    boolean showSize;
+
+    @CommandLine.Option(names = "-p", description = "pretty-print object content")
+    boolean prettyPrint;
+
+    @CommandLine.Parameters
+    String object;
+
+    @Override
+    public void run() {
+        try {
+            if ((showType ? 1 : 0) + (showSize ? 1 : 0) + (prettyPrint ? 1 : 0) != 1) {
+                throw new GitException("exactly one of -t, -s, -p should be specified");
+            }
+            Repository repository = Repository.findRepository();
+            String sha = repository.convertRevisionToSha(object);
+            if (sha == null) {
+                throw new GitException("Not a valid object name " + object);
+            }
+            if (showType) {
+                System.out.println(GitObject.getObjectType(repository, sha));
+            } else if (showSize) {
+                System.out.println(GitObject.readObjectHeader(repository, sha).size);
+            } else {
+                System.out.print(prettyPrint(GitObject.readObject(repository, sha)));
+            }
+        }
+        catch (GitException e) {
+            System.out.println("Error while reading object");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    private static String prettyPrint(GitObject obj) {
+        StringBuilder sb = new StringBuilder();
+        switch (obj.format) {
+            case blob:
+                sb.append(new String(obj.binaryData));
+                break;
+            case tree:
+                GitTreeObject.Cursor cursor = ((GitTreeObject) obj).cursor();
+                while (cursor.next()) {
+                    sb.append(cursor.getMode()).append(' ')
+                            .append(cursor.getType()).append(' ')
+                            .append(cursor.getSha()).append('\t')
+                            .append(cursor.getName()).append('\n');
+                }
+                break;
+            case commit:
+                GitCommitObject commit = (GitCommitObject) obj;
+                sb.append(new String(commit.serialize(), StandardCharsets.UTF_8)).append('\n');
+                break;
+            default:
+                break;
+        }
+        return sb.toString();
+    }
+}
@@ -11,7 +11,19 @@ import picocli.CommandLine;
                 GitLog.class,
                 GitRm.class,
                 GitCheckout.class,
-                GitReset.class
+                GitReset.class,
+                GitCatFile.class,
+                GitFsMonitor.class,
+                GitSparseCheckout.class,
+                GitGc.class,
+                GitPrune.class,
+                GitCountObjects.class,
+                GitFsck.class,
+                GitAnnotate.class,
+                GitRefLog.class,
+                GitFastImport.class,
+                GitFastExport.class,
+                GitBundle.class
         }
 )
 public class GitCommand implements Runnable {
@@ -1,37 +1,134 @@
 package ru.hse.fmcs;
 
-import javax.annotation.Nullable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
+// Commit holds only references and metadata, its size doesn't depend on the size of the tree:
+//   tree <tree sha>
+//   parent <parent sha>       (zero or more)
+//   author <identity> <epoch seconds> <timezone>
+//   committer <identity> <epoch seconds> <timezone>
+//
+//   <message>
 public class GitCommitObject extends GitObject implements Serializable {
-    String parentCommitSha;
     String treeSha;
+    List<String> parents;
+    String author;
+    String committer;
+    long timestamp;     // seconds since epoch
+    String timezone;    // offset in +HHMM format
     String message;
-    GitIndex index;
 
-    public GitCommitObject(String msg, String tree, @Nullable String parent) throws GitException {
-        repository = Repository.findRepository();
+    public GitCommitObject(@NotNull Repository rep, String msg, String tree, @NotNull List<String> parentShas,
+                           String authorIdent, String committerIdent, long time, String tz) {
+        repository = rep;
         format = ObjectType.commit;
         message = msg;
         treeSha = tree;
-        parentCommitSha = parent;
-        index = GitIndex.getIndex(repository);
+        parents = parentShas;
+        author = authorIdent;
+        committer = committerIdent;
+        timestamp = time;
+        timezone = tz;
+    }
+
+    public @Nullable String getFirstParent() {
+        return parents.isEmpty() ? null : parents.get(0);
     }
 
     // return Nth ancestor commit sha
     public static String getNthAncestor(Repository rep, String curSha, int n) throws GitException {
         while (curSha != null && n != 0) {
             GitCommitObject curCommit = (GitCommitObject) GitObject.readObject(rep, curSha);
-            curSha = curCommit.parentCommitSha;
+            curSha = curCommit.getFirstParent();
             n--;
         }
         return curSha;
     }
 
+    public GitTreeObject getTree() throws GitException {
+        return (GitTreeObject) GitObject.readObject(repository, treeSha);
+    }
+
     public boolean checkIfCommitted(String filePath, String sha) throws GitException {
-        GitTreeObject tree = (GitTreeObject) GitObject.readObject(repository, treeSha);
-        return tree.checkIfMatch(filePath, sha);
+        return getTree().checkIfMatch(filePath, sha);
+    }
+
+    @Override
+    protected byte[] serialize() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("tree ").append(treeSha).append('\n');
+        for (String parent : parents) {
+            sb.append("parent ").append(parent).append('\n');
+        }
+        String signature = " " + timestamp + " " + timezone + "\n";
+        sb.append("author ").append(author).append(signature);
+        sb.append("committer ").append(committer).append(signature);
+        sb.append('\n').append(message);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
     }
 
+    public static GitCommitObject parse(Repository rep, byte[] payload) throws GitException {
+        String content = new String(payload, StandardCharsets.UTF_8);
+        int bodyStart = content.indexOf("\n\n");
+        if (bodyStart < 0) {
+            throw new GitException("Corrupted commit object");
+        }
+        String tree = null;
+        List<String> parentShas = new ArrayList<>();
+        String authorIdent = null;
+        String committerIdent = null;
+        long time = 0;
+        String tz = "+0000";
+        for (String line : content.substring(0, bodyStart).split("\n")) {
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                throw new GitException("Corrupted commit header line: " + line);
+            }
+            String key = line.substring(0, space);
+            String value = line.substring(space + 1);
+            switch (key) {
+                case "tree":
+                    tree = value;
+                    break;
+                case "parent":
+                    parentShas.add(value);
+                    break;
+                case "author":
+                case "committer":
+                    // identity may contain spaces, timestamp and timezone are the last two tokens
+                    int tzStart = value.lastIndexOf(' ');
+                    int timeStart = value.lastIndexOf(' ', tzStart - 1);
+                    if (timeStart < 0) {
+                        throw new GitException("Corrupted commit signature: " + line);
+                    }
+                    String ident = value.substring(0, timeStart);
+                    try {
+                        time = Long.parseLong(value.substring(timeStart + 1, tzStart));
+                    } catch (NumberFormatException e) {
+                        throw new GitException("Corrupted commit timestamp: " + line, e);
+                    }
+                    tz = value.substring(tzStart + 1);
+                    if (key.equals("author")) {
+                        authorIdent = ident;
+                    } else {
+                        committerIdent = ident;
+                    }
+                    break;
+                default:
+                    // unknown headers are ignored
+                    break;
+            }
+        }
+        if (tree == null) {
+            throw new GitException("Commit object doesn't reference a tree");
+        }
+        return new GitCommitObject(rep, content.substring(bodyStart + 2), tree, parentShas,
+                authorIdent, committerIdent, time, tz);
+    }
 }
@@ -18,6 +18,18 @@ public final class GitConstants {
     public static final @NotNull String BRANCH_REMOVE = "branch-remove";
     public static final @NotNull String SHOW_BRANCHES = "show-branches";
     public static final @NotNull String MERGE = "merge";
+    public static final @NotNull String CAT_FILE = "cat-file";
+    public static final @NotNull String FSMONITOR = "fsmonitor";
+    public static final @NotNull String SPARSE_CHECKOUT = "sparse-checkout";
+    public static final @NotNull String GC = "gc";
+    public static final @NotNull String PRUNE = "prune";
+    public static final @NotNull String COUNT_OBJECTS = "count-objects";
+    public static final @NotNull String FSCK = "fsck";
+    public static final @NotNull String ANNOTATE = "annotate";
+    public static final @NotNull String REFLOG = "reflog";
+    public static final @NotNull String FAST_IMPORT = "fast-import";
+    public static final @NotNull String FAST_EXPORT = "fast-export";
+    public static final @NotNull String BUNDLE = "bundle";
 
     public static final @NotNull String MASTER = "master";
 }
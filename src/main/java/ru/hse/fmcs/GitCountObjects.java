@@ -0,0 +1,85 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+@CommandLine.Command(name = "count-objects", description = "count objects and the disk space they take")
+public class GitCountObjects implements Runnable {
+    @CommandLine.Option(names = "--reachable", description = "count objects reachable from refs and HEAD by type, using reachability bitmaps if gc wrote them")
+    boolean reachable;
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            if (reachable) {
+                printReachable(repository);
+            } else {
+                printStored(repository);
+            }
+        }
+        catch (GitException e) {
+            System.out.println("Error while counting objects");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    private static void printReachable(Repository repository) throws GitException {
+        ReachabilityBitmaps bitmaps = ReachabilityBitmaps.load(repository);
+        ReachabilityBitmaps.Reachable objects = bitmaps == null
+                ? ReachabilityBitmaps.walkWithoutBitmaps(repository, repository.getRefTips())
+                : bitmaps.reachableFrom(repository.getRefTips());
+        System.out.println("commits: " + objects.count(GitObject.ObjectType.commit));
+        System.out.println("trees: " + objects.count(GitObject.ObjectType.tree));
+        System.out.println("blobs: " + objects.count(GitObject.ObjectType.blob));
+        System.out.println("tags: " + objects.count(GitObject.ObjectType.tag));
+        System.out.println("total: " + objects.total());
+        if (bitmaps == null) {
+            System.out.println("bitmaps: none");
+        } else {
+            System.out.println("bitmaps: " + bitmaps.getCommitCount() + " commits in "
+                    + bitmaps.getPack().getPackPath().getFileName() + ", " + objects.countOutsidePack() + " objects walked outside the pack");
+        }
+    }
+
+    private static void printStored(Repository repository) throws GitException {
+        Path objectsDir = repository.getGitDir().resolve("objects");
+        int count = 0;
+        long size = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(objectsDir)) {
+            for (Path dir : dirs) {
+                if (dir.getFileName().toString().length() != 2 || !Files.isDirectory(dir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> objects = Files.newDirectoryStream(dir)) {
+                    for (Path object : objects) {
+                        if (!object.getFileName().toString().startsWith(LooseObjectWriter.TEMP_PREFIX)) {
+                            count++;
+                            size += Files.size(object);
+                        }
+                    }
+                }
+            }
+            int inPack = 0;
+            long packSize = 0;
+            for (PackFile pack : repository.getPacks()) {
+                inPack += pack.getObjectCount();
+                packSize += pack.getPackSize() + Files.size(pack.getIdxPath());
+            }
+            System.out.println("count: " + count);
+            System.out.println("size: " + size / 1024 + " KiB");
+            System.out.println("in-pack: " + inPack);
+            System.out.println("packs: " + repository.getPacks().size());
+            System.out.println("size-pack: " + packSize / 1024 + " KiB");
+        } catch (IOException e) {
+            throw new GitException("Error while counting objects", e);
+        }
+    }
+}
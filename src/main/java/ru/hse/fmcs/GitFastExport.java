@@ -0,0 +1,52 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@CommandLine.Command(name = "fast-export", description = "write the history of refs to stdout as a fast-import stream")
+public class GitFastExport implements Runnable {
+    @CommandLine.Parameters(arity = "0..*", description = "refs to export (HEAD by default); ^<rev> and <rev>.. exclude history the importing side has")
+    List<String> revisions = new ArrayList<>();
+
+    @CommandLine.Option(names = {"--all"}, description = "export every ref")
+    boolean all;
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            Revisions revs = repository.getRevisions();
+            List<String> bases = new ArrayList<>();
+            Map<String, String> refs = new LinkedHashMap<>();
+            if (all) {
+                for (String refName : revs.listRefs().keySet()) {
+                    refs.put(refName, revs.resolveCommit(refName));
+                }
+            }
+            revs.resolveRefArguments(revisions.isEmpty() && !all ? List.of("HEAD") : revisions, refs, bases);
+
+            OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+            FastExport export = new FastExport(repository, out);
+            for (String base : bases) {
+                export.exclude(base);
+            }
+            for (Map.Entry<String, String> ref : refs.entrySet()) {
+                export.export(ref.getKey(), ref.getValue());
+            }
+            export.finish();
+        }
+        catch (GitException e) {
+            System.out.println("Error while exporting");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "fast-import", description = "import history from a fast-import stream on stdin into a new pack")
+public class GitFastImport implements Runnable {
+    @CommandLine.Option(names = {"--quiet"}, description = "don't print the statistics")
+    boolean quiet;
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            FastImport.Result result = new FastImport(repository, System.in, System.out).run();
+            if (!quiet) {
+                System.out.println("Imported " + result.blobs + " blobs, " + result.trees + " trees, "
+                        + result.commits + " commits, updated " + result.refs + " refs");
+            }
+        }
+        catch (GitException e) {
+            System.out.println("Error while importing");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "fsmonitor", description = "watch the working tree so that status checks only changed files")
+public class GitFsMonitor implements Runnable {
+    @CommandLine.Option(names = "--daemon", description = "run the watcher in the foreground until killed")
+    boolean daemon;
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            if (daemon) {
+                FsMonitor.runDaemon(repository);
+            } else {
+                System.out.println(FsMonitor.isDaemonRunning(repository) ? "fsmonitor is running" : "fsmonitor is not running");
+            }
+        }
+        catch (GitException e) {
+            System.out.println("Error while running fsmonitor");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
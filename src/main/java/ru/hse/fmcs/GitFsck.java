@@ -0,0 +1,55 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "fsck", description = "verify ids and links of all loose and packed objects")
+public class GitFsck implements Runnable {
+    @CommandLine.Option(names = "--threads", description = "number of objects checked at once (default: twice the number of processors)")
+    int threads = 2 * Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(names = "--no-dangling", description = "don't report objects nothing refers to")
+    boolean noDangling;
+
+    @CommandLine.Option(names = "--no-progress", description = "don't report progress")
+    boolean noProgress;
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            Fsck fsck = new Fsck(repository, new Fsck.Reporter() {
+                @Override
+                public void progress(int checked, int total) {
+                    if (!noProgress) {
+                        // progress goes to stderr and is rewritten in place, so the report stays greppable
+                        System.err.print("\rChecking objects: " + (total == 0 ? 100 : checked * 100L / total) + "% (" + checked + "/" + total + ")");
+                        if (checked == total) {
+                            System.err.println();
+                        }
+                    }
+                }
+
+                @Override
+                public void error(String sha, String message) {
+                    System.out.println("error in " + sha + ": " + message);
+                }
+
+                @Override
+                public void dangling(String sha, GitObject.ObjectType type) {
+                    if (!noDangling) {
+                        System.out.println("dangling " + type + " " + sha);
+                    }
+                }
+            });
+            int errors = fsck.run(Math.max(1, threads));
+            System.out.println(errors == 0 ? "No errors found" : errors + " errors found");
+        }
+        catch (GitException e) {
+            System.out.println("Error while checking repository");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "gc", description = "pack reachable objects and prune unreachable ones")
+public class GitGc implements Runnable {
+    @CommandLine.Option(names = "--prune", description = "prune unreachable objects older than this: now, never or <number>[dhms] (default gc.pruneexpire or 14d)")
+    String prune;
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            GarbageCollector collector = new GarbageCollector(repository,
+                    prune == null ? GarbageCollector.getDefaultExpire(repository) : GarbageCollector.parseExpire(prune));
+            GarbageCollector.Result result = collector.gc();
+            System.out.println("Packed " + result.packed + " objects, pruned " + result.pruned
+                    + " unreachable objects, objects took " + result.sizeBefore + " bytes, now " + result.sizeAfter + " bytes");
+        }
+        catch (GitException e) {
+            System.out.println("Error while collecting garbage");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
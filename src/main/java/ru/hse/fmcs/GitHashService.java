@@ -0,0 +1,195 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+
+// Computes object ids. MessageDigest instances are expensive to look up, so every thread keeps
+// a small pool of them per algorithm and hashers return their digest to the pool when finished.
+public final class GitHashService {
+    public enum ObjectFormat {
+        SHA1("sha1", "SHA-1", 20),
+        SHA256("sha256", "SHA-256", 32);
+
+        public final String configName;
+        public final String algorithm;
+        public final int rawLength;
+
+        ObjectFormat(String configName, String algorithm, int rawLength) {
+            this.configName = configName;
+            this.algorithm = algorithm;
+            this.rawLength = rawLength;
+        }
+
+        public int hexLength() {
+            return rawLength * 2;
+        }
+
+        public static @NotNull ObjectFormat fromConfig(@Nullable String name) throws GitException {
+            if (name == null) {
+                return SHA1;
+            }
+            for (ObjectFormat format : values()) {
+                if (format.configName.equalsIgnoreCase(name.trim())) {
+                    return format;
+                }
+            }
+            throw new GitException("Unsupported object format " + name);
+        }
+    }
+
+    private static final GitHashService SHA1_SERVICE = new GitHashService(ObjectFormat.SHA1);
+    private static final GitHashService SHA256_SERVICE = new GitHashService(ObjectFormat.SHA256);
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectFormat format;
+    private final MessageDigest prototype;
+    private final ThreadLocal<ArrayDeque<MessageDigest>> pool = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private GitHashService(ObjectFormat objectFormat) {
+        format = objectFormat;
+        try {
+            prototype = MessageDigest.getInstance(objectFormat.algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Hash algorithm " + objectFormat.algorithm + " is not available", e);
+        }
+    }
+
+    public static @NotNull GitHashService of(@NotNull ObjectFormat format) {
+        return format == ObjectFormat.SHA256 ? SHA256_SERVICE : SHA1_SERVICE;
+    }
+
+    public @NotNull ObjectFormat getFormat() {
+        return format;
+    }
+
+    public boolean isValidId(@Nullable String id) {
+        if (id == null || id.length() != format.hexLength()) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.digit(id.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public @NotNull Hasher newHasher() {
+        return new Hasher(acquire());
+    }
+
+    public @NotNull String hash(byte[] data) {
+        return newHasher().update(data).digestHex();
+    }
+
+    // object id as git computes it: the hash of the "<type> <size>\0" header followed by the payload, so objects
+    // of different types never share an id even if their payloads are equal
+    public @NotNull String hashObject(@NotNull GitObject.ObjectType type, byte[] payload) {
+        return newHasher().update(GitObject.header(type, payload.length)).update(payload).digestHex();
+    }
+
+    // the stream must hold exactly size bytes, a file that changed after its size was read is reported
+    public @NotNull String hashObject(@NotNull GitObject.ObjectType type, long size, @NotNull InputStream in) throws IOException {
+        try (Hasher hasher = newHasher()) {
+            hasher.update(GitObject.header(type, size));
+            if (hasher.updateCounting(in) != size) {
+                throw new IOException("Size changed while hashing");
+            }
+            return hasher.digestHex();
+        }
+    }
+
+    private MessageDigest acquire() {
+        MessageDigest md = pool.get().pollFirst();
+        if (md != null) {
+            return md;
+        }
+        try {
+            return (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            try {
+                return MessageDigest.getInstance(format.algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    private void release(MessageDigest md) {
+        md.reset();
+        pool.get().offerFirst(md);
+    }
+
+    // Incremental hash computation; the hasher must not be used after digest() was called. A hasher that may be
+    // abandoned half way, e.g. when reading its input fails, is closed to put its digest back into the pool.
+    public final class Hasher implements AutoCloseable {
+        private MessageDigest md;
+        private byte[] buffer;
+
+        private Hasher(MessageDigest digest) {
+            md = digest;
+        }
+
+        public Hasher update(byte[] data) {
+            md.update(data);
+            return this;
+        }
+
+        public Hasher update(byte[] data, int offset, int length) {
+            md.update(data, offset, length);
+            return this;
+        }
+
+        // works for both heap and direct buffers, consumes the remaining bytes of the buffer
+        public Hasher update(@NotNull ByteBuffer data) {
+            md.update(data);
+            return this;
+        }
+
+        public Hasher update(@NotNull InputStream in) throws IOException {
+            updateCounting(in);
+            return this;
+        }
+
+        // returns the number of bytes read from the stream
+        private long updateCounting(InputStream in) throws IOException {
+            if (buffer == null) {
+                buffer = new byte[STREAM_BUFFER_SIZE];
+            }
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+                total += read;
+            }
+            return total;
+        }
+
+        public byte[] digest() {
+            byte[] result = md.digest();
+            release(md);
+            md = null;
+            return result;
+        }
+
+        public @NotNull String digestHex() {
+            return Hex.encodeHexString(digest());
+        }
+
+        @Override
+        public void close() {
+            if (md != null) {
+                release(md);
+                md = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// Rules of one .gitignore file compiled into a trie of path segments. Patterns without a slash are inserted
+// below a "**" node, so every pattern is matched relative to the directory of the file by one simultaneous walk
+// of all trie branches over the segments of the path.
+public class GitIgnore {
+    private static final String ANY_DEPTH = "**";
+
+    private static class Rule {
+        final int order;            // later rules override earlier ones
+        final boolean negated;
+        final boolean directoryOnly;
+
+        Rule(int order, boolean negated, boolean directoryOnly) {
+            this.order = order;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+        }
+    }
+
+    private static class Node {
+        final boolean anyDepth;                             // "**" node consumes zero or more segments
+        final Map<String, Node> literalChildren = new HashMap<>();
+        final Map<String, Node> globChildren = new LinkedHashMap<>();
+        final Map<String, Pattern> globPatterns = new HashMap<>();
+        Node anyDepthChild;
+        final List<Rule> rules = new ArrayList<>();         // rules whose pattern ends in this node
+
+        Node(boolean isAnyDepth) {
+            anyDepth = isAnyDepth;
+        }
+    }
+
+    private final Node root = new Node(false);
+    private int ruleCount = 0;
+
+    public static @NotNull GitIgnore parse(@NotNull List<String> lines) {
+        GitIgnore ignore = new GitIgnore();
+        for (String line : lines) {
+            ignore.addPattern(line);
+        }
+        return ignore;
+    }
+
+    public static @Nullable GitIgnore load(@NotNull Path file) throws GitException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new GitException("Error while reading ignore file " + file, e);
+        }
+    }
+
+    public boolean isEmpty() {
+        return ruleCount == 0;
+    }
+
+    public void addPattern(String line) {
+        String pattern = trimTrailingSpaces(line);
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return;
+        }
+        boolean negated = false;
+        if (pattern.startsWith("!")) {
+            negated = true;
+            pattern = pattern.substring(1);
+        } else if (pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+            pattern = pattern.substring(1);
+        }
+        boolean directoryOnly = false;
+        if (pattern.endsWith("/")) {
+            directoryOnly = true;
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        // a slash at the beginning or in the middle anchors the pattern to the directory of the ignore file
+        boolean anchored = pattern.contains("/");
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        if (pattern.isEmpty()) {
+            return;
+        }
+        List<String> segments = new ArrayList<>();
+        if (!anchored) {
+            segments.add(ANY_DEPTH);
+        }
+        for (String segment : pattern.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        Node node = root;
+        for (String segment : segments) {
+            node = child(node, segment);
+        }
+        node.rules.add(new Rule(ruleCount++, negated, directoryOnly));
+    }
+
+    private static Node child(Node node, String segment) {
+        if (segment.equals(ANY_DEPTH)) {
+            if (node.anyDepthChild == null) {
+                node.anyDepthChild = new Node(true);
+            }
+            return node.anyDepthChild;
+        }
+        if (!isGlob(segment)) {
+            return node.literalChildren.computeIfAbsent(segment, s -> new Node(false));
+        }
+        node.globPatterns.computeIfAbsent(segment, s -> Pattern.compile(globToRegex(s)));
+        return node.globChildren.computeIfAbsent(segment, s -> new Node(false));
+    }
+
+    // Decides whether the path (segments starting at from, relative to the ignore file directory) is ignored.
+    // Returns null if no rule matches, so that the decision can be left to the ignore files of parent directories.
+    public @Nullable Boolean match(@NotNull List<String> segments, int from, boolean isDirectory) {
+        Set<Node> active = new HashSet<>();
+        addWithClosure(active, root);
+        for (int i = from; i < segments.size() && !active.isEmpty(); i++) {
+            String segment = segments.get(i);
+            Set<Node> next = new HashSet<>();
+            for (Node node : active) {
+                if (node.anyDepth) {
+                    addWithClosure(next, node);
+                }
+                Node literal = node.literalChildren.get(segment);
+                if (literal != null) {
+                    addWithClosure(next, literal);
+                }
+                for (var glob : node.globChildren.entrySet()) {
+                    if (node.globPatterns.get(glob.getKey()).matcher(segment).matches()) {
+                        addWithClosure(next, glob.getValue());
+                    }
+                }
+            }
+            active = next;
+        }
+        Rule winner = null;
+        for (Node node : active) {
+            for (Rule rule : node.rules) {
+                if ((!rule.directoryOnly || isDirectory) && (winner == null || rule.order > winner.order)) {
+                    winner = rule;
+                }
+            }
+        }
+        return winner == null ? null : !winner.negated;
+    }
+
+    private static void addWithClosure(Set<Node> nodes, Node node) {
+        while (node != null && nodes.add(node)) {
+            node = node.anyDepthChild;
+        }
+    }
+
+    private static boolean isGlob(String segment) {
+        return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0 || segment.indexOf('[') >= 0 || segment.indexOf('\\') >= 0;
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    sb.append(".*");
+                    break;
+                case '?':
+                    sb.append('.');
+                    break;
+                case '[':
+                    int close = glob.indexOf(']', i + 2);
+                    if (close < 0) {
+                        sb.append("\\[");
+                        break;
+                    }
+                    String range = glob.substring(i + 1, close);
+                    if (range.startsWith("!")) {
+                        range = "^" + range.substring(1);
+                    }
+                    sb.append('[').append(range.replace("\\", "\\\\")).append(']');
+                    i = close;
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        sb.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                    break;
+                default:
+                    sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String trimTrailingSpaces(String line) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+}
@@ -1,29 +1,49 @@
 package ru.hse.fmcs;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import picocli.CommandLine;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 // This class represents current staging area
 public class GitIndex implements Serializable {
+    private static final long PORCELAIN_FLUSH_INTERVAL_NANOS = 50_000_000;
+    private static final String SHARED_INDEX_PREFIX = "sharedindex.";
+    private static final int DEFAULT_MAX_PERCENT_CHANGE = 20;
+
     Repository repository;
     File indexFile;
-    TreeSet<IndexItem> stagedItemsSet;
-    Map<String, IndexItem> pathToIndexItem;
+    transient TreeSet<IndexItem> stagedItemsSet;        // entries are written by writeObject
+    transient Map<String, IndexItem> pathToIndexItem;
     GitTreeObject tree;
+    UntrackedCache untrackedCache;   // extension, present while core.untrackedcache is enabled
+    String fsmonitorToken;           // fsmonitor state as of the last status, see FsMonitor
+    TreeSet<String> fsmonitorUntracked;
+    // Split index: most entries live in the shared file git/sharedindex.<id>, this file keeps only the entries
+    // replaced or removed since then, and the flags of all entries. Null while every entry is stored here.
+    String sharedIndexId;
+    private transient Map<String, IndexItem> sharedEntries;     // shared entries as they are on disk
+    private transient List<IndexItem> replacedEntries;
+    private transient List<String> removedEntries;
+    private transient BitSet fsmonitorValidBits;   // flags of all entries in path order, read before the merge
+    private transient BitSet skipWorktreeBits;
+    private transient FileTime indexModified;   // of the index file this was read from, null for a new index
 
     public static class IndexItem implements Comparable<IndexItem>, Serializable {
         public String filePath;
         public String sha;
         public String lastModified;
+        public long size = -1;
+        public boolean fsmonitorValid;  // file hasn't changed since it was last compared, per fsmonitor
+        public boolean skipWorktree;    // outside the sparse-checkout cone, the file isn't in the working tree
 
         public IndexItem(String path, String hash, FileTime time) {
             filePath = path;
@@ -31,6 +51,34 @@ public class GitIndex implements Serializable {
             lastModified = FileTimeFormatter.fileTimeToString(time);
         }
 
+        IndexItem(IndexItem other) {
+            filePath = other.filePath;
+            sha = other.sha;
+            lastModified = other.lastModified;
+            size = other.size;
+            fsmonitorValid = other.fsmonitorValid;
+            skipWorktree = other.skipWorktree;
+        }
+
+        // flags aren't compared: they change on every status, so they are written with the delta for all entries
+        boolean sameAs(IndexItem other) {
+            return sha.equals(other.sha) && lastModified.equals(other.lastModified) && size == other.size;
+        }
+
+        public void updateStat(BasicFileAttributes attributes) {
+            lastModified = FileTimeFormatter.fileTimeToString(attributes.lastModifiedTime());
+            size = attributes.size();
+        }
+
+        // stat data matches the one recorded when the file was staged, so its content can't differ. A file modified
+        // no earlier than the index was written is racy: it may have changed again within the same timestamp tick,
+        // so its stat data proves nothing and the content has to be hashed.
+        public boolean statMatches(BasicFileAttributes attributes, @Nullable FileTime indexModified) {
+            FileTime modified = attributes.lastModifiedTime();
+            return (indexModified == null || modified.compareTo(indexModified) < 0)
+                    && size == attributes.size() && lastModified.equals(FileTimeFormatter.fileTimeToString(modified));
+        }
+
         @Override
         public int compareTo(@NotNull GitIndex.IndexItem o) {
             return filePath.compareTo(o.filePath);
@@ -56,11 +104,40 @@ public class GitIndex implements Serializable {
         repository = rep;
         indexFile = new File(repository.getGitDir().resolve("index").toString());
         assert (!indexFile.exists());
-        tree = new GitTreeObject();
+        tree = new GitTreeObject(rep, null);
         stagedItemsSet = new TreeSet<>();
         pathToIndexItem = new HashMap<>();
     }
 
+    private GitIndex(@NotNull Repository rep, @NotNull GitTreeObject rootTree) {
+        repository = rep;
+        indexFile = new File(repository.getIndexPath().toString());
+        tree = rootTree;
+        stagedItemsSet = new TreeSet<>();
+        pathToIndexItem = new HashMap<>();
+    }
+
+    // builds the staging area matching the tree of a commit; modification times are filled in when files are written
+    public static GitIndex fromTree(@NotNull Repository repository, @NotNull GitTreeObject rootTree) throws GitException {
+        GitIndex index = new GitIndex(repository, rootTree);
+        Map<String, String> pathToBlobSha = new TreeMap<>();
+        rootTree.collectBlobs("", pathToBlobSha);
+        SparseCheckout sparse = SparseCheckout.load(repository);
+        for (var entry : pathToBlobSha.entrySet()) {
+            IndexItem item = new IndexItem(entry.getKey(), entry.getValue(), FileTime.fromMillis(0));
+            item.skipWorktree = sparse != null && !sparse.includesFile(item.filePath);
+            index.stagedItemsSet.add(item);
+            index.pathToIndexItem.put(item.filePath, item);
+        }
+        if (Files.exists(repository.getIndexPath()) && repository.getConfigBoolean("core", "splitindex", false)) {
+            // entries common with the previous revision stay in the shared file
+            GitIndex previous = readIndex(repository);
+            index.sharedIndexId = previous.sharedIndexId;
+            index.sharedEntries = previous.sharedEntries;
+        }
+        return index;
+    }
+
     public static GitIndex getIndex(@NotNull Repository repository) throws GitException {
         if (Files.exists(repository.getIndexPath())) {
             return readIndex(repository);
@@ -70,60 +147,226 @@ public class GitIndex implements Serializable {
 
     private static GitIndex readIndex(Repository repository) throws GitException {
         try (FileInputStream fis = new FileInputStream(repository.getGitDir().resolve("index").toString());
-             ObjectInputStream ois = new ObjectInputStream(fis)) {
-            return (GitIndex) ois.readObject();
+             ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(fis))) {
+            FileTime modified = Files.getLastModifiedTime(repository.getIndexPath());
+            GitIndex index = (GitIndex) ois.readObject();
+            index.indexModified = modified;
+            index.repository = repository;
+            index.tree.repository = repository;
+            if (index.sharedIndexId != null) {
+                index.mergeSharedIndex();
+            }
+            return index;
         } catch (IOException | ClassNotFoundException e) {
             throw new GitException("Error while index deserialization");
         }
     }
 
+    private void mergeSharedIndex() throws GitException {
+        List<IndexItem> shared = readSharedIndex(repository.getGitDir().resolve(SHARED_INDEX_PREFIX + sharedIndexId));
+        sharedEntries = new HashMap<>();
+        for (IndexItem item : shared) {
+            sharedEntries.put(item.filePath, item);
+        }
+        Set<String> removed = new HashSet<>(removedEntries);
+        Set<String> replaced = new HashSet<>();
+        for (IndexItem item : replacedEntries) {
+            replaced.add(item.filePath);
+            putItem(item);
+        }
+        for (IndexItem item : shared) {
+            if (!removed.contains(item.filePath) && !replaced.contains(item.filePath)) {
+                putItem(new IndexItem(item));   // shared entries are kept unchanged to compute the next delta
+            }
+        }
+        int i = 0;
+        for (IndexItem item : stagedItemsSet) {
+            item.fsmonitorValid = fsmonitorValidBits.get(i);
+            item.skipWorktree = skipWorktreeBits.get(i);
+            i++;
+        }
+        replacedEntries = null;
+        removedEntries = null;
+        fsmonitorValidBits = null;
+        skipWorktreeBits = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<IndexItem> readSharedIndex(Path path) throws GitException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return (List<IndexItem>) ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new GitException("Error while reading shared index " + path, e);
+        }
+    }
+
+    private void putItem(IndexItem item) {
+        stagedItemsSet.add(item);
+        pathToIndexItem.put(item.filePath, item);
+    }
+
     public void writeIndex() throws GitException {
+        // the index must never refer to objects that may still be lost in a crash
+        repository.flushObjectWrites();
+        String obsoleteSharedIndexId = null;
+        if (repository.getConfigBoolean("core", "splitindex", false)) {
+            computeDelta();
+            int maxPercentChange = repository.getConfigInt("splitindex", "maxpercentchange", DEFAULT_MAX_PERCENT_CHANGE);
+            if (sharedIndexId == null || (replacedEntries.size() + removedEntries.size()) * 100L > (long) sharedEntries.size() * maxPercentChange) {
+                // delta has grown too big, it's folded into a new shared file
+                obsoleteSharedIndexId = sharedIndexId;
+                writeSharedIndex();
+                computeDelta();
+            }
+        } else if (sharedIndexId != null) {
+            obsoleteSharedIndexId = sharedIndexId;
+            sharedIndexId = null;
+            sharedEntries = null;
+        }
         try (FileOutputStream fos = new FileOutputStream(repository.getGitDir().resolve("index").toString());
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
             oos.writeObject(this);
             oos.flush();
         } catch (IOException e) {
             throw new GitException("Error while serializing index", e);
         }
+        if (obsoleteSharedIndexId != null && !obsoleteSharedIndexId.equals(sharedIndexId)) {
+            try {
+                Files.deleteIfExists(repository.getGitDir().resolve(SHARED_INDEX_PREFIX + obsoleteSharedIndexId));
+            } catch (IOException e) {
+                throw new GitException("Error while removing obsolete shared index", e);
+            }
+        }
+    }
+
+    // entries that differ from the shared ones, everything if there is no shared file yet
+    private void computeDelta() {
+        replacedEntries = new ArrayList<>();
+        removedEntries = new ArrayList<>();
+        for (IndexItem item : stagedItemsSet) {
+            IndexItem shared = sharedEntries == null ? null : sharedEntries.get(item.filePath);
+            if (shared == null || !shared.sameAs(item)) {
+                replacedEntries.add(item);
+            }
+        }
+        if (sharedEntries != null) {
+            for (String path : sharedEntries.keySet()) {
+                if (!pathToIndexItem.containsKey(path)) {
+                    removedEntries.add(path);
+                }
+            }
+            Collections.sort(removedEntries);
+        }
+    }
+
+    private void writeSharedIndex() throws GitException {
+        ArrayList<IndexItem> shared = new ArrayList<>();
+        for (IndexItem item : stagedItemsSet) {
+            shared.add(new IndexItem(item));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(shared);
+        } catch (IOException e) {
+            throw new GitException("Error while serializing shared index", e);
+        }
+        byte[] data = bytes.toByteArray();
+        String id = repository.getHashService().hash(data);
+        Path path = repository.getGitDir().resolve(SHARED_INDEX_PREFIX + id);
+        try {
+            if (!Files.exists(path)) {
+                Files.write(path, data);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while writing shared index", e);
+        }
+        sharedIndexId = id;
+        sharedEntries = new HashMap<>();
+        for (IndexItem item : shared) {
+            sharedEntries.put(item.filePath, item);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        if (sharedIndexId == null) {
+            out.writeObject(new ArrayList<>(stagedItemsSet));
+        } else {
+            out.writeObject(replacedEntries);
+            out.writeObject(removedEntries);
+            BitSet fsmonitorValid = new BitSet();
+            BitSet skipWorktree = new BitSet();
+            int i = 0;
+            for (IndexItem item : stagedItemsSet) {
+                fsmonitorValid.set(i, item.fsmonitorValid);
+                skipWorktree.set(i, item.skipWorktree);
+                i++;
+            }
+            out.writeObject(fsmonitorValid);
+            out.writeObject(skipWorktree);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        stagedItemsSet = new TreeSet<>();
+        pathToIndexItem = new HashMap<>();
+        if (sharedIndexId == null) {
+            for (IndexItem item : (List<IndexItem>) in.readObject()) {
+                putItem(item);
+            }
+        } else {
+            // merged with the shared file by readIndex, which knows where the repository is
+            replacedEntries = (List<IndexItem>) in.readObject();
+            removedEntries = (List<String>) in.readObject();
+            fsmonitorValidBits = (BitSet) in.readObject();
+            skipWorktreeBits = (BitSet) in.readObject();
+        }
     }
 
     public void addFile(String path) throws GitException {
+        addFiles(List.of(path));
+    }
+
+    // the index is written once, after the last file, so that objects of all files go in one fsync batch
+    public void addFiles(List<String> paths) throws GitException {
         try {
-            if (!indexFile.exists()) {
-                indexFile.createNewFile();
+            for (String path : paths) {
+                stageFile(path);
+                System.out.println("Add completed successfully");
             }
+        } finally {
+            writeIndex();
+        }
+    }
+
+    private void stageFile(String path) throws GitException {
+        try {
             // path should be relative to the repository root folder!
             File file = new File(repository.getAbsPathInWorkDir(path));
             if (!file.exists()) {
                 throw new GitException("File doesn't exist");
             }
 
-            GitBlobObject blob = GitBlobObject.createBlob(file.getAbsolutePath());
+            GitBlobObject blob = GitBlobObject.createBlob(repository, file.getAbsolutePath());
             IndexItem item = new IndexItem(repository.getRelativePath(file.getAbsolutePath()), GitObject.getObjectHash(blob), Files.getLastModifiedTime(file.toPath()));
+            item.updateStat(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
             if (stagedItemsSet.contains(item)) {
                 assert (Objects.equals(stagedItemsSet.ceiling(item), stagedItemsSet.floor(item)));
                 IndexItem prev = stagedItemsSet.ceiling(item);
                 assert prev != null;
-                if (!prev.lastModified.equals(item.lastModified)) {
-                    stagedItemsSet.remove(prev);
-                    stagedItemsSet.add(item);
-                    pathToIndexItem.put(repository.getRelativePath(file.getAbsolutePath()), item);
-                    tree.descendAndRewrite(path, blob);
-                    writeIndex();
-                    System.out.println("Add completed successfully");
-                    return;
+                if (prev.lastModified.equals(item.lastModified)) {
+                    throw new GitException("File is already in staged area");
                 }
-                throw new GitException("File is already in staged area");
-            } else {
-                stagedItemsSet.add(item);
-                pathToIndexItem.put(repository.getRelativePath(file.getAbsolutePath()), item);
+                stagedItemsSet.remove(prev);
             }
+            stagedItemsSet.add(item);
+            pathToIndexItem.put(item.filePath, item);
             tree.descendAndRewrite(path, blob);
-            writeIndex();
         } catch (IOException e) {
             throw new GitException("Couldn't read from the file", e);
         }
-        System.out.println("Add completed successfully");
     }
 
     public void removeFile(String path) throws GitException {
@@ -138,6 +381,9 @@ public class GitIndex implements Serializable {
             stagedItemsSet.remove(pathToIndexItem.get(relativePath));
             pathToIndexItem.remove(relativePath);
             tree.descendAndRewrite(relativePath, null);
+            if (fsmonitorUntracked != null && !new WorkTreeWalker(repository, this, null).isIgnoredPath(relativePath, false)) {
+                fsmonitorUntracked.add(relativePath);
+            }
         }
         writeIndex();
         System.out.println("Rm completed successful");
@@ -195,8 +441,16 @@ public class GitIndex implements Serializable {
     }
 
     private String getFileHash(Path absolutePath) throws GitException {
+        ChunkedFiles chunkedFiles = repository.getChunkedFiles();
         try {
-            return GitObject.computeSHA1(Files.readAllBytes(absolutePath));
+            if (chunkedFiles != null && chunkedFiles.applies(repository.getRelativePath(absolutePath.toString()), Files.size(absolutePath))) {
+                return chunkedFiles.hash(absolutePath);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while reading size of file " + absolutePath, e);
+        }
+        try (InputStream in = Files.newInputStream(absolutePath)) {
+            return repository.getHashService().hashObject(GitObject.ObjectType.blob, Files.size(absolutePath), in);
         }
         catch(IOException e) {
             throw new GitException("Error while reading bytes from file " + absolutePath);
@@ -205,52 +459,313 @@ public class GitIndex implements Serializable {
 
     public void updateFilesInfo(Set<String> untrackedFiles, Set<String> changedToBeCommitted, Set<String> changesNotStagedForCommit, Set<String> removedFiles) throws GitException {
         Path workingDirPath = repository.getWorkingDirPath();
-        GitCommitObject headCommit = null;
-        if (repository.getHead() != null) {
-            headCommit = (GitCommitObject) GitObject.readObject(repository, repository.getHead());
-        }
-        try (Stream<Path> paths = Files.walk(workingDirPath)) {
-            List<Path> pathList = paths.filter(path -> !path.startsWith(repository.getGitDir()) && !path.equals(workingDirPath) && Files.isRegularFile(path)).map(workingDirPath::relativize).collect(Collectors.toList());
-            for (var relativePath : pathList) {
-                String relativePathStr = relativePath.toString();
-                Path absolutePath = Path.of(repository.getAbsPathInWorkDir(relativePathStr));
-                IndexItem item = pathToIndexItem.get(relativePathStr);
-                if (item == null) {
-                    if (headCommit != null && headCommit.checkIfCommitted(relativePathStr, null)) {
-                        removedFiles.add(relativePathStr);
-                    } else {
-                        untrackedFiles.add(relativePathStr);
+        // index against HEAD: one merged walk of the HEAD tree and the index cache tree
+        Set<String> stagedRemovals = new HashSet<>();
+        String headSha = repository.getHead();
+        GitTreeObject headTree = headSha == null ? null : ((GitCommitObject) GitObject.readObject(repository, headSha)).getTree();
+        GitTreeObject.diff(headTree, tree, "", (path, headBlobSha, indexBlobSha) -> {
+            if (indexBlobSha == null) {
+                stagedRemovals.add(path);
+                removedFiles.add(path);
+            } else {
+                changedToBeCommitted.add(path);
+            }
+        });
+        // working tree against index, ignored files are skipped by the walker
+        configureUntrackedCache();
+        boolean useFsMonitor = repository.getConfigBoolean("core", "fsmonitor", false);
+        if (useFsMonitor && updateFromFsMonitor(stagedRemovals, untrackedFiles, changesNotStagedForCommit, removedFiles)) {
+            return;
+        }
+        // the token is taken before the walk, so changes made during it are reported next time
+        String token = useFsMonitor ? FsMonitor.currentToken(repository) : null;
+        TreeSet<String> untracked = new TreeSet<>();
+        new WorkTreeWalker(repository, this, untrackedCache).walk((relativePathStr, attributes) -> {
+            IndexItem item = pathToIndexItem.get(relativePathStr);
+            if (item != null && item.skipWorktree) {
+                return;
+            }
+            if (item == null) {
+                untracked.add(relativePathStr);
+                if (!stagedRemovals.contains(relativePathStr)) {
+                    untrackedFiles.add(relativePathStr);
+                }
+            } else if (!item.statMatches(attributes, indexModified) && !item.sha.equals(getFileHash(workingDirPath.resolve(relativePathStr)))) {
+                changesNotStagedForCommit.add(relativePathStr);
+                item.fsmonitorValid = false;
+            } else {
+                item.fsmonitorValid = true;
+            }
+        });
+        boolean fsmonitorChanged = !Objects.equals(token, fsmonitorToken);
+        fsmonitorToken = token;
+        fsmonitorUntracked = token == null ? null : untracked;
+        if (fsmonitorChanged || (untrackedCache != null && untrackedCache.isModified())) {
+            writeIndex();
+        }
+        for (var indexItem : stagedItemsSet) {
+            if (indexItem.skipWorktree) {
+                continue;
+            }
+            Path absolutePath = Path.of(repository.getAbsPathInWorkDir(indexItem.filePath));
+            String relativePathStr = indexItem.filePath;
+            if (!Files.exists(absolutePath)) {
+                removedFiles.add(relativePathStr);
+                indexItem.fsmonitorValid = false;
+            }
+        }
+    }
+
+    // Compares only what fsmonitor reported as changed since the previous status. Returns false if the daemon
+    // can't tell what changed, then the whole working tree has to be walked.
+    private boolean updateFromFsMonitor(Set<String> stagedRemovals, Set<String> untrackedFiles, Set<String> changesNotStagedForCommit,
+                                        Set<String> removedFiles) throws GitException {
+        FsMonitor.Changes changes = FsMonitor.queryChanges(repository, fsmonitorToken);
+        if (changes == null || fsmonitorUntracked == null) {
+            return false;
+        }
+        Path workingDirPath = repository.getWorkingDirPath();
+        WorkTreeWalker walker = new WorkTreeWalker(repository, this, null);
+        for (String path : changes.paths) {
+            if (Path.of(path).getFileName().toString().equals(WorkTreeWalker.IGNORE_FILE)) {
+                return false;   // changed ignore rules may affect any file below
+            }
+        }
+        for (String path : changes.paths) {
+            String dirPrefix = path + File.separator;
+            IndexItem item = pathToIndexItem.get(path);
+            if (item != null) {
+                item.fsmonitorValid = false;
+            }
+            for (IndexItem under : stagedItemsSet.tailSet(new IndexItem(dirPrefix, null, FileTime.fromMillis(0)))) {
+                if (!under.filePath.startsWith(dirPrefix)) {
+                    break;
+                }
+                under.fsmonitorValid = false;
+            }
+            fsmonitorUntracked.remove(path);
+            fsmonitorUntracked.subSet(dirPrefix, dirPrefix + Character.MAX_VALUE).clear();
+        }
+        for (String path : changes.paths) {
+            Path absolutePath = workingDirPath.resolve(path);
+            if (Files.isDirectory(absolutePath, LinkOption.NOFOLLOW_LINKS)) {
+                walker.walkSubtree(path, (relativePathStr, attributes) -> {
+                    if (!isTracked(relativePathStr)) {
+                        fsmonitorUntracked.add(relativePathStr);
                     }
+                });
+            } else if (Files.isRegularFile(absolutePath) && !isTracked(path) && !walker.isIgnoredPath(path, false)
+                    && walker.isInSparseCone(path)) {
+                fsmonitorUntracked.add(path);
+            }
+        }
+        boolean modified = !changes.token.equals(fsmonitorToken);
+        for (IndexItem item : stagedItemsSet) {
+            if (item.fsmonitorValid || item.skipWorktree) {
+                continue;
+            }
+            Path absolutePath = workingDirPath.resolve(item.filePath);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+            } catch (IOException e) {
+                removedFiles.add(item.filePath);
+                continue;
+            }
+            if (!item.statMatches(attributes, indexModified) && !item.sha.equals(getFileHash(absolutePath))) {
+                changesNotStagedForCommit.add(item.filePath);
+            } else {
+                item.fsmonitorValid = true;
+                modified = true;
+            }
+        }
+        for (String path : fsmonitorUntracked) {
+            if (!isTracked(path) && !stagedRemovals.contains(path)) {
+                untrackedFiles.add(path);
+            }
+        }
+        fsmonitorToken = changes.token;
+        if (modified) {
+            writeIndex();
+        }
+        return true;
+    }
+
+    private void configureUntrackedCache() throws GitException {
+        if (repository.getConfigBoolean("core", "untrackedcache", false)) {
+            if (untrackedCache == null) {
+                untrackedCache = new UntrackedCache();
+            }
+        } else if (untrackedCache != null) {
+            untrackedCache = null;
+            writeIndex();
+        }
+    }
+
+    // Prints "XY path" records (X: index against HEAD, Y: working tree against index, "??" for untracked files)
+    // sorted by path while the working tree is being walked. Only staged changes are collected up front.
+    public void printPorcelainStatus(boolean nulTerminated) throws GitException {
+        TreeMap<String, Character> stagedChanges = new TreeMap<>();
+        String headSha = repository.getHead();
+        GitTreeObject headTree = headSha == null ? null : ((GitCommitObject) GitObject.readObject(repository, headSha)).getTree();
+        GitTreeObject.diff(headTree, tree, "", (path, headBlobSha, indexBlobSha) ->
+                stagedChanges.put(path, headBlobSha == null ? 'A' : indexBlobSha == null ? 'D' : 'M'));
+        configureUntrackedCache();
+        PorcelainWriter writer = new PorcelainWriter(System.out, nulTerminated ? '\0' : '\n', stagedChanges);
+        new WorkTreeWalker(repository, this, untrackedCache).walk(writer::visit);
+        writer.finish();
+        if (untrackedCache != null && untrackedCache.isModified()) {
+            writeIndex();
+        }
+    }
+
+    // Merges the sorted walk of the working tree with the sorted index entries and staged removals.
+    private class PorcelainWriter {
+        private final OutputStream out;
+        private final char terminator;
+        private final Map<String, Character> stagedChanges;
+        private final Iterator<IndexItem> items = stagedItemsSet.iterator();
+        private final Iterator<String> stagedRemovals;
+        private IndexItem nextItem;
+        private String nextRemoval;
+        private long lastFlushNanos = System.nanoTime();
+
+        PorcelainWriter(OutputStream output, char recordTerminator, TreeMap<String, Character> changes) {
+            out = new BufferedOutputStream(output, 1 << 16);
+            terminator = recordTerminator;
+            stagedChanges = changes;
+            List<String> removals = new ArrayList<>();
+            for (var change : changes.entrySet()) {
+                if (change.getValue() == 'D') {
+                    removals.add(change.getKey());
+                }
+            }
+            stagedRemovals = removals.iterator();
+            nextItem = items.hasNext() ? items.next() : null;
+            nextRemoval = stagedRemovals.hasNext() ? stagedRemovals.next() : null;
+        }
+
+        void visit(String path, BasicFileAttributes attributes) throws GitException {
+            reportBefore(path);
+            if (nextItem != null && nextItem.filePath.equals(path)) {
+                reportTracked(nextItem, attributes);
+                nextItem = items.hasNext() ? items.next() : null;
+            } else if (!isTracked(path)) {
+                if (path.equals(nextRemoval)) {
+                    write('D', ' ', path);
+                    nextRemoval = stagedRemovals.hasNext() ? stagedRemovals.next() : null;
+                }
+                write('?', '?', path);
+            }
+        }
+
+        void finish() throws GitException {
+            reportBefore(null);
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new GitException("Error while writing status", e);
+            }
+        }
+
+        // index entries and staged removals the walk has passed by are gone from the working tree
+        private void reportBefore(String path) throws GitException {
+            while (true) {
+                boolean itemFirst = nextItem != null && (path == null || nextItem.filePath.compareTo(path) < 0);
+                boolean removalFirst = nextRemoval != null && (path == null || nextRemoval.compareTo(path) < 0);
+                if (itemFirst && (!removalFirst || nextItem.filePath.compareTo(nextRemoval) < 0)) {
+                    reportTracked(nextItem, null);
+                    nextItem = items.hasNext() ? items.next() : null;
+                } else if (removalFirst) {
+                    write('D', ' ', nextRemoval);
+                    nextRemoval = stagedRemovals.hasNext() ? stagedRemovals.next() : null;
                 } else {
-                    String realFileSha = getFileHash(absolutePath);
-                    if ((headCommit == null || !headCommit.checkIfCommitted(item.filePath, item.sha))) {
-                        if (item.sha.equals(realFileSha)) {
-                            changedToBeCommitted.add(relativePathStr);
-                        } else {
-                            changesNotStagedForCommit.add(relativePathStr);
-                        }
-                    } else {
-                        // file was committed earlier
-                        if (!item.sha.equals(realFileSha)) {
-                            changesNotStagedForCommit.add(relativePathStr);
-                        } else {
-                            IndexItem prevIndexItem = headCommit.index.pathToIndexItem.get(relativePathStr);
-                            if (!prevIndexItem.sha.equals(realFileSha)) {
-                                changedToBeCommitted.add(relativePathStr);
-                            }
-                        }
-                    }
+                    return;
+                }
+            }
+        }
+
+        private void reportTracked(IndexItem item, BasicFileAttributes attributes) throws GitException {
+            Path absolutePath = repository.getWorkingDirPath().resolve(item.filePath);
+            if (item.skipWorktree) {
+                char staged = stagedChanges.getOrDefault(item.filePath, ' ');
+                if (staged != ' ') {
+                    write(staged, ' ', item.filePath);
+                }
+                return;
+            }
+            if (attributes == null) {
+                try {
+                    attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    attributes = null;
                 }
             }
-            for (var indexItem : stagedItemsSet) {
-                Path absolutePath = Path.of(repository.getAbsPathInWorkDir(indexItem.filePath));
-                String relativePathStr = indexItem.filePath;
-                if (!Files.exists(absolutePath)) {
-                    removedFiles.add(relativePathStr);
+            char worktree;
+            if (attributes == null) {
+                worktree = 'D';
+            } else if (!item.statMatches(attributes, indexModified) && !item.sha.equals(getFileHash(absolutePath))) {
+                worktree = 'M';
+            } else {
+                worktree = ' ';
+            }
+            char staged = stagedChanges.getOrDefault(item.filePath, ' ');
+            if (staged != ' ' || worktree != ' ') {
+                write(staged, worktree, item.filePath);
+            }
+        }
+
+        private void write(char staged, char worktree, String path) throws GitException {
+            try {
+                out.write(staged);
+                out.write(worktree);
+                out.write(' ');
+                out.write(path.getBytes(StandardCharsets.UTF_8));
+                out.write(terminator);
+                // records reach the reader at least every PORCELAIN_FLUSH_INTERVAL even if the buffer isn't full
+                long now = System.nanoTime();
+                if (now - lastFlushNanos > PORCELAIN_FLUSH_INTERVAL_NANOS) {
+                    out.flush();
+                    lastFlushNanos = now;
                 }
+            } catch (IOException e) {
+                throw new GitException("Error while writing status", e);
             }
+        }
+    }
+
+    // the file in the working tree has the content of the entry
+    public boolean matchesWorkTree(IndexItem item) throws GitException {
+        Path absolutePath = repository.getWorkingDirPath().resolve(item.filePath);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+            return item.statMatches(attributes, indexModified) || item.sha.equals(getFileHash(absolutePath));
         } catch (IOException e) {
-            throw new GitException("Error while walking the working directory");
+            return false;
+        }
+    }
+
+    public boolean isTracked(String path) {
+        return pathToIndexItem.containsKey(path);
+    }
+
+    public boolean hasTrackedUnder(String dirPath) {
+        String dirPrefix = dirPath + File.separator;
+        IndexItem next = stagedItemsSet.ceiling(new IndexItem(dirPrefix, null, FileTime.fromMillis(0)));
+        return next != null && next.filePath.startsWith(dirPrefix);
+    }
+
+    // entries under the directory that aren't skip-worktree, like modified files sparse-checkout left in place
+    public boolean hasWorkTreeEntriesUnder(String dirPath) {
+        String dirPrefix = dirPath + File.separator;
+        for (IndexItem item : stagedItemsSet.tailSet(new IndexItem(dirPrefix, null, FileTime.fromMillis(0)))) {
+            if (!item.filePath.startsWith(dirPrefix)) {
+                return false;
+            }
+            if (!item.skipWorktree) {
+                return true;
+            }
         }
+        return false;
     }
 }
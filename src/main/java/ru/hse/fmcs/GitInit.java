@@ -4,10 +4,13 @@ import picocli.CommandLine;
 
 @CommandLine.Command(name = "init", description = "initializes an empty git repository")
 public class GitInit implements Runnable {
+    @CommandLine.Option(names = "--object-format", description = "hash algorithm for object ids: sha1 (default) or sha256")
+    String objectFormat;
+
     @Override
     public void run() {
         try {
-            Repository.create(WorkingDirSetter.WORKING_DIR);
+            Repository.create(WorkingDirSetter.WORKING_DIR, GitHashService.ObjectFormat.fromConfig(objectFormat));
         }
         catch (GitException e) {
             System.out.println("Error while initialization: ");
@@ -2,21 +2,52 @@ package ru.hse.fmcs;
 
 import picocli.CommandLine;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
 @CommandLine.Command(name = "log", description = "List commits that are reachable by following the parent links from the given commit(s)")
 public class GitLog implements Runnable {
-    @CommandLine.Parameters
+    @CommandLine.Spec
+    CommandLine.Model.CommandSpec spec;
+
+    @CommandLine.Parameters(description = "[<revision>] [-- <path>...]")
     String[] from_revision;
 
+    @CommandLine.Option(names = "--abbrev", arity = "0..1", fallbackValue = "" + AbbreviatedIds.DEFAULT_LENGTH,
+            preprocessor = AttachedValueOnly.class,
+            description = "show the shortest unique prefix of commit ids, --abbrev=<n> for at least n digits (default 7)")
+    Integer abbrev;
+
+    // a length is taken only from "--abbrev=<n>", so "--abbrev HEAD@{2}" keeps its revision
+    static class AttachedValueOnly implements CommandLine.IParameterPreprocessor {
+        @Override
+        public boolean preprocess(Stack<String> args, CommandLine.Model.CommandSpec commandSpec,
+                                  CommandLine.Model.ArgSpec argSpec, Map<String, Object> info) {
+            if (" ".equals(info.get("separator"))) {
+                args.push(((CommandLine.Model.OptionSpec) argSpec).fallbackValue());
+            }
+            return false;
+        }
+    }
+
     @Override
     public void run() {
         try {
             Repository repository = Repository.findRepository();
-            if (from_revision == null) {
-                repository.printLog();
-            }
-            else {
-                repository.printLog(from_revision[0]);
+            int abbrevLength = abbrev == null ? 0 : Math.max(abbrev, AbbreviatedIds.MIN_LENGTH);
+            // parameters after "--" are paths, picocli passes them on with the others
+            List<String> args = spec.commandLine().getParseResult().originalArgs();
+            int separator = args.lastIndexOf("--");
+            String[] parameters = from_revision == null ? new String[0] : from_revision;
+            int pathCount = separator < 0 ? 0 : args.size() - separator - 1;
+            List<String> paths = Arrays.asList(parameters).subList(parameters.length - pathCount, parameters.length);
+            if (parameters.length - pathCount > 1) {
+                throw new GitException("Only one revision can be given, paths go after '--'");
             }
+            String revision = parameters.length > pathCount ? parameters[0] : "HEAD";
+            repository.printLog(revision, abbrevLength, paths);
         }
         catch(GitException e) {
             System.out.println("Error while getting log");
@@ -1,14 +1,15 @@
 package ru.hse.fmcs;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public abstract class GitObject implements Serializable {
     Repository repository;
@@ -18,113 +19,201 @@ public abstract class GitObject implements Serializable {
 
     enum ObjectType {blob, commit, tree, tag}
 
+    // the longest possible header: "commit " + max long + '\0'
+    private static final int MAX_HEADER_LENGTH = 32;
+    // inflating only the header needs just the first few compressed bytes of the object file
+    private static final int HEADER_READ_BUFFER = 64;
+
+    // Type and size of an object as stored in the object header
+    public static class ObjectHeader {
+        public final ObjectType type;
+        public final long size;
+
+        ObjectHeader(ObjectType type, long size) {
+            this.type = type;
+            this.size = size;
+        }
+    }
+
+    // Header and payload of an object, independent of where it is stored
+    public static class RawObject {
+        public final ObjectHeader header;
+        public final byte[] payload;
+
+        RawObject(ObjectHeader objectHeader, byte[] objectPayload) {
+            header = objectHeader;
+            payload = objectPayload;
+        }
+    }
+
     protected GitObject() {
     }
 
-    public static @NotNull GitObject readObject(@NotNull Repository repository, @NotNull String sha) throws GitException {
-        String objPathStr = getObjectPath(repository, sha).toString();
-        try (FileInputStream fis = new FileInputStream(objPathStr);
-             ObjectInputStream ois = new ObjectInputStream(fis)) {
-            return (GitObject) ois.readObject();
+    // Payload of the object as it is stored after the header
+    protected byte[] serialize() throws GitException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(this);
+            oos.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new GitException("Error while serializing git object", e);
+        }
+    }
+
+    private static GitObject deserialize(Repository repository, ObjectHeader header, InputStream payload) throws GitException {
+        try {
+            if (header.type == ObjectType.blob) {
+                return new GitBlobObject(repository, payload.readAllBytes());
+            }
+            if (header.type == ObjectType.commit) {
+                return GitCommitObject.parse(repository, payload.readAllBytes());
+            }
+            if (header.type == ObjectType.tree) {
+                return new GitTreeObject(repository, payload.readAllBytes());
+            }
+            if (header.type == ObjectType.tag) {
+                return new GitTagObject(repository, payload.readAllBytes());
+            }
+            GitObject obj = (GitObject) new ObjectInputStream(payload).readObject();
+            if (obj.format != header.type) {
+                throw new GitException("Object type doesn't match its header");
+            }
+            obj.repository = repository;
+            return obj;
         } catch (IOException | ClassNotFoundException e) {
             throw new GitException("Error while reading git object", e);
         }
     }
 
-    public static @NotNull String writeObject(@NotNull GitObject obj) throws GitException {
-        String sha = GitObject.getObjectHash(obj);
-        String objPathStr = getObjectPath(obj.repository, sha).toString();
-        if (!createFileForObject(obj.repository, sha)) {
-            // git object has already been written
-            return sha;
-        }
-        try (FileOutputStream fos = new FileOutputStream(objPathStr);
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-            oos.writeObject(obj);
-            return sha;
+    // Loose objects are stored deflated as "<type> <size>\0<payload>", packed ones are looked up in pack indexes
+    public static @NotNull GitObject readObject(@NotNull Repository repository, @NotNull String sha) throws GitException {
+        Path objPath = getLoosePath(repository, sha);
+        if (objPath == null) {
+            RawObject raw = readPackedObject(repository, sha);
+            return deserialize(repository, raw.header, new ByteArrayInputStream(raw.payload));
+        }
+        try (FileInputStream fis = new FileInputStream(objPath.toString());
+             InflaterInputStream in = new InflaterInputStream(new BufferedInputStream(fis))) {
+            ObjectHeader header = parseHeader(in);
+            return deserialize(repository, header, in);
         } catch (IOException e) {
-            throw new GitException("Error while writing git object");
+            throw new GitException("Error while reading git object", e);
         }
     }
 
-    public static String getObjectHash(GitObject obj) throws GitException {
-        byte[] objRepresentation = getObjectRepresentation(obj);
-        return computeSHA1(objRepresentation);
+    public static @NotNull RawObject readRawObject(@NotNull Repository repository, @NotNull String sha) throws GitException {
+        Path objPath = getLoosePath(repository, sha);
+        if (objPath == null) {
+            return readPackedObject(repository, sha);
+        }
+        try (FileInputStream fis = new FileInputStream(objPath.toString());
+             InflaterInputStream in = new InflaterInputStream(new BufferedInputStream(fis))) {
+            ObjectHeader header = parseHeader(in);
+            return new RawObject(header, in.readAllBytes());
+        } catch (IOException e) {
+            throw new GitException("Error while reading git object " + sha, e);
+        }
     }
 
-    private static byte[] getObjectRepresentation(GitObject obj) throws GitException {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            if (obj.format == ObjectType.blob) {
-                GitBlobObject blob = (GitBlobObject) obj;
-                baos.write(blob.binaryData);
+    private static RawObject readPackedObject(Repository repository, String sha) throws GitException {
+        for (PackFile pack : repository.getPacks()) {
+            int i = pack.find(sha);
+            if (i >= 0) {
+                return pack.read(i);
             }
-            else if (obj.format == ObjectType.commit) {
-                GitCommitObject commit = (GitCommitObject) obj;
-                if (commit.parentCommitSha != null) {
-                    baos.write(commit.parentCommitSha.getBytes(StandardCharsets.UTF_8));
-                }
-                baos.write(commit.treeSha.getBytes(StandardCharsets.UTF_8));
-                baos.write(commit.message.getBytes(StandardCharsets.UTF_8));
-            }
-            else if (obj.format == ObjectType.tree) {
-                GitTreeObject tree = (GitTreeObject) obj;
-                for (var elem : tree.elements) {
-                    baos.write(elem.name.getBytes(StandardCharsets.UTF_8));
-                    baos.write(elem.sha.getBytes(StandardCharsets.UTF_8));
-                    baos.write(elem.type.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        throw new GitException("Object " + sha + " doesn't exist");
+    }
+
+    // Decodes only the header of the object, the payload is never inflated
+    public static @NotNull ObjectHeader readObjectHeader(@NotNull Repository repository, @NotNull String sha) throws GitException {
+        Path objPath = getLoosePath(repository, sha);
+        if (objPath == null) {
+            for (PackFile pack : repository.getPacks()) {
+                int i = pack.find(sha);
+                if (i >= 0) {
+                    return pack.readHeader(i);
                 }
             }
-            else if (obj.format == ObjectType.tag) {
-                assert(false);
-//                GitTagObject tag = (GitTagObject) obj;
-//                oos.writeObject(tag);
-            }
-            return baos.toByteArray();
+            throw new GitException("Object " + sha + " doesn't exist");
+        }
+        Inflater inflater = new Inflater();
+        try (FileInputStream fis = new FileInputStream(objPath.toString());
+             InflaterInputStream in = new InflaterInputStream(fis, inflater, HEADER_READ_BUFFER)) {
+            return parseHeader(in);
+        } catch (FileNotFoundException e) {
+            throw new GitException("Object " + sha + " doesn't exist", e);
         } catch (IOException e) {
-            throw new GitException("Error while writing to git object", e);
+            throw new GitException("Error while reading header of git object " + sha, e);
+        } finally {
+            inflater.end();
         }
     }
 
-    public static Path getObjectPath(Repository rep, String sha) {
-        return rep.getGitDir().resolve("objects").resolve(sha.substring(0, 2)).resolve(sha.substring(2));
+    private static ObjectHeader parseHeader(InputStream in) throws IOException, GitException {
+        byte[] header = new byte[MAX_HEADER_LENGTH];
+        int length = 0;
+        int b;
+        while ((b = in.read()) > 0) {
+            if (length == MAX_HEADER_LENGTH) {
+                throw new GitException("Corrupted object header");
+            }
+            header[length++] = (byte) b;
+        }
+        if (b < 0) {
+            throw new GitException("Unexpected end of object header");
+        }
+        String headerStr = new String(header, 0, length, StandardCharsets.US_ASCII);
+        int space = headerStr.indexOf(' ');
+        if (space < 0) {
+            throw new GitException("Corrupted object header");
+        }
+        try {
+            return new ObjectHeader(ObjectType.valueOf(headerStr.substring(0, space)), Long.parseLong(headerStr.substring(space + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new GitException("Corrupted object header " + headerStr, e);
+        }
     }
 
-    public static boolean createFileForObject(Repository repository, String sha) throws GitException {
-        String objPathStr = getObjectPath(repository, sha).toString();
-        repository.buildFilePath(objPathStr);
-        try {
-            return new File(objPathStr).createNewFile();
+    public static @NotNull String writeObject(@NotNull GitObject obj) throws GitException {
+        String sha = getObjectHash(obj);
+        obj.repository.getObjectWriter().write(sha, obj.format, obj.serialize());
+        return sha;
+    }
+
+    public static String getObjectHash(GitObject obj) throws GitException {
+        if (obj.format == ObjectType.blob && obj.sha != null) {
+            return obj.sha;     // blob content never changes, so its id is computed once
         }
-        catch (IOException e) {
-            throw new GitException("Error while creating file for git object");
+        String sha = obj.repository.getHashService().hashObject(obj.format, obj.serialize());
+        if (obj.format == ObjectType.blob) {
+            obj.sha = sha;
         }
+        return sha;
     }
 
-    public static ObjectType getObjectType(String sha) throws GitException {
-        GitObject obj = readObject(Repository.findRepository(), sha);
-        if (obj instanceof GitBlobObject) {
-            return ObjectType.blob;
-        } else if (obj instanceof GitTreeObject) {
-            return ObjectType.tree;
-        } else if (obj instanceof GitCommitObject) {
-            return ObjectType.commit;
-        } else if (obj instanceof GitTagObject) {
-            return ObjectType.tag;
-        }
-        throw new GitException("Unknown Git Object type");
+    // "<type> <size>\0", stored in front of the payload and hashed with it
+    static byte[] header(ObjectType type, long size) {
+        byte[] text = (type + " " + size).getBytes(StandardCharsets.US_ASCII);
+        return Arrays.copyOf(text, text.length + 1);
     }
 
-    public static @NotNull String computeSHA1(byte[] data) throws GitException {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] hash = md.digest(data);
-            Formatter formatter = new Formatter();
-            for (byte b : hash) {
-                formatter.format("%02x", b);
-            }
-            return formatter.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new GitException("Invalid hashing algorithm", e);
+    public static Path getObjectPath(Repository rep, String sha) {
+        return rep.getGitDir().resolve("objects").resolve(sha.substring(0, 2)).resolve(sha.substring(2));
+    }
+
+    // objects written in an unfinished fsync batch are read from their temporary files; null if the object isn't loose
+    private static @Nullable Path getLoosePath(Repository repository, String sha) throws GitException {
+        Path pending = repository.getObjectWriter().getPendingPath(sha);
+        if (pending != null) {
+            return pending;
         }
+        Path path = getObjectPath(repository, sha);
+        return Files.exists(path) ? path : null;
+    }
+
+    public static ObjectType getObjectType(@NotNull Repository repository, @NotNull String sha) throws GitException {
+        return readObjectHeader(repository, sha).type;
     }
 }
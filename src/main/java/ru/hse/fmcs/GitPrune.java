@@ -0,0 +1,28 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "prune", description = "delete unreachable loose objects")
+public class GitPrune implements Runnable {
+    @CommandLine.Option(names = "--expire", description = "only objects older than this: now, never or <number>[dhms] (default gc.pruneexpire or 14d)")
+    String expire;
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            GarbageCollector collector = new GarbageCollector(repository,
+                    expire == null ? GarbageCollector.getDefaultExpire(repository) : GarbageCollector.parseExpire(expire));
+            GarbageCollector.Result result = collector.prune();
+            System.out.println("Pruned " + result.pruned + " unreachable objects, objects took " + result.sizeBefore
+                    + " bytes, now " + result.sizeAfter + " bytes");
+        }
+        catch (GitException e) {
+            System.out.println("Error while pruning");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "reflog", description = "show the previous values of a ref, newest first")
+public class GitRefLog implements Runnable {
+    @CommandLine.Parameters(arity = "0..1", description = "HEAD (default) or a full ref name like refs/heads/master")
+    String ref = "HEAD";
+
+    @CommandLine.Option(names = {"-n", "--max-count"}, description = "show at most this many entries")
+    long maxCount = Long.MAX_VALUE;
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            String refName = ref.equals("HEAD") || ref.startsWith("refs/") ? ref : "refs/heads/" + ref;
+            RefLog refLog = RefLog.of(repository, refName);
+            long size = refLog.size();
+            StringBuilder sb = new StringBuilder();
+            for (long n = 0; n < Math.min(size, maxCount); n++) {
+                RefLog.Entry entry = refLog.read(size - 1 - n);
+                sb.append(repository.getAbbreviatedIds().abbreviate(entry.newSha, AbbreviatedIds.DEFAULT_LENGTH))
+                        .append(' ').append(ref).append("@{").append(n).append("}: ")
+                        .append(entry.message).append('\n');
+            }
+            System.out.print(sb);
+        }
+        catch (GitException e) {
+            System.out.println("Error while reading ref log");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ru.hse.fmcs;
+
+import picocli.CommandLine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@CommandLine.Command(name = "sparse-checkout", description = "set <dirs>: check out only the given directories (and top level files),\n" +
+        "       list: show them, disable: check out everything again")
+public class GitSparseCheckout implements Runnable {
+    @CommandLine.Parameters(index = "0", description = "set, list or disable")
+    String action;
+
+    @CommandLine.Parameters(index = "1..*")
+    List<String> directories = new ArrayList<>();
+
+    @Override
+    public void run() {
+        try {
+            Repository repository = Repository.findRepository();
+            switch (action) {
+                case "set":
+                    SparseCheckout.write(repository, directories);
+                    repository.setConfigValue("core", "sparsecheckout", "true");
+                    repository.applySparseCheckout();
+                    break;
+                case "list":
+                    SparseCheckout sparse = SparseCheckout.load(repository);
+                    if (sparse != null) {
+                        sparse.getDirectories().forEach(System.out::println);
+                    }
+                    break;
+                case "disable":
+                    repository.setConfigValue("core", "sparsecheckout", "false");
+                    repository.applySparseCheckout();
+                    break;
+                default:
+                    throw new GitException("Unknown sparse-checkout action " + action);
+            }
+        }
+        catch (GitException e) {
+            System.out.println("Error while updating sparse checkout");
+            System.out.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("Cause : " + e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -6,12 +6,22 @@ import picocli.CommandLine;
         "       that have differences between the working tree and the index file, and paths in the working\n" +
         "       tree that are not tracked by Git")
 public class GitStatus implements Runnable {
+    @CommandLine.Option(names = "--porcelain", description = "print sorted \"XY path\" records as they are found")
+    boolean porcelain;
+
+    @CommandLine.Option(names = "-z", description = "terminate porcelain records with NUL instead of LF, implies --porcelain")
+    boolean nulTerminated;
+
     @Override
     public void run() {
         try {
             Repository repository = Repository.findRepository();
             GitIndex index = GitIndex.getIndex(repository);
-            index.printStatus();
+            if (porcelain || nulTerminated) {
+                index.printPorcelainStatus(nulTerminated);
+            } else {
+                index.printStatus();
+            }
         }
         catch(GitException e) {
             System.out.println("Error while getting status");
@@ -9,5 +9,35 @@ public class GitTagObject extends GitObject {
         binaryData = data;
     }
 
+    // stored as text like a commit, so that the tagged object can be read without deserializing
+    @Override
+    protected byte[] serialize() {
+        return binaryData;
+    }
+
+    // id of the tagged object, from the "object <id>" line an annotated tag starts with
+    public static String getTarget(byte[] payload) throws GitException {
+        String content = new String(payload, StandardCharsets.UTF_8);
+        if (!content.startsWith("object ")) {
+            throw new GitException("Corrupted tag object");
+        }
+        int end = content.indexOf('\n');
+        return content.substring("object ".length(), end < 0 ? content.length() : end).trim();
+    }
 
+    // type of the tagged object, from the "type <type>" line that follows the object line
+    public static ObjectType getTargetType(byte[] payload) throws GitException {
+        String content = new String(payload, StandardCharsets.UTF_8);
+        int start = content.indexOf("\ntype ");
+        if (start < 0) {
+            throw new GitException("Corrupted tag object");
+        }
+        start += "\ntype ".length();
+        int end = content.indexOf('\n', start);
+        try {
+            return ObjectType.valueOf(content.substring(start, end < 0 ? content.length() : end).trim());
+        } catch (IllegalArgumentException e) {
+            throw new GitException("Corrupted tag object", e);
+        }
+    }
 }
@@ -1,15 +1,28 @@
 package ru.hse.fmcs;
 
-import com.sun.source.tree.Tree;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
+// Tree is kept in its canonical encoding: entries "<mode> <name>\0<raw id>" sorted by the unsigned bytes of the name,
+// where a directory name compares as if it ended with '/', as in git: "a.txt" < "a/" < "a0". The same directory
+// content always produces the same bytes and therefore the same id.
 public class GitTreeObject extends GitObject implements Serializable {
-    public final HashSet<TreeElement> elements;
-    public final HashMap<String, TreeElement> nameToTreeElement;
+    private static final byte[] BLOB_MODE = "100644".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TREE_MODE = "40000".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] entries;     // canonical encoding of all entries
+    private int[] offsets;      // start of every entry in entries
 
     public static class TreeElement implements Serializable {
         // ? access bits (advanced)
@@ -23,14 +36,6 @@ public class GitTreeObject extends GitObject implements Serializable {
             name = itemName;
         }
 
-        TreeElement(GitObject obj) throws GitException {
-            sha = GitObject.getObjectHash(obj);
-            type = obj.format;
-            if (type != ObjectType.blob && type != ObjectType.tree) {
-                throw new GitException("Unsupported GitObject type in tree object");
-            }
-        }
-
         @Override
         public boolean equals(Object o) {
             if (o instanceof TreeElement) {
@@ -46,20 +51,292 @@ public class GitTreeObject extends GitObject implements Serializable {
         }
     }
 
-    public GitTreeObject(Repository rep, byte[] data) {
-        repository = rep;
-        format = ObjectType.tree;
-        binaryData = data;
-        elements = new HashSet<>();
-        nameToTreeElement = new HashMap<>();
+    // Iterates over the encoded entries without materializing them
+    public final class Cursor {
+        private int index = -1;
+
+        public boolean next() {
+            return ++index < offsets.length;
+        }
+
+        public ObjectType getType() {
+            return entryType(index);
+        }
+
+        public String getName() {
+            return entryName(index);
+        }
+
+        public String getSha() {
+            return entrySha(index);
+        }
+
+        public String getMode() {
+            int start = offsets[index];
+            return new String(entries, start, indexOf(start, (byte) ' ') - start, StandardCharsets.US_ASCII);
+        }
+
+        // compares the current entries of both cursors in the canonical order; a file and a directory of the same
+        // name aren't equal
+        public int compareNameTo(Cursor other) {
+            return compareNames(entries, nameStart(index), nameEnd(index), getType() == ObjectType.tree,
+                    other.tree().entries, other.tree().nameStart(other.index), other.tree().nameEnd(other.index),
+                    other.getType() == ObjectType.tree);
+        }
+
+        public boolean sameEntryAs(Cursor other) {
+            int idStart = nameEnd(index) + 1;
+            int otherIdStart = other.tree().nameEnd(other.index) + 1;
+            return getType() == other.getType()
+                    && compareBytes(entries, idStart, idStart + rawIdLength(),
+                    other.tree().entries, otherIdStart, otherIdStart + rawIdLength()) == 0;
+        }
+
+        public GitTreeObject readSubtree() throws GitException {
+            return (GitTreeObject) GitObject.readObject(repository, getSha());
+        }
+
+        private GitTreeObject tree() {
+            return GitTreeObject.this;
+        }
+    }
+
+    public interface DiffConsumer {
+        void accept(String path, @Nullable String oldSha, @Nullable String newSha) throws GitException;
     }
 
-    public GitTreeObject() throws GitException {
-        repository = Repository.findRepository();
+    public GitTreeObject(Repository rep, byte[] data) throws GitException {
+        repository = rep;
         format = ObjectType.tree;
         binaryData = null;
-        elements = new HashSet<>();
-        nameToTreeElement = new HashMap<>();
+        entries = data == null ? new byte[0] : data;
+        offsets = parseOffsets();
+    }
+
+    // tree of the given entries encoded in one pass instead of inserting them one by one
+    public static GitTreeObject fromElements(Repository rep, Collection<TreeElement> elements) throws GitException {
+        GitTreeObject encoder = new GitTreeObject(rep, null);
+        List<byte[]> names = new ArrayList<>();
+        Map<byte[], TreeElement> byName = new IdentityHashMap<>();
+        for (TreeElement element : elements) {
+            byte[] name = element.name.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            byName.put(name, element);
+        }
+        names.sort((a, b) -> compareNames(a, 0, a.length, byName.get(a).type == ObjectType.tree,
+                b, 0, b.length, byName.get(b).type == ObjectType.tree));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] name : names) {
+            TreeElement element = byName.get(name);
+            out.writeBytes(encoder.encodeEntry(element.type, name, element.sha));
+        }
+        return new GitTreeObject(rep, out.toByteArray());
+    }
+
+    private int rawIdLength() {
+        return repository.getObjectFormat().rawLength;
+    }
+
+    private int indexOf(int from, byte value) {
+        for (int i = from; i < entries.length; i++) {
+            if (entries[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int[] parseOffsets() throws GitException {
+        List<Integer> starts = new ArrayList<>();
+        int pos = 0;
+        int prevNameStart = -1;
+        int prevNameEnd = -1;
+        boolean prevIsTree = false;
+        while (pos < entries.length) {
+            int space = indexOf(pos, (byte) ' ');
+            int nameEnd = space < 0 ? -1 : indexOf(space + 1, (byte) 0);
+            if (nameEnd < 0 || nameEnd + 1 + rawIdLength() > entries.length) {
+                throw new GitException("Corrupted tree object");
+            }
+            boolean isTree = entries[pos] == TREE_MODE[0];
+            if (prevNameStart >= 0 && compareNames(entries, prevNameStart, prevNameEnd, prevIsTree,
+                    entries, space + 1, nameEnd, isTree) >= 0) {
+                throw new GitException("Tree entries aren't sorted");
+            }
+            starts.add(pos);
+            prevNameStart = space + 1;
+            prevNameEnd = nameEnd;
+            prevIsTree = isTree;
+            pos = nameEnd + 1 + rawIdLength();
+        }
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // unsigned bytes of the names, a directory name continuing with '/'
+    private static int compareNames(byte[] a, int aFrom, int aTo, boolean aIsTree,
+                                    byte[] b, int bFrom, int bTo, boolean bIsTree) {
+        int aLength = aTo - aFrom;
+        int bLength = bTo - bFrom;
+        int common = Math.min(aLength, bLength);
+        int cmp = compareBytes(a, aFrom, aFrom + common, b, bFrom, bFrom + common);
+        if (cmp != 0) {
+            return cmp;
+        }
+        int aNext = aLength > common ? Byte.toUnsignedInt(a[aFrom + common]) : aIsTree ? '/' : 0;
+        int bNext = bLength > common ? Byte.toUnsignedInt(b[bFrom + common]) : bIsTree ? '/' : 0;
+        return aNext - bNext;
+    }
+
+    private static int compareBytes(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+        int aLength = aTo - aFrom;
+        int bLength = bTo - bFrom;
+        for (int i = 0; i < Math.min(aLength, bLength); i++) {
+            int cmp = Byte.toUnsignedInt(a[aFrom + i]) - Byte.toUnsignedInt(b[bFrom + i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private int nameStart(int i) {
+        return indexOf(offsets[i], (byte) ' ') + 1;
+    }
+
+    private int nameEnd(int i) {
+        return indexOf(nameStart(i), (byte) 0);
+    }
+
+    private ObjectType entryType(int i) {
+        return entries[offsets[i]] == TREE_MODE[0] ? ObjectType.tree : ObjectType.blob;
+    }
+
+    private String entryName(int i) {
+        int start = nameStart(i);
+        return new String(entries, start, nameEnd(i) - start, StandardCharsets.UTF_8);
+    }
+
+    private String entrySha(int i) {
+        int idStart = nameEnd(i) + 1;
+        char[] hex = new char[rawIdLength() * 2];
+        for (int j = 0; j < rawIdLength(); j++) {
+            int b = Byte.toUnsignedInt(entries[idStart + j]);
+            hex[2 * j] = Character.forDigit(b >> 4, 16);
+            hex[2 * j + 1] = Character.forDigit(b & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    // binary search over the sorted entries for the name as a file or as a directory; returns index of the entry
+    // or (-(insertion point) - 1)
+    private int findIndex(byte[] name, boolean isTree) {
+        int lo = 0;
+        int hi = offsets.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareNames(entries, nameStart(mid), nameEnd(mid), entryType(mid) == ObjectType.tree,
+                    name, 0, name.length, isTree);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    // a name is either a file or a directory, the two sort at different places
+    private int findEntry(byte[] name) {
+        int i = findIndex(name, false);
+        return i >= 0 ? i : findIndex(name, true);
+    }
+
+    public @Nullable TreeElement getElement(String name) {
+        int i = findEntry(name.getBytes(StandardCharsets.UTF_8));
+        if (i < 0) {
+            return null;
+        }
+        return new TreeElement(entryType(i), entrySha(i), name);
+    }
+
+    @Override
+    protected byte[] serialize() {
+        return entries;
+    }
+
+    // replaces the entries [first, last) with the encoded entry, or removes them if it is null; offsets of the
+    // entries before them stay, the ones after them are shifted, nothing is parsed again
+    private void splice(int first, int last, @Nullable byte[] entry) {
+        int from = first < offsets.length ? offsets[first] : entries.length;
+        int to = last < offsets.length ? offsets[last] : entries.length;
+        byte[] replacement = entry == null ? new byte[0] : entry;
+        byte[] updated = new byte[entries.length - (to - from) + replacement.length];
+        System.arraycopy(entries, 0, updated, 0, from);
+        System.arraycopy(replacement, 0, updated, from, replacement.length);
+        System.arraycopy(entries, to, updated, from + replacement.length, entries.length - to);
+        entries = updated;
+
+        int added = entry == null ? 0 : 1;
+        int delta = replacement.length - (to - from);
+        int[] updatedOffsets = new int[offsets.length - (last - first) + added];
+        System.arraycopy(offsets, 0, updatedOffsets, 0, first);
+        if (entry != null) {
+            updatedOffsets[first] = from;
+        }
+        for (int i = last; i < offsets.length; i++) {
+            updatedOffsets[i - last + first + added] = offsets[i] + delta;
+        }
+        offsets = updatedOffsets;
+    }
+
+    private byte[] encodeEntry(ObjectType type, byte[] name, String sha) throws GitException {
+        if (type != ObjectType.blob && type != ObjectType.tree) {
+            throw new GitException("Unsupported GitObject type in tree object");
+        }
+        byte[] mode = type == ObjectType.tree ? TREE_MODE : BLOB_MODE;
+        byte[] rawId;
+        try {
+            rawId = Hex.decodeHex(sha.toCharArray());
+        } catch (DecoderException e) {
+            throw new GitException("Invalid object id " + sha, e);
+        }
+        if (rawId.length != rawIdLength()) {
+            throw new GitException("Invalid object id " + sha);
+        }
+        ByteArrayOutputStream entry = new ByteArrayOutputStream(mode.length + name.length + rawId.length + 2);
+        entry.writeBytes(mode);
+        entry.write(' ');
+        entry.writeBytes(name);
+        entry.write(0);
+        entry.writeBytes(rawId);
+        return entry.toByteArray();
+    }
+
+    public void setElement(String name, ObjectType type, String sha) throws GitException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] entry = encodeEntry(type, nameBytes, sha);
+        int i = findIndex(nameBytes, type == ObjectType.tree);
+        if (i >= 0) {
+            splice(i, i + 1, entry);
+            return;
+        }
+        // a file replaced by a directory or the other way round moves to its new place
+        int other = findIndex(nameBytes, type != ObjectType.tree);
+        if (other >= 0) {
+            splice(other, other + 1, null);
+            i = findIndex(nameBytes, type == ObjectType.tree);
+        }
+        splice(-i - 1, -i - 1, entry);
     }
 
     public void descendAndRewrite(String filepath, GitBlobObject blob) throws GitException {
@@ -73,52 +350,116 @@ public class GitTreeObject extends GitObject implements Serializable {
             return;
         }
         String subDirName = path.subpath(0, 1).toString();
-        TreeElement subtreeElem = nameToTreeElement.get(subDirName);
+        TreeElement subtreeElem = getElement(subDirName);
         Path pathSuf = path.subpath(1, path.getNameCount());
-        GitTreeObject subtree = (subtreeElem != null) ? (GitTreeObject) GitObject.readObject(repository, subtreeElem.sha) : new GitTreeObject();
-        if (subtreeElem != null) {
-            // sha of the subtree is going to change => deleting from elements old subtree
-            elements.remove(subtreeElem);
-        }
+        GitTreeObject subtree = (subtreeElem != null && subtreeElem.type == ObjectType.tree)
+                ? (GitTreeObject) GitObject.readObject(repository, subtreeElem.sha) : new GitTreeObject(repository, null);
         subtree.descendAndRewrite(pathSuf.toString(), blob);
+        if (subtree.size() == 0) {
+            // empty directories aren't stored
+            removeElement(subDirName);
+            return;
+        }
         String subtreeSha = GitObject.writeObject(subtree);
-        elements.add(new TreeElement(ObjectType.tree, subtreeSha, subDirName));
+        setElement(subDirName, ObjectType.tree, subtreeSha);
     }
 
     public boolean checkIfMatch(String filepath, String blobSha) throws GitException {
+        TreeElement elem = lookup(filepath);
+        return elem != null && elem.type == ObjectType.blob && elem.sha.equals(blobSha);
+    }
+
+    // returns the entry for the path reading only the trees on the way to it
+    public @Nullable TreeElement lookup(String filepath) throws GitException {
         Path path = Path.of(filepath);
-        if (path.getNameCount() == 1) {
-            return elements.contains(new TreeElement(ObjectType.blob, blobSha, path.toString()));
+        GitTreeObject current = this;
+        for (int i = 0; i < path.getNameCount() - 1; i++) {
+            TreeElement subtreeElem = current.getElement(path.getName(i).toString());
+            if (subtreeElem == null || subtreeElem.type != ObjectType.tree) {
+                return null;
+            }
+            current = (GitTreeObject) GitObject.readObject(repository, subtreeElem.sha);
+        }
+        return current.getElement(path.getFileName().toString());
+    }
+
+    // collects path -> blob sha for every file in the tree
+    public void collectBlobs(String prefix, Map<String, String> pathToBlobSha) throws GitException {
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            String elemPath = childPath(prefix, cursor.getName());
+            if (cursor.getType() == ObjectType.tree) {
+                cursor.readSubtree().collectBlobs(elemPath, pathToBlobSha);
+            } else {
+                pathToBlobSha.put(elemPath, cursor.getSha());
+            }
         }
-        String subDirName = path.subpath(0, 1).toString();
-        TreeElement subtreeElem = nameToTreeElement.get(subDirName);
-        Path pathSuf = path.subpath(1, path.getNameCount());
-        GitTreeObject subtree = (subtreeElem != null) ? (GitTreeObject) GitObject.readObject(repository, subtreeElem.sha) : new GitTreeObject();
-        return subtree.checkIfMatch(pathSuf.toString(), blobSha);
     }
 
-    public void addOrReplaceElement(String name, GitObject obj) throws GitException {
-        if (obj instanceof GitBlobObject) {
-//            TreeElement elem = getElement(name);
-            TreeElement elem = nameToTreeElement.get(name);
-            if (elem != null) {
-                elements.remove(elem);
+    // Reports every blob that differs between two trees (null stands for an empty tree). Both trees are walked
+    // in one merged pass over their sorted entries, subtrees with equal ids are skipped without being read,
+    // every other subtree is read exactly once.
+    public static void diff(@Nullable GitTreeObject oldTree, @Nullable GitTreeObject newTree, String prefix,
+                            DiffConsumer consumer) throws GitException {
+        Cursor oldCursor = oldTree == null ? null : oldTree.cursor();
+        Cursor newCursor = newTree == null ? null : newTree.cursor();
+        boolean hasOld = oldCursor != null && oldCursor.next();
+        boolean hasNew = newCursor != null && newCursor.next();
+        while (hasOld || hasNew) {
+            int cmp = !hasOld ? 1 : !hasNew ? -1 : oldCursor.compareNameTo(newCursor);
+            if (cmp < 0) {
+                reportOneSide(oldCursor, prefix, true, consumer);
+                hasOld = oldCursor.next();
+            } else if (cmp > 0) {
+                reportOneSide(newCursor, prefix, false, consumer);
+                hasNew = newCursor.next();
+            } else {
+                if (!oldCursor.sameEntryAs(newCursor)) {
+                    String path = childPath(prefix, oldCursor.getName());
+                    if (oldCursor.getType() == ObjectType.tree && newCursor.getType() == ObjectType.tree) {
+                        diff(oldCursor.readSubtree(), newCursor.readSubtree(), path, consumer);
+                    } else if (oldCursor.getType() == ObjectType.blob && newCursor.getType() == ObjectType.blob) {
+                        consumer.accept(path, oldCursor.getSha(), newCursor.getSha());
+                    } else {
+                        // file was replaced by a directory or vice versa
+                        reportOneSide(oldCursor, prefix, true, consumer);
+                        reportOneSide(newCursor, prefix, false, consumer);
+                    }
+                }
+                hasOld = oldCursor.next();
+                hasNew = newCursor.next();
             }
-            var newElement = new TreeElement(obj.format, GitObject.getObjectHash(obj), name);
-            elements.add(newElement);
-            nameToTreeElement.put(name, newElement);
-        } else if (obj instanceof GitTreeObject) {
-            elements.add(new TreeElement(ObjectType.tree, GitObject.getObjectHash(obj), name));
+        }
+    }
+
+    private static void reportOneSide(Cursor cursor, String prefix, boolean removed, DiffConsumer consumer) throws GitException {
+        String path = childPath(prefix, cursor.getName());
+        if (cursor.getType() == ObjectType.tree) {
+            GitTreeObject subtree = cursor.readSubtree();
+            diff(removed ? subtree : null, removed ? null : subtree, path, consumer);
+        } else if (removed) {
+            consumer.accept(path, cursor.getSha(), null);
+        } else {
+            consumer.accept(path, null, cursor.getSha());
+        }
+    }
+
+    private static String childPath(String prefix, String name) {
+        return prefix.isEmpty() ? name : Path.of(prefix, name).toString();
+    }
+
+    public void addOrReplaceElement(String name, @NotNull GitObject obj) throws GitException {
+        if (obj instanceof GitBlobObject || obj instanceof GitTreeObject) {
+            setElement(name, obj.format, GitObject.getObjectHash(obj));
         } else {
             throw new GitException("Attempt to add unsupported GitObject type to git tree");
         }
     }
 
-    public void removeElement(String name) {
-        TreeElement elem = nameToTreeElement.get(name);
-        if (elem != null) {
-            elements.remove(elem);
-            nameToTreeElement.remove(name);
+    public void removeElement(String name) throws GitException {
+        int i = findEntry(name.getBytes(StandardCharsets.UTF_8));
+        if (i >= 0) {
+            splice(i, i + 1, null);
         }
     }
 }
@@ -0,0 +1,149 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+// Answers "is this object already stored" without touching the file system for every object. The objects
+// directory is listed once, a fan-out directory on the first probe of its prefix; their ids go into a Bloom
+// filter backed by an exact set. Packs are asked through their indexes. Ids are hashes already, so the filter
+// takes its bit positions from the id itself.
+// Objects are never deleted while a command runs, so positive answers don't go stale, and a missed concurrent
+// write only makes the writer store an identical object again.
+public class KnownObjects {
+    private static final int BITS_PER_OBJECT = 10;
+    private static final int HASH_FUNCTIONS = 7;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final Repository repository;
+    private final Path objectsDir;
+    private final Set<String> known = new HashSet<>();
+    private Set<String> existingDirs;                       // fan-out directories, null until the first probe
+    private final Set<String> listedDirs = new HashSet<>();
+    private long[] bloomBits = new long[INITIAL_CAPACITY * BITS_PER_OBJECT / 64];
+
+    KnownObjects(@NotNull Repository rep) {
+        repository = rep;
+        objectsDir = rep.getGitDir().resolve("objects");
+    }
+
+    public synchronized boolean contains(@NotNull String sha) throws GitException {
+        String dir = sha.substring(0, 2);
+        if (!listedDirs.contains(dir)) {
+            listFanOutDir(dir);
+        }
+        // the filter rejects most new objects before the string is even hashed
+        if (mightContain(sha) && known.contains(sha)) {
+            return true;
+        }
+        for (PackFile pack : repository.getPacks()) {
+            if (pack.contains(sha)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void add(@NotNull String sha) {
+        if (known.add(sha)) {
+            if (known.size() * BITS_PER_OBJECT > bloomBits.length * 64L) {
+                rebuildFilter();
+            }
+            addToFilter(sha);
+        }
+        if (existingDirs != null) {
+            existingDirs.add(sha.substring(0, 2));
+        }
+    }
+
+    // objects stored elsewhere than in fan-out directories, e.g. packs
+    public synchronized void addAll(@NotNull Iterable<String> ids) {
+        for (String sha : ids) {
+            add(sha);
+        }
+    }
+
+    public synchronized boolean hasFanOutDir(@NotNull String sha) throws GitException {
+        if (existingDirs == null) {
+            listObjectsDir();
+        }
+        return existingDirs.contains(sha.substring(0, 2));
+    }
+
+    private void listObjectsDir() throws GitException {
+        existingDirs = new HashSet<>();
+        if (!Files.isDirectory(objectsDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objectsDir)) {
+            for (Path dir : stream) {
+                String name = dir.getFileName().toString();
+                if (name.length() == 2 && Files.isDirectory(dir)) {
+                    existingDirs.add(name);
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while listing " + objectsDir, e);
+        }
+    }
+
+    private void listFanOutDir(String dir) throws GitException {
+        listedDirs.add(dir);
+        if (!hasFanOutDir(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objectsDir.resolve(dir))) {
+            for (Path object : stream) {
+                String name = object.getFileName().toString();
+                if (!name.startsWith(LooseObjectWriter.TEMP_PREFIX)) {
+                    add(dir + name);
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while listing objects in " + dir, e);
+        }
+    }
+
+    private boolean mightContain(String sha) {
+        long h1 = hashPart(sha, 2);
+        long h2 = hashPart(sha, 18) | 1;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bloomBits.length * 64L);
+            if ((bloomBits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToFilter(String sha) {
+        long h1 = hashPart(sha, 2);
+        long h2 = hashPart(sha, 18) | 1;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bloomBits.length * 64L);
+            bloomBits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private void rebuildFilter() {
+        bloomBits = new long[bloomBits.length * 2];
+        for (String sha : known) {
+            addToFilter(sha);
+        }
+    }
+
+    // 16 hex digits of the id as a number; the first two are skipped, they are the same within a fan-out directory
+    // read digit by digit, so a lookup allocates nothing
+    private static long hashPart(String sha, int from) {
+        long value = 0;
+        for (int i = from; i < from + 16; i++) {
+            value = value << 4 | Character.digit(sha.charAt(i), 16);
+        }
+        return value;
+    }
+}
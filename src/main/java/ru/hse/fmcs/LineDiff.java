@@ -0,0 +1,100 @@
+package ru.hse.fmcs;
+
+import java.util.Arrays;
+
+// Longest common subsequence of two line sequences, with lines given as interned ids. Common prefix and suffix
+// are matched directly, the rest by Myers' O((N+M)D) algorithm in linear space: the middle snake of an optimal
+// edit path splits the problem into two halves that are solved recursively.
+public final class LineDiff {
+    private LineDiff() {}
+
+    // for every line of b the index of the line of a it is kept from, -1 for inserted lines
+    public static int[] matchLines(int[] a, int[] b) {
+        int[] matches = new int[b.length];
+        Arrays.fill(matches, -1);
+        int max = a.length + b.length + 2;
+        new LineDiff.Solver(a, b, matches, new int[2 * max + 2], new int[2 * max + 2]).solve(0, a.length, 0, b.length);
+        return matches;
+    }
+
+    private static class Solver {
+        final int[] a;
+        final int[] b;
+        final int[] matches;
+        final int[] forward;
+        final int[] backward;
+
+        Solver(int[] aLines, int[] bLines, int[] result, int[] forwardV, int[] backwardV) {
+            a = aLines;
+            b = bLines;
+            matches = result;
+            forward = forwardV;
+            backward = backwardV;
+        }
+
+        void solve(int aLo, int aHi, int bLo, int bHi) {
+            while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                matches[bLo++] = aLo++;
+            }
+            while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+                matches[--bHi] = --aHi;
+            }
+            if (aLo == aHi || bLo == bHi) {
+                return;
+            }
+            // both sides differ at their first and last lines, so the edit distance is at least 2 and
+            // neither half below is the whole problem again
+            int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+            solve(aLo, aLo + snake[0], bLo, bLo + snake[1]);
+            for (int x = snake[0], y = snake[1]; x < snake[2]; x++, y++) {
+                matches[bLo + y] = aLo + x;
+            }
+            solve(aLo + snake[2], aHi, bLo + snake[3], bHi);
+        }
+
+        // {x0, y0, x1, y1} relative to aLo and bLo
+        private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+            int n = aHi - aLo;
+            int m = bHi - bLo;
+            int delta = n - m;
+            boolean odd = (delta & 1) != 0;
+            int offset = (n + m + 1) / 2 + 1;
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+            for (int d = 0; d <= (n + m + 1) / 2; d++) {
+                for (int k = -d; k <= d; k += 2) {
+                    int x = k == -d || k != d && forward[offset + k - 1] < forward[offset + k + 1]
+                            ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                    int y = x - k;
+                    int x0 = x;
+                    int y0 = y;
+                    while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                        x++;
+                        y++;
+                    }
+                    forward[offset + k] = x;
+                    // the backward search is d - 1 steps deep on diagonals delta - k
+                    if (odd && k >= delta - (d - 1) && k <= delta + (d - 1) && x + backward[offset + delta - k] >= n) {
+                        return new int[]{x0, y0, x, y};
+                    }
+                }
+                for (int k = -d; k <= d; k += 2) {
+                    int x = k == -d || k != d && backward[offset + k - 1] < backward[offset + k + 1]
+                            ? backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                    int y = x - k;
+                    int x0 = x;
+                    int y0 = y;
+                    while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                        x++;
+                        y++;
+                    }
+                    backward[offset + k] = x;
+                    if (!odd && k >= delta - d && k <= delta + d && x + forward[offset + delta - k] >= n) {
+                        return new int[]{n - x, m - y, n - x0, m - y0};
+                    }
+                }
+            }
+            throw new IllegalStateException("No middle snake found");
+        }
+    }
+}
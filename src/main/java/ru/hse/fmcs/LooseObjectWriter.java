@@ -0,0 +1,149 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes loose objects so that nobody ever sees a partial one: the object is written to a temporary file
+// in the objects directory and published by an atomic rename. Equal content means that a concurrent writer
+// of the same object is harmless, whoever renames last replaces an identical file.
+//
+// core.fsyncobjects: false - no fsync; true - every file and its directory are synced before the write returns;
+// batch - files are kept under temporary names until flush(), which syncs them all, renames them and syncs
+// every touched directory once. Objects pending in a batch are readable by this process.
+public class LooseObjectWriter {
+    public static final String TEMP_PREFIX = "tmp_obj_";
+
+    private enum FsyncMode {NONE, EACH, BATCH}
+
+    private final Repository repository;
+    private final FsyncMode fsyncMode;
+    private final Map<String, Path> pending = new ConcurrentHashMap<>();
+
+    LooseObjectWriter(@NotNull Repository rep) throws GitException {
+        repository = rep;
+        String mode = rep.getConfigValue("core", "fsyncobjects");
+        if (mode == null || mode.trim().equals("false")) {
+            fsyncMode = FsyncMode.NONE;
+        } else if (mode.trim().equals("true")) {
+            fsyncMode = FsyncMode.EACH;
+        } else if (mode.trim().equals("batch")) {
+            fsyncMode = FsyncMode.BATCH;
+        } else {
+            throw new GitException("Bad core.fsyncobjects value '" + mode + "'");
+        }
+    }
+
+    public void write(@NotNull String sha, @NotNull GitObject.ObjectType type, byte[] payload) throws GitException {
+        KnownObjects knownObjects = repository.getKnownObjects();
+        if (pending.containsKey(sha) || knownObjects.contains(sha)) {
+            return;     // git object has already been written
+        }
+        Path objectPath = GitObject.getObjectPath(repository, sha);
+        Path objectsDir = objectPath.getParent().getParent();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(objectsDir, TEMP_PREFIX, "");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                DeflaterOutputStream out = new DeflaterOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.write(GitObject.header(type, payload.length));
+                out.write(payload);
+                out.finish();
+                out.flush();
+                if (fsyncMode == FsyncMode.EACH) {
+                    channel.force(true);
+                }
+            }
+            if (fsyncMode == FsyncMode.BATCH) {
+                if (pending.putIfAbsent(sha, temp) != null) {
+                    Files.deleteIfExists(temp);
+                }
+                return;
+            }
+            publish(temp, objectPath, !knownObjects.hasFanOutDir(sha));
+            knownObjects.add(sha);
+            if (fsyncMode == FsyncMode.EACH) {
+                syncDirectory(objectPath.getParent());
+            }
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw new GitException("Error while writing git object " + sha, e);
+        }
+    }
+
+    // temporary file of an object written in the current batch, null if the object isn't pending
+    public @Nullable Path getPendingPath(@NotNull String sha) {
+        return pending.get(sha);
+    }
+
+    // publishes every pending object; called once a command has written all its objects
+    public void flush() throws GitException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            for (Path temp : pending.values()) {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            Set<Path> directories = new HashSet<>();
+            for (var entry : pending.entrySet()) {
+                Path objectPath = GitObject.getObjectPath(repository, entry.getKey());
+                publish(entry.getValue(), objectPath, !repository.getKnownObjects().hasFanOutDir(entry.getKey()));
+                repository.getKnownObjects().add(entry.getKey());
+                directories.add(objectPath.getParent());
+            }
+            for (Path dir : directories) {
+                syncDirectory(dir);
+            }
+            pending.clear();
+        } catch (IOException e) {
+            throw new GitException("Error while publishing written objects", e);
+        }
+    }
+
+    private static void publish(Path temp, Path objectPath, boolean createDirectory) throws IOException {
+        if (createDirectory) {
+            Files.createDirectories(objectPath.getParent());
+        }
+        try {
+            Files.move(temp, objectPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // the fan-out directory was removed after it had been seen, e.g. by gc
+            Files.createDirectories(objectPath.getParent());
+            Files.move(temp, objectPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(temp);   // platforms that can't replace on rename, the same object is already there
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories can't be opened for sync on some platforms, the rename is still atomic there
+        }
+    }
+
+    private static void deleteQuietly(@Nullable Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // nothing else can be done, leftover temporary files are harmless
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+// Set of object ids kept as raw bytes in a single open-addressing table, about rawLength + 4 bytes per id instead
+// of a String and a hash map node. Ids are hashes already, so their first bytes pick the slot. Every id is numbered
+// in the order it was added, so the set also maps ids to small numbers like fast-export marks.
+public class ObjectIdSet {
+    private static final int INITIAL_SLOTS = 1 << 10;
+
+    private final int rawLength;
+    private byte[] ids;         // id of slot i at i * rawLength
+    private int[] numbers;      // number of the id in the slot plus one, 0 for a free slot
+    private int size;
+    private final byte[] probe;
+
+    public ObjectIdSet(int rawIdLength) {
+        rawLength = rawIdLength;
+        ids = new byte[INITIAL_SLOTS * rawLength];
+        numbers = new int[INITIAL_SLOTS];
+        probe = new byte[rawLength];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // false if the id is already there
+    public boolean add(@NotNull String sha) {
+        decode(sha, probe);
+        int slot = find(probe);
+        if (numbers[slot] != 0) {
+            return false;
+        }
+        System.arraycopy(probe, 0, ids, slot * rawLength, rawLength);
+        numbers[slot] = ++size;
+        // at most half of the slots are taken, so probe sequences stay short
+        if (size * 2 > numbers.length) {
+            grow();
+        }
+        return true;
+    }
+
+    public boolean contains(@NotNull String sha) {
+        return indexOf(sha) >= 0;
+    }
+
+    // number of the id counting from 0 in the order of adding, -1 if it isn't there
+    public int indexOf(@NotNull String sha) {
+        decode(sha, probe);
+        return numbers[find(probe)] - 1;
+    }
+
+    // slot holding the id, or the free slot where it belongs
+    private int find(byte[] raw) {
+        int mask = numbers.length - 1;
+        int slot = ((raw[0] & 0xff) << 24 | (raw[1] & 0xff) << 16 | (raw[2] & 0xff) << 8 | (raw[3] & 0xff)) & mask;
+        while (numbers[slot] != 0 && !Arrays.equals(ids, slot * rawLength, (slot + 1) * rawLength, raw, 0, rawLength)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        byte[] oldIds = ids;
+        int[] oldNumbers = numbers;
+        ids = new byte[oldIds.length * 2];
+        numbers = new int[oldNumbers.length * 2];
+        byte[] raw = new byte[rawLength];
+        for (int i = 0; i < oldNumbers.length; i++) {
+            if (oldNumbers[i] != 0) {
+                System.arraycopy(oldIds, i * rawLength, raw, 0, rawLength);
+                int slot = find(raw);
+                System.arraycopy(raw, 0, ids, slot * rawLength, rawLength);
+                numbers[slot] = oldNumbers[i];
+            }
+        }
+    }
+
+    private void decode(String sha, byte[] raw) {
+        if (sha.length() != rawLength * 2) {
+            throw new IllegalArgumentException("Bad object id " + sha);
+        }
+        for (int i = 0; i < rawLength; i++) {
+            raw[i] = (byte) (Character.digit(sha.charAt(2 * i), 16) << 4 | Character.digit(sha.charAt(2 * i + 1), 16));
+        }
+    }
+}
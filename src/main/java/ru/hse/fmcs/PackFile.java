@@ -0,0 +1,321 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Read-only view of a pack in the git pack format (version 2, objects are stored whole, no deltas) and its
+// version 2 index, both memory mapped. Only absolute reads are done on the mappings, so a PackFile is shared
+// between threads.
+//   pack: "PACK", version, object count, entries "<type and size varint><deflated payload>", hash of all of it
+//   idx:  magic, version, 256 cumulative fan-out counts, sorted raw ids, CRC32 of every entry, 32-bit offsets
+//         (with the high bit set they index the 64-bit offset table), 64-bit offsets, pack hash, index hash
+// A pack is mapped as a single buffer, so packs over 2 GiB are rejected; the 64-bit offset table is written and
+// read for compatibility, but no pack this code accepts needs it.
+public class PackFile {
+    static final byte[] PACK_SIGNATURE = {'P', 'A', 'C', 'K'};
+    static final int PACK_VERSION = 2;
+    static final int PACK_HEADER_LENGTH = 12;
+    static final byte[] IDX_MAGIC = {(byte) 0xff, 't', 'O', 'c'};
+    static final int IDX_VERSION = 2;
+    static final int FANOUT_ENTRIES = 256;
+    static final int IDX_HEADER_LENGTH = 8 + FANOUT_ENTRIES * 4;
+    static final int LARGE_OFFSET_FLAG = 0x80000000;
+    static final long MAX_PACK_SIZE = Integer.MAX_VALUE;
+
+    private final Path packPath;
+    private final Path idxPath;
+    private final int rawIdLength;
+    private final ByteBuffer idx;
+    private final ByteBuffer pack;
+    private final int count;
+    private final int idsStart;
+    private final int crcStart;
+    private final int offsetsStart;
+    private final int largeOffsetsStart;
+
+    private PackFile(Path idxFile, Path packFile, int idLength, ByteBuffer idxData, ByteBuffer packData) throws GitException {
+        idxPath = idxFile;
+        packPath = packFile;
+        rawIdLength = idLength;
+        idx = idxData;
+        pack = packData;
+        byte[] magic = new byte[4];
+        getBytes(idx, 0, magic);
+        if (!Arrays.equals(magic, IDX_MAGIC) || idx.getInt(4) != IDX_VERSION) {
+            throw new GitException("Unsupported pack index " + idxFile);
+        }
+        count = idx.getInt(IDX_HEADER_LENGTH - 4);
+        idsStart = IDX_HEADER_LENGTH;
+        crcStart = idsStart + count * rawIdLength;
+        offsetsStart = crcStart + count * 4;
+        largeOffsetsStart = offsetsStart + count * 4;
+        byte[] signature = new byte[4];
+        getBytes(pack, 0, signature);
+        if (!Arrays.equals(signature, PACK_SIGNATURE) || pack.getInt(4) != PACK_VERSION || pack.getInt(8) != count) {
+            throw new GitException("Pack " + packFile + " doesn't match its index");
+        }
+    }
+
+    public static @NotNull PackFile open(@NotNull Path idxFile, @NotNull GitHashService.ObjectFormat format) throws GitException {
+        String name = idxFile.getFileName().toString();
+        Path packFile = idxFile.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+        return new PackFile(idxFile, packFile, format.rawLength, map(idxFile), map(packFile));
+    }
+
+    private static ByteBuffer map(Path file) throws GitException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_PACK_SIZE) {
+                throw new GitException("Pack file " + file + " is larger than 2 GiB, which isn't supported");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new GitException("Error while opening pack file " + file, e);
+        }
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    public Path getIdxPath() {
+        return idxPath;
+    }
+
+    public int getObjectCount() {
+        return count;
+    }
+
+    public String getId(int i) {
+        byte[] raw = new byte[rawIdLength];
+        getBytes(idx, idsStart + i * rawIdLength, raw);
+        return Hex.encodeHexString(raw);
+    }
+
+    // position of the object in the index or -1
+    public int find(@NotNull String sha) {
+        byte[] raw;
+        try {
+            raw = Hex.decodeHex(sha.toCharArray());
+        } catch (DecoderException e) {
+            return -1;
+        }
+        if (raw.length != rawIdLength) {
+            return -1;
+        }
+        int first = raw[0] & 0xff;
+        int low = first == 0 ? 0 : idx.getInt(8 + (first - 1) * 4);
+        int high = idx.getInt(8 + first * 4) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareId(mid, raw);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    // position of the first id that isn't smaller than the lower case hex prefix; ids matching it follow
+    public int lowerBound(@NotNull String hexPrefix) {
+        int low = 0;
+        int high = count;
+        if (hexPrefix.length() >= 2) {
+            int first = Integer.parseInt(hexPrefix.substring(0, 2), 16);
+            low = first == 0 ? 0 : idx.getInt(8 + (first - 1) * 4);
+            high = idx.getInt(8 + first * 4);
+        }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getId(mid).compareTo(hexPrefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public boolean contains(@NotNull String sha) {
+        return find(sha) >= 0;
+    }
+
+    private int compareId(int i, byte[] raw) {
+        int base = idsStart + i * rawIdLength;
+        for (int j = 0; j < rawIdLength; j++) {
+            int cmp = Integer.compare(idx.get(base + j) & 0xff, raw[j] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    public long getOffset(int i) {
+        int offset = idx.getInt(offsetsStart + i * 4);
+        if ((offset & LARGE_OFFSET_FLAG) != 0) {
+            return idx.getLong(largeOffsetsStart + (offset & ~LARGE_OFFSET_FLAG) * 8);
+        }
+        return offset;
+    }
+
+    public int getCrc(int i) {
+        return idx.getInt(crcStart + i * 4);
+    }
+
+    public GitObject.ObjectHeader readHeader(int i) throws GitException {
+        return readEntryHeader((int) getOffset(i)).header;
+    }
+
+    public GitObject.RawObject read(int i) throws GitException {
+        EntryHeader entry = readEntryHeader((int) getOffset(i));
+        if (entry.header.size > Integer.MAX_VALUE) {
+            throw new GitException("Object " + getId(i) + " is too big");
+        }
+        return new GitObject.RawObject(entry.header, inflate(i, entry, (int) entry.header.size));
+    }
+
+    private byte[] inflate(int i, EntryHeader entry, int length) throws GitException {
+        byte[] payload = new byte[length];
+        Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(new MappedInputStream(pack, entry.dataOffset), inflater)) {
+            int read = in.readNBytes(payload, 0, payload.length);
+            if (read != payload.length) {
+                throw new GitException("Truncated object " + getId(i) + " in pack " + packPath);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while reading object " + getId(i) + " from pack " + packPath, e);
+        } finally {
+            inflater.end();
+        }
+        return payload;
+    }
+
+    // raw bytes of the pack between two offsets, e.g. an entry to check its CRC or copy it to another pack
+    public ByteBuffer slice(long from, long to) {
+        ByteBuffer view = pack.duplicate();
+        view.position((int) from).limit((int) to);
+        return view.slice();
+    }
+
+    public long getPackSize() {
+        return pack.capacity();
+    }
+
+    // trailing hashes of the pack and the index cover everything before them
+    public boolean packChecksumMatches(@NotNull GitHashService hashService) {
+        return checksumMatches(pack, hashService);
+    }
+
+    public boolean idxChecksumMatches(@NotNull GitHashService hashService) {
+        return checksumMatches(idx, hashService);
+    }
+
+    private boolean checksumMatches(ByteBuffer data, GitHashService hashService) {
+        int end = data.capacity() - rawIdLength;
+        if (end < 0) {
+            return false;
+        }
+        ByteBuffer content = data.duplicate();
+        content.position(0).limit(end);
+        byte[] stored = new byte[rawIdLength];
+        getBytes(data, end, stored);
+        return Arrays.equals(hashService.newHasher().update(content).digest(), stored);
+    }
+
+    private static void getBytes(ByteBuffer buffer, int index, byte[] dst) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(index);
+        view.get(dst);
+    }
+
+    private static class EntryHeader {
+        final GitObject.ObjectHeader header;
+        final int dataOffset;
+
+        EntryHeader(GitObject.ObjectHeader objectHeader, int offset) {
+            header = objectHeader;
+            dataOffset = offset;
+        }
+    }
+
+    private EntryHeader readEntryHeader(int offset) throws GitException {
+        int b = pack.get(offset++) & 0xff;
+        GitObject.ObjectType type = typeOf((b >> 4) & 0x7);
+        long size = b & 0x0f;
+        int shift = 4;
+        while ((b & 0x80) != 0) {
+            b = pack.get(offset++) & 0xff;
+            size |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        }
+        return new EntryHeader(new GitObject.ObjectHeader(type, size), offset);
+    }
+
+    static int typeCode(GitObject.ObjectType type) {
+        switch (type) {
+            case commit:
+                return 1;
+            case tree:
+                return 2;
+            case blob:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    static GitObject.ObjectType typeOf(int code) throws GitException {
+        switch (code) {
+            case 1:
+                return GitObject.ObjectType.commit;
+            case 2:
+                return GitObject.ObjectType.tree;
+            case 3:
+                return GitObject.ObjectType.blob;
+            case 4:
+                return GitObject.ObjectType.tag;
+            default:
+                throw new GitException("Unsupported pack entry type " + code);
+        }
+    }
+
+    // reads a mapping from the given position without moving the shared buffer
+    private static class MappedInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        MappedInputStream(ByteBuffer mapping, int position) {
+            buffer = mapping.duplicate();
+            buffer.position(position);
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Streams objects into a new pack in git/objects/pack, see PackFile for the format. Entries are appended
+// as they come, only ids, offsets and CRCs are kept in memory. The object count in the header is patched
+// when the pack is finished, so the number of objects doesn't have to be known in advance.
+// A pack can also be written after a header into a file outside the object store, like a bundle; it gets no index.
+public class PackWriter implements Closeable {
+    public static final String TEMP_PREFIX = "tmp_pack_";
+
+    private static class Entry {
+        final byte[] rawId;
+        final long offset;
+        final int crc;
+
+        Entry(byte[] id, long entryOffset, int entryCrc) {
+            rawId = id;
+            offset = entryOffset;
+            crc = entryCrc;
+        }
+    }
+
+    private final Repository repository;
+    private final Path packDir;
+    private final @Nullable Path target;    // file the pack goes to, null for the object store
+    private final long start;               // length of the header before the pack
+    private final Path tempPack;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Deflater deflater = new Deflater();
+    private final byte[] deflateBuffer = new byte[64 * 1024];
+    private long position;
+    private boolean finished;
+
+    public PackWriter(@NotNull Repository rep) throws GitException {
+        this(rep, getPackDir(rep), null, new byte[0]);
+    }
+
+    // the file is replaced when the pack is finished
+    public PackWriter(@NotNull Repository rep, @NotNull Path file, byte[] fileHeader) throws GitException {
+        this(rep, file.toAbsolutePath().getParent(), file, fileHeader);
+    }
+
+    private PackWriter(Repository rep, Path dir, @Nullable Path file, byte[] fileHeader) throws GitException {
+        repository = rep;
+        packDir = dir;
+        target = file;
+        start = fileHeader.length;
+        try {
+            Files.createDirectories(packDir);
+            tempPack = Files.createTempFile(packDir, TEMP_PREFIX, ".pack");
+            channel = FileChannel.open(tempPack, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            out.write(fileHeader);
+            ByteBuffer header = ByteBuffer.allocate(PackFile.PACK_HEADER_LENGTH);
+            header.put(PackFile.PACK_SIGNATURE).putInt(PackFile.PACK_VERSION).putInt(0);
+            out.write(header.array());
+            position = PackFile.PACK_HEADER_LENGTH;
+        } catch (IOException e) {
+            throw new GitException("Error while creating pack", e);
+        }
+    }
+
+    public static Path getPackDir(@NotNull Repository repository) {
+        return repository.getGitDir().resolve("objects").resolve("pack");
+    }
+
+    public boolean contains(@NotNull String sha) {
+        return entries.containsKey(sha);
+    }
+
+    public int getObjectCount() {
+        return entries.size();
+    }
+
+    public void add(@NotNull String sha, @NotNull GitObject.ObjectType type, byte[] payload) throws GitException {
+        if (entries.containsKey(sha)) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        long offset = position;
+        try {
+            writeEntryHeader(type, payload.length, crc);
+            deflater.reset();
+            deflater.setInput(payload);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(deflateBuffer);
+                write(deflateBuffer, 0, n, crc);
+            }
+            entries.put(sha, new Entry(Hex.decodeHex(sha.toCharArray()), offset, (int) crc.getValue()));
+        } catch (IOException | DecoderException e) {
+            throw new GitException("Error while writing object " + sha + " to pack", e);
+        }
+    }
+
+    // copies an entry of another pack as it is, the entry header and the deflated payload of the object
+    public void addEntry(@NotNull String sha, byte[] entry) throws GitException {
+        if (entries.containsKey(sha)) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        long offset = position;
+        try {
+            write(entry, 0, entry.length, crc);
+            entries.put(sha, new Entry(Hex.decodeHex(sha.toCharArray()), offset, (int) crc.getValue()));
+        } catch (IOException | DecoderException e) {
+            throw new GitException("Error while writing object " + sha + " to pack", e);
+        }
+    }
+
+    private void writeEntryHeader(GitObject.ObjectType type, long size, CRC32 crc) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(10);
+        int b = (PackFile.typeCode(type) << 4) | (int) (size & 0x0f);
+        size >>>= 4;
+        while (size != 0) {
+            header.write(b | 0x80);
+            b = (int) (size & 0x7f);
+            size >>>= 7;
+        }
+        header.write(b);
+        byte[] bytes = header.toByteArray();
+        write(bytes, 0, bytes.length, crc);
+    }
+
+    private void write(byte[] data, int offset, int length, CRC32 crc) throws IOException {
+        out.write(data, offset, length);
+        crc.update(data, offset, length);
+        position += length;
+    }
+
+    // completes the pack and its index and moves them to their final names; the pack is returned opened
+    public @NotNull PackFile finish() throws GitException {
+        if (target != null) {
+            throw new IllegalStateException("Pack isn't written to the object store");
+        }
+        // a pack that couldn't be mapped isn't moved into place, close() drops it
+        if (position + repository.getHashService().getFormat().rawLength > PackFile.MAX_PACK_SIZE) {
+            throw new GitException("Pack would be larger than 2 GiB, which isn't supported");
+        }
+        try {
+            byte[] packHash = completePack();
+            String name = "pack-" + Hex.encodeHexString(packHash);
+            Path packPath = packDir.resolve(name + ".pack");
+            Path idxPath = packDir.resolve(name + ".idx");
+            Path tempIdx = Files.createTempFile(packDir, TEMP_PREFIX, ".idx");
+            Files.write(tempIdx, buildIndex(packHash));
+            // readers look for the index, so the pack has to be in place first
+            Files.move(tempPack, packPath, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempIdx, idxPath, StandardCopyOption.ATOMIC_MOVE);
+            return PackFile.open(idxPath, repository.getHashService().getFormat());
+        } catch (IOException e) {
+            throw new GitException("Error while finishing pack", e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // completes the pack and moves it with its header to the file
+    public void finishFile() throws GitException {
+        if (target == null) {
+            throw new IllegalStateException("Pack is written to the object store");
+        }
+        try {
+            completePack();
+            Files.move(tempPack, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new GitException("Error while finishing pack", e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // patches the object count and appends the hash of the pack
+    private byte[] completePack() throws IOException {
+        out.flush();
+        ByteBuffer count = ByteBuffer.allocate(4).putInt(entries.size());
+        count.flip();
+        channel.write(count, start + 8);
+        byte[] packHash;
+        try (GitHashService.Hasher hasher = repository.getHashService().newHasher()) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            long read = 0;
+            while (read < position) {
+                buffer.clear();
+                int n = channel.read(buffer, start + read);
+                buffer.flip();
+                hasher.update(buffer);
+                read += n;
+            }
+            packHash = hasher.digest();
+        }
+        channel.write(ByteBuffer.wrap(packHash), start + position);
+        channel.force(true);
+        channel.close();
+        finished = true;
+        return packHash;
+    }
+
+    private byte[] buildIndex(byte[] packHash) {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.rawId, b.rawId));
+        int rawIdLength = repository.getHashService().getFormat().rawLength;
+        // offsets that don't fit into 31 bits go to the 64-bit table
+        int largeOffsets = 0;
+        for (Entry entry : sorted) {
+            if (entry.offset > Integer.MAX_VALUE) {
+                largeOffsets++;
+            }
+        }
+        int size = PackFile.IDX_HEADER_LENGTH + sorted.size() * (rawIdLength + 8) + largeOffsets * 8 + rawIdLength * 2;
+        ByteBuffer idx = ByteBuffer.allocate(size);
+        idx.put(PackFile.IDX_MAGIC).putInt(PackFile.IDX_VERSION);
+        int[] fanout = new int[PackFile.FANOUT_ENTRIES];
+        for (Entry entry : sorted) {
+            fanout[entry.rawId[0] & 0xff]++;
+        }
+        int total = 0;
+        for (int i = 0; i < PackFile.FANOUT_ENTRIES; i++) {
+            total += fanout[i];
+            idx.putInt(total);
+        }
+        for (Entry entry : sorted) {
+            idx.put(entry.rawId);
+        }
+        for (Entry entry : sorted) {
+            idx.putInt(entry.crc);
+        }
+        int large = 0;
+        for (Entry entry : sorted) {
+            if (entry.offset > Integer.MAX_VALUE) {
+                idx.putInt(PackFile.LARGE_OFFSET_FLAG | large++);
+            } else {
+                idx.putInt((int) entry.offset);
+            }
+        }
+        for (Entry entry : sorted) {
+            if (entry.offset > Integer.MAX_VALUE) {
+                idx.putLong(entry.offset);
+            }
+        }
+        idx.put(packHash);
+        idx.put(repository.getHashService().newHasher().update(idx.array(), 0, idx.position()).digest());
+        return Arrays.copyOf(idx.array(), idx.position());
+    }
+
+    // drops an unfinished pack
+    @Override
+    public void close() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        deflater.end();
+        try {
+            channel.close();
+            Files.deleteIfExists(tempPack);
+        } catch (IOException ignored) {
+            // leftover temporary packs are removed by gc
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// Bitmaps of objects reachable from selected commits of a pack, kept in pack-<hash>.bitmap next to its index.
+// Bit i stands for the i-th object of the pack index. Reachability is then a walk from the tips that stops at
+// the first commit with a bitmap and ORs it in; only commits newer than the bitmapped ones and their trees are read.
+//   file: "BITM", version, object count of the pack, 4 type bitmaps (commit, tree, blob, tag),
+//         number of commits, <index position, bitmap> for each of them, hash of everything before
+// Bitmaps are EWAH compressed, see EwahBitmap. gc writes them for ref tips and every SELECTION_INTERVAL-th commit.
+public class ReachabilityBitmaps {
+    public static final String EXTENSION = ".bitmap";
+    private static final byte[] MAGIC = {'B', 'I', 'T', 'M'};
+    private static final int VERSION = 1;
+    private static final int SELECTION_INTERVAL = 64;
+    private static final GitObject.ObjectType[] TYPES = {GitObject.ObjectType.commit, GitObject.ObjectType.tree,
+            GitObject.ObjectType.blob, GitObject.ObjectType.tag};
+
+    // Objects found by a walk: pack positions as bits, everything outside the bitmapped pack by id
+    public static class Reachable {
+        private final @Nullable ReachabilityBitmaps bitmaps;
+        final BitSet packed = new BitSet();
+        final Map<String, GitObject.ObjectType> outside = new HashMap<>();
+
+        Reachable(@Nullable ReachabilityBitmaps packBitmaps) {
+            bitmaps = packBitmaps;
+        }
+
+        public int count(@NotNull GitObject.ObjectType type) {
+            int count = 0;
+            if (bitmaps != null) {
+                BitSet ofType = (BitSet) packed.clone();
+                ofType.and(bitmaps.typeBitmaps[typeIndex(type)]);
+                count += ofType.cardinality();
+            }
+            for (GitObject.ObjectType outsideType : outside.values()) {
+                if (outsideType == type) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public int total() {
+            return packed.cardinality() + outside.size();
+        }
+
+        public int countOutsidePack() {
+            return outside.size();
+        }
+
+        public @NotNull Map<String, GitObject.ObjectType> toMap() {
+            Map<String, GitObject.ObjectType> all = new HashMap<>(outside);
+            if (bitmaps != null) {
+                for (int i = packed.nextSetBit(0); i >= 0; i = packed.nextSetBit(i + 1)) {
+                    all.put(bitmaps.pack.getId(i), bitmaps.typeOf(i));
+                }
+            }
+            return all;
+        }
+    }
+
+    private final Repository repository;
+    private final PackFile pack;
+    private final BitSet[] typeBitmaps;
+    private final Map<Integer, BitSet> commitBitmaps;
+
+    private ReachabilityBitmaps(Repository rep, PackFile packFile, BitSet[] types, Map<Integer, BitSet> commits) {
+        repository = rep;
+        pack = packFile;
+        typeBitmaps = types;
+        commitBitmaps = commits;
+    }
+
+    public static Path getBitmapPath(@NotNull PackFile pack) {
+        String name = pack.getIdxPath().getFileName().toString();
+        return pack.getIdxPath().resolveSibling(name.substring(0, name.length() - ".idx".length()) + EXTENSION);
+    }
+
+    public @NotNull PackFile getPack() {
+        return pack;
+    }
+
+    public int getCommitCount() {
+        return commitBitmaps.size();
+    }
+
+    // bitmaps of the first pack that has them, null if none does
+    public static @Nullable ReachabilityBitmaps load(@NotNull Repository repository) throws GitException {
+        for (PackFile pack : repository.getPacks()) {
+            Path path = getBitmapPath(pack);
+            if (Files.exists(path)) {
+                return read(repository, pack, path);
+            }
+        }
+        return null;
+    }
+
+    private static ReachabilityBitmaps read(Repository repository, PackFile pack, Path path) throws GitException {
+        try {
+            byte[] data = Files.readAllBytes(path);
+            int hashLength = repository.getHashService().getFormat().rawLength;
+            if (data.length < hashLength || !Arrays.equals(
+                    repository.getHashService().newHasher().update(data, 0, data.length - hashLength).digest(),
+                    Arrays.copyOfRange(data, data.length - hashLength, data.length))) {
+                throw new GitException("Corrupted bitmap file " + path);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - hashLength));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                throw new GitException("Unsupported bitmap file " + path);
+            }
+            if (in.readInt() != pack.getObjectCount()) {
+                throw new GitException("Bitmap file " + path + " doesn't match its pack");
+            }
+            BitSet[] types = new BitSet[TYPES.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = EwahBitmap.read(in);
+            }
+            int count = in.readInt();
+            Map<Integer, BitSet> commits = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int position = in.readInt();
+                commits.put(position, EwahBitmap.read(in));
+            }
+            return new ReachabilityBitmaps(repository, pack, types, commits);
+        } catch (IOException e) {
+            throw new GitException("Error while reading bitmap file " + path, e);
+        }
+    }
+
+    // objects reachable from the tips, using the bitmaps of the repository if there are any
+    public static @NotNull Reachable reachableFrom(@NotNull Repository repository, @NotNull Collection<String> tips) throws GitException {
+        ReachabilityBitmaps bitmaps = load(repository);
+        return bitmaps == null ? walkWithoutBitmaps(repository, tips) : bitmaps.reachableFrom(tips);
+    }
+
+    // reads every commit and tree, every object ends up in Reachable.outside
+    public static @NotNull Reachable walkWithoutBitmaps(@NotNull Repository repository, @NotNull Collection<String> tips) throws GitException {
+        Reachable reachable = new Reachable(null);
+        new Walk(repository, null, Map.of(), reachable).run(tips);
+        return reachable;
+    }
+
+    public @NotNull Reachable reachableFrom(@NotNull Collection<String> tips) throws GitException {
+        Reachable reachable = new Reachable(this);
+        new Walk(repository, pack, commitBitmaps, reachable).run(tips);
+        return reachable;
+    }
+
+    private GitObject.ObjectType typeOf(int position) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (typeBitmaps[i].get(position)) {
+                return TYPES[i];
+            }
+        }
+        return GitObject.ObjectType.blob;
+    }
+
+    private static int typeIndex(GitObject.ObjectType type) {
+        return PackFile.typeCode(type) - 1;
+    }
+
+    // Commits are walked with an explicit stack, trees recursively; a commit with a bitmap ends its branch of the walk
+    private static class Walk {
+        private final Repository repository;
+        private final @Nullable PackFile pack;
+        private final Map<Integer, BitSet> bitmaps;
+        private final Reachable reachable;
+        private final boolean followChunks;
+
+        Walk(Repository rep, @Nullable PackFile packFile, Map<Integer, BitSet> commitBitmaps, Reachable result) throws GitException {
+            repository = rep;
+            pack = packFile;
+            bitmaps = commitBitmaps;
+            reachable = result;
+            followChunks = ChunkedFiles.isEnabledIn(rep);
+        }
+
+        void run(Collection<String> tips) throws GitException {
+            Deque<String> commits = new ArrayDeque<>();
+            for (String tip : tips) {
+                String sha = tip;
+                GitObject.ObjectType type = GitObject.getObjectType(repository, sha);
+                // annotated tags are marked and peeled to the object they tag
+                while (type == GitObject.ObjectType.tag && mark(sha, type)) {
+                    byte[] payload = GitObject.readRawObject(repository, sha).payload;
+                    sha = GitTagObject.getTarget(payload);
+                    type = GitTagObject.getTargetType(payload);
+                }
+                if (type == GitObject.ObjectType.commit) {
+                    commits.push(sha);
+                } else if (type == GitObject.ObjectType.tree) {
+                    markTree(sha);
+                } else if (type != GitObject.ObjectType.tag) {
+                    mark(sha, type);
+                }
+            }
+            while (!commits.isEmpty()) {
+                String sha = commits.pop();
+                int position = pack == null ? -1 : pack.find(sha);
+                BitSet bitmap = position < 0 ? null : bitmaps.get(position);
+                if (bitmap != null) {
+                    reachable.packed.or(bitmap);
+                    continue;
+                }
+                if (!mark(sha, GitObject.ObjectType.commit)) {
+                    continue;
+                }
+                GitCommitObject commit = (GitCommitObject) GitObject.readObject(repository, sha);
+                markTree(commit.treeSha);
+                for (String parent : commit.parents) {
+                    commits.push(parent);
+                }
+            }
+        }
+
+        private void markTree(String sha) throws GitException {
+            if (!mark(sha, GitObject.ObjectType.tree)) {
+                return;
+            }
+            GitTreeObject.Cursor cursor = ((GitTreeObject) GitObject.readObject(repository, sha)).cursor();
+            while (cursor.next()) {
+                if (cursor.getType() == GitObject.ObjectType.tree) {
+                    markTree(cursor.getSha());
+                } else if (mark(cursor.getSha(), cursor.getType()) && followChunks) {
+                    for (String chunk : ChunkedFiles.getChunkIds(repository, cursor.getSha())) {
+                        mark(chunk, GitObject.ObjectType.blob);
+                    }
+                }
+            }
+        }
+
+        // false if the object was already marked
+        private boolean mark(String sha, GitObject.ObjectType type) {
+            int position = pack == null ? -1 : pack.find(sha);
+            if (position >= 0) {
+                if (reachable.packed.get(position)) {
+                    return false;
+                }
+                reachable.packed.set(position);
+                return true;
+            }
+            return reachable.outside.putIfAbsent(sha, type) == null;
+        }
+    }
+
+    // selects commits of the pack and writes their bitmaps; older commits first, so newer ones stop at them
+    public static void write(@NotNull Repository repository, @NotNull PackFile pack, @NotNull Collection<String> tips) throws GitException {
+        List<String> commits = commitsOldestFirst(repository, pack, tips);
+        Set<String> selected = new HashSet<>();
+        for (int i = 0; i < commits.size(); i++) {
+            if (i % SELECTION_INTERVAL == SELECTION_INTERVAL - 1) {
+                selected.add(commits.get(i));
+            }
+        }
+        for (String tip : tips) {
+            if (pack.contains(tip)) {
+                selected.add(tip);
+            }
+        }
+        Map<Integer, BitSet> built = new TreeMap<>();
+        for (String commit : commits) {
+            if (selected.contains(commit)) {
+                Reachable reachable = new Reachable(null);
+                new Walk(repository, pack, built, reachable).run(List.of(commit));
+                built.put(pack.find(commit), reachable.packed);
+            }
+        }
+        BitSet[] types = new BitSet[TYPES.length];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = new BitSet(pack.getObjectCount());
+        }
+        for (int i = 0; i < pack.getObjectCount(); i++) {
+            types[typeIndex(pack.readHeader(i).type)].set(i);
+        }
+
+        Path path = getBitmapPath(pack);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pack.getObjectCount());
+            for (BitSet type : types) {
+                EwahBitmap.write(out, type);
+            }
+            out.writeInt(built.size());
+            for (Map.Entry<Integer, BitSet> entry : built.entrySet()) {
+                out.writeInt(entry.getKey());
+                EwahBitmap.write(out, entry.getValue());
+            }
+            out.flush();
+            out.write(repository.getHashService().newHasher().update(bytes.toByteArray(), 0, bytes.size()).digest());
+            Path temp = Files.createTempFile(path.getParent(), PackWriter.TEMP_PREFIX, EXTENSION);
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new GitException("Error while writing bitmap file " + path, e);
+        }
+    }
+
+    // commits of the pack reachable from the tips, every commit after all of its parents
+    private static List<String> commitsOldestFirst(Repository repository, PackFile pack, Collection<String> tips) throws GitException {
+        List<String> order = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        for (String tip : tips) {
+            if (pack.contains(tip) && GitObject.getObjectType(repository, tip) == GitObject.ObjectType.commit) {
+                stack.push(tip);
+                expanded.push(false);
+            }
+        }
+        while (!stack.isEmpty()) {
+            String sha = stack.pop();
+            boolean parentsDone = expanded.pop();
+            if (parentsDone) {
+                order.add(sha);
+                continue;
+            }
+            if (!seen.add(sha)) {
+                continue;
+            }
+            stack.push(sha);
+            expanded.push(true);
+            GitCommitObject commit = (GitCommitObject) GitObject.readObject(repository, sha);
+            for (String parent : commit.parents) {
+                if (!seen.contains(parent) && pack.contains(parent)) {
+                    stack.push(parent);
+                    expanded.push(false);
+                }
+            }
+        }
+        return order;
+    }
+}
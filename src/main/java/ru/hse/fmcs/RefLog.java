@@ -0,0 +1,208 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Previous values of a ref, appended to logs/<ref> (logs/HEAD, logs/refs/heads/<branch>) on every move.
+// Records have a fixed width, so the n-th newest one is read with a single seek from the end of the file and
+// the value at a point in time is found by binary search on the timestamps, which only grow:
+//   <old id, raw> <new id, raw> <epoch seconds, long> <message, UTF-8 padded with zeros to MESSAGE_LENGTH>
+// A zero old id means the ref didn't exist before. A partly written last record is ignored.
+public class RefLog {
+    public static final int MESSAGE_LENGTH = 72;
+
+    public static class Entry {
+        public final @Nullable String oldSha;
+        public final String newSha;
+        public final long timestamp;
+        public final String message;
+
+        Entry(@Nullable String oldId, String newId, long time, String msg) {
+            oldSha = oldId;
+            newSha = newId;
+            timestamp = time;
+            message = msg;
+        }
+    }
+
+    private final Path file;
+    private final int rawLength;
+    private final int recordLength;
+
+    private RefLog(@NotNull Repository rep, @NotNull String refName) {
+        file = getLogsDir(rep).resolve(refName);
+        rawLength = rep.getObjectFormat().rawLength;
+        recordLength = 2 * rawLength + Long.BYTES + MESSAGE_LENGTH;
+    }
+
+    // refName is HEAD or a full name under refs/
+    public static @NotNull RefLog of(@NotNull Repository repository, @NotNull String refName) {
+        return new RefLog(repository, refName);
+    }
+
+    public static @NotNull Path getLogsDir(@NotNull Repository repository) {
+        return repository.getGitDir().resolve("logs");
+    }
+
+    public void append(@Nullable String oldSha, @NotNull String newSha, @NotNull String message) throws GitException {
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        try {
+            record.put(oldSha == null ? new byte[rawLength] : Hex.decodeHex(oldSha.trim().toCharArray()));
+            record.put(Hex.decodeHex(newSha.trim().toCharArray()));
+        } catch (DecoderException e) {
+            throw new GitException("Bad object id in ref log record", e);
+        }
+        record.putLong(Instant.now().getEpochSecond());
+        byte[] text = truncate(message.replace('\n', ' '));
+        record.put(text);
+        record.position(recordLength);
+        record.flip();
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                // a single write, so records of concurrent commands don't interleave
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while writing ref log " + file, e);
+        }
+    }
+
+    // longest prefix that fits into a record without splitting a character
+    private static byte[] truncate(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MESSAGE_LENGTH) {
+            return bytes;
+        }
+        int end = MESSAGE_LENGTH;
+        while (end > 0 && (bytes[end] & 0xc0) == 0x80) {
+            end--;
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    public long size() throws GitException {
+        try {
+            return Files.exists(file) ? Files.size(file) / recordLength : 0;
+        } catch (IOException e) {
+            throw new GitException("Error while reading ref log " + file, e);
+        }
+    }
+
+    // value of the ref n moves ago; the oldest record's old value stands for n equal to the number of records
+    public @Nullable String valueBefore(long n) throws GitException {
+        long size = size();
+        if (n < size) {
+            return read(size - 1 - n).newSha;
+        }
+        if (n == size && size > 0) {
+            return read(0).oldSha;
+        }
+        return null;
+    }
+
+    // value the ref had at the moment, the oldest known value for moments before the first record
+    public @Nullable String valueAt(@NotNull Instant time) throws GitException {
+        long size = size();
+        if (size == 0) {
+            return null;
+        }
+        long seconds = time.getEpochSecond();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long lo = 0;
+            long hi = size;
+            // first record written after the moment
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (read(channel, mid).timestamp <= seconds) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo == 0 ? read(channel, 0).oldSha : read(channel, lo - 1).newSha;
+        } catch (IOException e) {
+            throw new GitException("Error while reading ref log " + file, e);
+        }
+    }
+
+    public @NotNull Entry read(long index) throws GitException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel, index);
+        } catch (IOException e) {
+            throw new GitException("Error while reading ref log " + file, e);
+        }
+    }
+
+    private Entry read(FileChannel channel, long index) throws IOException, GitException {
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        while (record.hasRemaining()) {
+            if (channel.read(record, index * recordLength + record.position()) < 0) {
+                throw new GitException("Ref log " + file + " is truncated");
+            }
+        }
+        record.flip();
+        byte[] oldRaw = new byte[rawLength];
+        byte[] newRaw = new byte[rawLength];
+        record.get(oldRaw);
+        record.get(newRaw);
+        long timestamp = record.getLong();
+        byte[] text = new byte[MESSAGE_LENGTH];
+        record.get(text);
+        int length = 0;
+        while (length < text.length && text[length] != 0) {
+            length++;
+        }
+        boolean created = true;
+        for (byte b : oldRaw) {
+            created &= b == 0;
+        }
+        return new Entry(created ? null : Hex.encodeHexString(oldRaw), Hex.encodeHexString(newRaw), timestamp,
+                new String(text, 0, length, StandardCharsets.UTF_8));
+    }
+
+    // every id recorded in any ref log; gc keeps these objects so that lost work can be recovered
+    public static @NotNull List<String> collectIds(@NotNull Repository repository) throws GitException {
+        List<String> ids = new ArrayList<>();
+        Path logsDir = getLogsDir(repository);
+        if (!Files.isDirectory(logsDir)) {
+            return ids;
+        }
+        try (Stream<Path> files = Files.walk(logsDir)) {
+            for (Path log : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                RefLog refLog = of(repository, logsDir.relativize(log).toString().replace('\\', '/'));
+                long size = refLog.size();
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                    for (long i = 0; i < size; i++) {
+                        Entry entry = refLog.read(channel, i);
+                        if (entry.oldSha != null) {
+                            ids.add(entry.oldSha);
+                        }
+                        ids.add(entry.newSha);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while reading ref logs", e);
+        }
+        return ids;
+    }
+}
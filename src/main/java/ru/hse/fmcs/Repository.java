@@ -7,17 +7,38 @@ import org.jetbrains.annotations.Nullable;
 import picocli.CommandLine;
 
 import java.io.*;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.FileTime;
-import java.time.LocalDateTime;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
 import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class Repository implements Serializable {
+    private static final String CHUNK_MANIFESTS_FILE = "chunked-manifests";
+    private static final DateTimeFormatter TIMEZONE_FORMATTER = DateTimeFormatter.ofPattern("xx");
+
     private final String workingDir;
+    private GitHashService.ObjectFormat objectFormat = GitHashService.ObjectFormat.SHA1;
+    private transient Ini config;
+    private transient LooseObjectWriter objectWriter;
+    private transient KnownObjects knownObjects;
+    private transient List<PackFile> packs;
+    private transient AbbreviatedIds abbreviatedIds;
+    private transient Revisions revisions;
+    private transient ChangedPaths changedPaths;
+    private transient ChunkedFiles chunkedFiles;
+    private transient boolean chunkedFilesLoaded;
+    private transient Set<String> chunkManifests;
 
     private Repository(String path) throws GitException {
         workingDir = path;
@@ -27,7 +48,12 @@ public class Repository implements Serializable {
     }
 
     public static @NotNull Repository create(String path) throws GitException {
+        return create(path, GitHashService.ObjectFormat.SHA1);
+    }
+
+    public static @NotNull Repository create(String path, GitHashService.ObjectFormat format) throws GitException {
         Repository rep = new Repository(path);
+        rep.objectFormat = format;
         Path workingDirPath = Path.of(rep.workingDir);
         if (Files.exists(workingDirPath)) {
             if (!Files.isDirectory(workingDirPath)) {
@@ -50,6 +76,7 @@ public class Repository implements Serializable {
             createDefaultDescription(rep);
             createDefaultHead(rep);
             createDefaultConfig(rep);
+            rep.loadConfig();
             rep.setBranch();
         } catch (IOException e) {
             throw new GitException("Error while creating git files", e);
@@ -68,8 +95,10 @@ public class Repository implements Serializable {
                 if (Files.exists(expectedGitFolderPath)) {
                     Repository repository = new Repository(path.toString()); // using private constructor that doesn't validate the files in the path
                     performChecks(repository);                               // validating repository structure and config file
+                    repository.loadConfig();
                     return repository;
                 }
+                path = path.getParent();
             }
         } catch (IOException e) {
             throw new GitException("Unexpected error while comparing paths", e);
@@ -106,6 +135,125 @@ public class Repository implements Serializable {
         return Path.of(workingDir);
     }
 
+    public GitHashService.ObjectFormat getObjectFormat() {
+        return objectFormat;
+    }
+
+    public synchronized LooseObjectWriter getObjectWriter() throws GitException {
+        if (objectWriter == null) {
+            objectWriter = new LooseObjectWriter(this);
+        }
+        return objectWriter;
+    }
+
+    public synchronized KnownObjects getKnownObjects() {
+        if (knownObjects == null) {
+            knownObjects = new KnownObjects(this);
+        }
+        return knownObjects;
+    }
+
+    public synchronized AbbreviatedIds getAbbreviatedIds() {
+        if (abbreviatedIds == null) {
+            abbreviatedIds = new AbbreviatedIds(this);
+        }
+        return abbreviatedIds;
+    }
+
+    public synchronized Revisions getRevisions() {
+        if (revisions == null) {
+            revisions = new Revisions(this);
+        }
+        return revisions;
+    }
+
+    public synchronized ChangedPaths getChangedPaths() {
+        if (changedPaths == null) {
+            changedPaths = new ChangedPaths(this);
+        }
+        return changedPaths;
+    }
+
+    // large-file settings read once rather than for every file added or hashed, null if large-file mode is off
+    public synchronized @Nullable ChunkedFiles getChunkedFiles() throws GitException {
+        if (!chunkedFilesLoaded) {
+            chunkedFiles = ChunkedFiles.load(this);
+            chunkedFilesLoaded = true;
+        }
+        return chunkedFiles;
+    }
+
+    // whether the blob was stored as a chunk manifest; git/chunked-manifests lists their ids one per line
+    public synchronized boolean isChunkManifest(@NotNull String sha) throws GitException {
+        return getChunkManifests().contains(sha);
+    }
+
+    public synchronized void addChunkManifest(@NotNull String sha) throws GitException {
+        if (getChunkManifests().add(sha)) {
+            try {
+                Files.writeString(getGitDir().resolve(CHUNK_MANIFESTS_FILE), sha + "\n",
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new GitException("Error while writing " + CHUNK_MANIFESTS_FILE, e);
+            }
+        }
+    }
+
+    private Set<String> getChunkManifests() throws GitException {
+        if (chunkManifests == null) {
+            chunkManifests = new HashSet<>();
+            Path path = getGitDir().resolve(CHUNK_MANIFESTS_FILE);
+            try {
+                if (Files.exists(path)) {
+                    chunkManifests.addAll(Files.readAllLines(path));
+                }
+            } catch (IOException e) {
+                throw new GitException("Error while reading " + CHUNK_MANIFESTS_FILE, e);
+            }
+        }
+        return chunkManifests;
+    }
+
+    // packs in objects/pack, opened on the first lookup of an object that isn't loose
+    public synchronized List<PackFile> getPacks() throws GitException {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            Path packDir = PackWriter.getPackDir(this);
+            if (Files.isDirectory(packDir)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(packDir, "pack-*.idx")) {
+                    for (Path idx : stream) {
+                        packs.add(PackFile.open(idx, objectFormat));
+                    }
+                } catch (IOException e) {
+                    throw new GitException("Error while listing packs", e);
+                }
+            }
+        }
+        return packs;
+    }
+
+    // called after packs were added or removed
+    public synchronized void reloadPacks() {
+        packs = null;
+        knownObjects = null;
+        abbreviatedIds = null;
+    }
+
+    // makes objects written by the command durable and visible to other processes
+    public void flushObjectWrites() throws GitException {
+        if (objectWriter != null) {
+            objectWriter.flush();
+        }
+    }
+
+    public GitHashService getHashService() {
+        return GitHashService.of(objectFormat);
+    }
+
+    public boolean isObjectId(String revision) {
+        return getHashService().isValidId(revision);
+    }
+
     private static void performChecks(@NotNull Repository repository) throws GitException {
         // Making sure that the directory structure and config are valid
         if (!Files.exists(repository.getGitDir())) {
@@ -124,6 +272,52 @@ public class Repository implements Serializable {
         }
     }
 
+    private void loadConfig() throws GitException {
+        try {
+            config = new Ini(getPath("config").toFile());
+            objectFormat = GitHashService.ObjectFormat.fromConfig(config.get("core", "objectformat"));
+        } catch (IOException e) {
+            throw new GitException("Error while reading config file", e);
+        }
+    }
+
+    public @Nullable String getConfigValue(String section, String key) throws GitException {
+        if (config == null) {
+            loadConfig();
+        }
+        return config.get(section, key);
+    }
+
+    public boolean getConfigBoolean(String section, String key, boolean defaultValue) throws GitException {
+        String value = getConfigValue(section, key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public void setConfigValue(String section, String key, String value) throws GitException {
+        if (config == null) {
+            loadConfig();
+        }
+        config.put(section, key, value);
+        chunkedFilesLoaded = false;
+        try {
+            config.store();
+        } catch (IOException e) {
+            throw new GitException("Error while writing config file", e);
+        }
+    }
+
+    public int getConfigInt(String section, String key, int defaultValue) throws GitException {
+        String value = getConfigValue(section, key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new GitException("Bad numeric config value '" + value + "' for " + section + "." + key);
+        }
+    }
+
     private static void createDefaultConfig(@NotNull Repository rep) throws IOException {
         File config = new File(rep.getPath("config").toString());
         if (config.createNewFile()) {
@@ -131,6 +325,12 @@ public class Repository implements Serializable {
             iniConfig.put("core", "repositoryformatversion", "0");      // sets the format to initial (no extensions)
             iniConfig.put("core", "filemode", "false");                 // disables filemode tracking
             iniConfig.put("core", "bare", "false");                     // indicates worktree presence
+            iniConfig.put("core", "objectformat", rep.objectFormat.configName); // hash algorithm used for object ids
+            iniConfig.put("core", "untrackedcache", "false");           // remembers directory listings between status calls
+            iniConfig.put("core", "fsmonitor", "false");                // asks the fsmonitor daemon what changed instead of walking
+            iniConfig.put("core", "splitindex", "false");               // keeps most index entries in a rarely rewritten shared file
+            iniConfig.put("core", "sparsecheckout", "false");           // checks out only directories from info/sparse-checkout
+            iniConfig.put("core", "fsyncobjects", "false");             // false, true or batch: when written objects are synced to disk
             iniConfig.store();
         }
     }
@@ -198,7 +398,7 @@ public class Repository implements Serializable {
                 }
             } else {
                 // Detached HEAD
-                assert (headID.length() == 40); // HEAD should hold the commit sha
+                assert (isObjectId(headID)); // HEAD should hold the commit sha
                 return headID;
             }
         } catch (IOException e) {
@@ -206,10 +406,44 @@ public class Repository implements Serializable {
         }
     }
 
+    // ids HEAD and every file under refs point to; these are the roots of reachability
+    public Set<String> getRefTips() throws GitException {
+        Set<String> tips = new TreeSet<>();
+        String head = getHead();
+        if (head != null) {
+            tips.add(head.trim());
+        }
+        Path refsDir = getGitDir().resolve("refs");
+        if (!Files.isDirectory(refsDir)) {
+            return tips;
+        }
+        try (var files = Files.walk(refsDir)) {
+            for (Path ref : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                String sha = Files.readString(ref).trim();
+                if (isObjectId(sha)) {
+                    tips.add(sha);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new GitException("Error while reading refs", e);
+        }
+        return tips;
+    }
+
     public String getRelativePath(String absolutePath) {
         return getWorkingDirPath().relativize(Path.of(absolutePath)).toString();
     }
 
+    // full name of the branch HEAD is attached to, which may have no commits yet; null when HEAD is detached
+    public @Nullable String getHeadRef() throws GitException {
+        try {
+            String head = Files.readString(getHEADPath()).trim();
+            return head.startsWith("ref: ") ? head.substring("ref: ".length()) : null;
+        } catch (IOException e) {
+            throw new GitException("Error while reading HEAD file", e);
+        }
+    }
+
     public boolean headIsDetached() throws GitException {
         Path headFilePath = getGitDir().resolve("HEAD");
         try {
@@ -220,13 +454,55 @@ public class Repository implements Serializable {
         }
     }
 
-    private void updateBranchHead(String sha) throws GitException {
-        File ref = new File(getGitDir().resolve("refs").resolve("heads").resolve(getCurrentBranch()).toString());
-        try (FileWriter writer = new FileWriter(ref)) {
-            writer.write(sha);
+    private void updateBranchHead(String sha, String reason) throws GitException {
+        updateRef("refs/heads/" + getCurrentBranch(), sha, reason);
+    }
+
+    // the rules of git check-ref-format for a full name under refs/: no empty, "." or ".." components, no component
+    // starting with a dot or ending with ".lock", no trailing dot, no "@{" and no spaces, control or glob characters
+    public static boolean isValidRefName(@NotNull String refName) {
+        if (!refName.startsWith("refs/") || refName.endsWith(".") || refName.contains("@{")) {
+            return false;
+        }
+        for (String component : refName.split("/", -1)) {
+            if (component.isEmpty() || component.startsWith(".") || component.endsWith(".lock")) {
+                return false;
+            }
+        }
+        for (int i = 0; i < refName.length(); i++) {
+            char c = refName.charAt(i);
+            if (c <= ' ' || c == 0x7f || "~^:?*[\\".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // points a ref (a full name under refs/) to the object and records the move in its log, and in the log
+    // of HEAD when HEAD is attached to it
+    public void updateRef(String refName, String sha, String reason) throws GitException {
+        if (!isValidRefName(refName)) {
+            throw new GitException("Bad ref name '" + refName + "'");
+        }
+        flushObjectWrites();    // the ref must not point to objects that aren't durable yet
+        Path ref = getGitDir().resolve(refName);
+        String oldSha = null;
+        boolean headAttached;
+        try {
+            if (Files.exists(ref)) {
+                oldSha = Files.readString(ref).trim();
+            }
+            headAttached = Files.readString(getHEADPath()).trim().equals("ref: " + refName);
+            Files.createDirectories(ref.getParent());
+            Files.writeString(ref, sha);
         } catch (IOException e) {
-            throw new GitException("Error while updating branch head");
+            throw new GitException("Error while updating " + refName, e);
         }
+        RefLog.of(this, refName).append(oldSha, sha, reason);
+        if (headAttached) {
+            RefLog.of(this, "HEAD").append(oldSha, sha, reason);
+        }
+        getRevisions().invalidateRefs();
     }
 
     public void commit(String message) throws GitException {
@@ -239,156 +515,237 @@ public class Repository implements Serializable {
 //        }
         String parentCommitSha = getHead();
         String treeSha = GitObject.getObjectHash(index.tree);
+        GitCommitObject parentCommit = null;
         if (parentCommitSha != null) {
-            GitCommitObject parentCommit = (GitCommitObject) GitObject.readObject(this, parentCommitSha);
+            parentCommit = (GitCommitObject) GitObject.readObject(this, parentCommitSha);
             String parentCommitTreeSha = parentCommit.treeSha;
             if (parentCommitTreeSha.equals(treeSha)) {
                 throw new GitException("Nothing to commit");
             }
         }
         GitObject.writeObject(index.tree);
-        GitCommitObject commit = new GitCommitObject(message, treeSha, parentCommitSha);
-        updateBranchHead(GitObject.writeObject(commit));
+        String identity = getIdentity();
+        ZonedDateTime now = ZonedDateTime.now();
+        List<String> parents = parentCommitSha == null ? new ArrayList<>() : List.of(parentCommitSha);
+        GitCommitObject commit = new GitCommitObject(this, message, treeSha, parents, identity, identity,
+                now.toEpochSecond(), now.format(TIMEZONE_FORMATTER));
+        String commitSha = GitObject.writeObject(commit);
+        getChangedPaths().record(commitSha, parentCommit == null ? null : parentCommit.getTree(), index.tree);
+        updateBranchHead(commitSha, (parentCommitSha == null ? "commit (initial): " : "commit: ") + message);
         System.out.println("Files committed");
     }
 
+    // "name <email>" taken from the [user] section of the config, falls back to the system user name
+    public String getIdentity() throws GitException {
+        String name = getConfigValue("user", "name");
+        String email = getConfigValue("user", "email");
+        if (name == null) {
+            name = System.getProperty("user.name");
+        }
+        return name + " <" + (email == null ? "" : email) + ">";
+    }
+
     public String getCurrentBranch() {
         return "master";
 //        return branch;
     }
 
-    private String getCommitInfo(String sha) throws GitException {
-        GitObject obj = GitObject.readObject(this, sha);
-        if (obj.format != GitObject.ObjectType.commit) {
-            throw new GitException("Unexpected GitObject type while reading commit info");
-        }
-        GitCommitObject commit = (GitCommitObject) obj;
+    private String getCommitInfo(String sha, GitCommitObject commit, int abbrev) throws GitException {
         StringBuilder sb = new StringBuilder();
+        ZonedDateTime date = Instant.ofEpochSecond(commit.timestamp).atZone(ZoneId.systemDefault());
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEE LLL dd HH:mm:ss yyyy");
         sb.append("commit ")
-                .append(sha)
+                .append(abbrev > 0 ? getAbbreviatedIds().abbreviate(sha, abbrev) : sha)
                 .append('\n')
-                .append("Date:\t");
-        try {
-            FileTime fileTime = Files.getLastModifiedTime(GitObject.getObjectPath(this, sha));
-            LocalDateTime localDateTime = fileTime.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEE LLL dd HH:mm:ss yyyy");
-            sb.append(localDateTime.format(formatter))
-                    .append("\n\n\t")
-                    .append(commit.message)
-                    .append("\n\n");
-        } catch (IOException e) {
-            throw new GitException("Error while getting object modification time");
-        }
+                .append("Author:\t")
+                .append(commit.author)
+                .append('\n')
+                .append("Date:\t")
+                .append(date.format(formatter))
+                .append("\n\n\t")
+                .append(commit.message)
+                .append("\n\n");
         return sb.toString();
     }
 
-    private @Nullable String getBranchHead(String branch) throws GitException {
-        Path branchRefPath = getGitDir().resolve("refs").resolve("heads").resolve(branch);
-        if (Files.exists(branchRefPath)) {
-            try {
-                return Files.readString(branchRefPath);
-            } catch (IOException e) {
-                throw new GitException("Error while getting head of branch " + branch, e);
-            }
-        }
-        return null;
+    // id of the object a revision expression stands for, null if it doesn't exist
+    public @Nullable String convertRevisionToSha(String revision) throws GitException {
+        return getRevisions().resolve(revision);
     }
 
-    private String convertRevisionToSha(String revision) throws GitException {
-        if (revision.length() == 40 && revision.matches("[0-9a-fA-F]+")) {
-            return revision;
-        } else if (revision.startsWith("HEAD~")) {
-            int n = Integer.parseInt(revision.replace("HEAD~", ""));
-            return GitCommitObject.getNthAncestor(this, getHead(), n);
-        } else {
-            return getBranchHead(revision);
-        }
+    public void printLog(String revision) throws GitException {
+        printLog(revision, 0);
     }
 
-    public void printLog(String revision) throws GitException {
+    public void printLog(String revision, int abbrev) throws GitException {
+        printLog(revision, abbrev, List.of());
+    }
+
+    // abbrev > 0 prints the shortest unique prefixes of commit ids, at least abbrev digits long;
+    // with paths only commits that changed one of them against their first parent are shown
+    public void printLog(String revision, int abbrev, List<String> paths) throws GitException {
         StringBuilder sb = new StringBuilder();
-        String curCommitSha = convertRevisionToSha(revision);
+        List<String> normalizedPaths = new ArrayList<>();
+        for (String path : paths) {
+            String normalized = Path.of(path).normalize().toString().replace('\\', '/');
+            if (normalized.isEmpty()) {
+                normalizedPaths.clear();    // the whole tree
+                break;
+            }
+            normalizedPaths.add(normalized);
+        }
+        Revisions.Range range = Revisions.parseRange(revision);
+        if (range.isRange()) {
+            for (String sha : getRevisions().listCommits(range)) {
+                GitCommitObject commit = getRevisions().readCommit(sha);
+                if (changesAnyPath(sha, commit, normalizedPaths)) {
+                    sb.append(getCommitInfo(sha, commit, abbrev));
+                }
+            }
+            System.out.println(sb);
+            return;
+        }
+        String curCommitSha = getRevisions().resolveCommit(revision);
         while (curCommitSha != null) {
-            sb.append(getCommitInfo(curCommitSha));
-            GitCommitObject commit = (GitCommitObject) GitObject.readObject(this, curCommitSha);
-            curCommitSha = commit.parentCommitSha;
+            GitCommitObject commit = getRevisions().readCommit(curCommitSha);
+            if (changesAnyPath(curCommitSha, commit, normalizedPaths)) {
+                sb.append(getCommitInfo(curCommitSha, commit, abbrev));
+            }
+            curCommitSha = commit.getFirstParent();
         }
         System.out.println(sb);
     }
 
-    public void printLog() throws GitException {
-        printLog(getHead());
-    }
-
-    private boolean branchExists(String branch) {
-        return Files.exists(getGitDir().resolve("refs").resolve("heads").resolve(branch));
-    }
-
-    private void changeHead(String revision) throws GitException {
-        if (getHead().equals(convertRevisionToSha(revision))) {
-            return;
+    // trees are only read for commits whose changed-path filter doesn't rule all the paths out
+    private boolean changesAnyPath(String sha, GitCommitObject commit, List<String> paths) throws GitException {
+        if (paths.isEmpty()) {
+            return true;
         }
-        String newHEADContent;
-        if (revision.length() == 40 && revision.matches("[0-9a-fA-F]+")) {
-            newHEADContent = revision;
-        } else if (revision.startsWith("HEAD~")) {
-            int n = Integer.parseInt(revision.replace("HEAD~", ""));
-            newHEADContent = GitCommitObject.getNthAncestor(this, getHead(), n);
-            if (newHEADContent == null) {
-                throw new GitException("Couldn't find specified commit");
+        GitTreeObject tree = null;
+        GitTreeObject parentTree = null;
+        for (String path : paths) {
+            if (!getChangedPaths().mightHaveChanged(sha, path)) {
+                continue;
             }
-        } else {
-            if (!branchExists(revision)) {
-                throw new GitException("specified branch doesn't exist");
+            if (tree == null) {
+                tree = commit.getTree();
+                String parent = commit.getFirstParent();
+                parentTree = parent == null ? null : getRevisions().readCommit(parent).getTree();
+            }
+            GitTreeObject.TreeElement element = tree.lookup(path);
+            GitTreeObject.TreeElement parentElement = parentTree == null ? null : parentTree.lookup(path);
+            if (!Objects.equals(element == null ? null : element.sha, parentElement == null ? null : parentElement.sha)) {
+                return true;
             }
-            newHEADContent = "ref: refs/heads/" + revision;
         }
+        return false;
+    }
+
+    public void printLog() throws GitException {
+        printLog("HEAD");
+    }
+
+    // a branch name attaches HEAD to the branch, any other revision detaches it at the commit
+    private void changeHead(String revision, String commitSha) throws GitException {
+        String newHEADContent = getRevisions().isBranch(revision) ? "ref: refs/heads/" + revision : commitSha;
+        String oldSha = getHead();
         File HEAD = new File(getHEADPath().toString());
         try (FileWriter writer = new FileWriter(HEAD)) {
             writer.write(newHEADContent);
         } catch (IOException e) {
             throw new GitException("Error while writing to HEAD");
         }
+        RefLog.of(this, "HEAD").append(oldSha, commitSha, "checkout: moving to " + revision);
+        getRevisions().invalidateRefs();
     }
 
     private void updateSingleFileContent(String filePath, String blobSha) throws GitException {
-        String absolutePathStr = this.getAbsPathInWorkDir(filePath);
-        File file = new File(absolutePathStr);
-        try (FileWriter writer = new FileWriter(file)) {
-            GitBlobObject blob = (GitBlobObject) GitObject.readObject(this, blobSha);
-            writer.write(new String(blob.binaryData));
-        } catch (IOException e) {
-            throw new GitException("Error while rewriting content of file " + filePath, e);
-        }
+        ChunkedFiles.writeContent(this, blobSha, Path.of(this.getAbsPathInWorkDir(filePath)));
     }
 
     private void updateFilesContent(GitIndex index) throws GitException {
         for (var indexItem : index.stagedItemsSet) {
+            if (indexItem.skipWorktree) {
+                continue;   // outside the sparse-checkout cone, the blob isn't even read
+            }
             updateSingleFileContent(indexItem.filePath, indexItem.sha);
+            try {
+                Path absolutePath = Path.of(getAbsPathInWorkDir(indexItem.filePath));
+                indexItem.updateStat(Files.readAttributes(absolutePath, BasicFileAttributes.class));
+            } catch (IOException e) {
+                throw new GitException("Error while reading modification time of " + indexItem.filePath, e);
+            }
         }
     }
 
-    private void updateWorkDirToRevision(String revision) throws GitException {
-        String commitSha = convertRevisionToSha(revision);
-        GitObject obj = GitObject.readObject(this, commitSha);
-        if (obj.format != GitObject.ObjectType.commit) {
-            throw new GitException("specified revision isn't commit object");
-        }
-        GitCommitObject commit = (GitCommitObject) obj;
-        commit.index.writeIndex();  // updating index according to specified commit
-        updateFilesContent(commit.index);
+    void updateWorkDirToRevision(String revision) throws GitException {
+        GitCommitObject commit = getRevisions().readCommit(getRevisions().resolveCommit(revision));
+        GitIndex index = GitIndex.fromTree(this, commit.getTree());  // updating index according to specified commit
+        updateFilesContent(index);
+        index.writeIndex();
     }
 
+    // annotated tags are checked out as the commits they tag
     public void checkout(String revision) throws GitException {
-        String commitSha = convertRevisionToSha(revision);
-        changeHead(revision);
+        String commitSha = getRevisions().resolveCommit(revision);
         updateWorkDirToRevision(commitSha);
+        changeHead(revision, commitSha);
         System.out.println("Checkout completed successful");
     }
 
     public void reset(String revision) throws GitException {
-        updateWorkDirToRevision(revision);
-        updateBranchHead(convertRevisionToSha(revision));
+        String commitSha = getRevisions().resolveCommit(revision);
+        updateWorkDirToRevision(commitSha);
+        updateBranchHead(commitSha, "reset: moving to " + revision);
+    }
+
+    // Brings the working tree in line with the sparse-checkout cone: entries entering the cone are written,
+    // unmodified files leaving it are deleted and marked skip-worktree. Modified files are never touched.
+    public void applySparseCheckout() throws GitException {
+        SparseCheckout sparse = SparseCheckout.load(this);
+        GitIndex index = GitIndex.getIndex(this);
+        for (var indexItem : index.stagedItemsSet) {
+            boolean inCone = sparse == null || sparse.includesFile(indexItem.filePath);
+            Path absolutePath = getWorkingDirPath().resolve(indexItem.filePath);
+            if (inCone && indexItem.skipWorktree) {
+                indexItem.skipWorktree = false;
+                if (Files.exists(absolutePath) && !index.matchesWorkTree(indexItem)) {
+                    System.out.println("Not overwriting modified file " + indexItem.filePath);
+                    continue;
+                }
+                updateSingleFileContent(indexItem.filePath, indexItem.sha);
+                try {
+                    indexItem.updateStat(Files.readAttributes(absolutePath, BasicFileAttributes.class));
+                } catch (IOException e) {
+                    throw new GitException("Error while reading modification time of " + indexItem.filePath, e);
+                }
+            } else if (!inCone && !indexItem.skipWorktree) {
+                if (Files.exists(absolutePath) && !index.matchesWorkTree(indexItem)) {
+                    System.out.println("Not removing modified file " + indexItem.filePath);
+                    continue;
+                }
+                deleteWithEmptyParents(absolutePath);
+                indexItem.skipWorktree = true;
+            }
+        }
+        index.writeIndex();
+    }
+
+    private void deleteWithEmptyParents(Path file) throws GitException {
+        try {
+            Files.deleteIfExists(file);
+            Path root = getWorkingDirPath();
+            for (Path dir = file.getParent(); dir != null && !dir.equals(root) && dir.startsWith(root); dir = dir.getParent()) {
+                try (var entries = Files.list(dir)) {
+                    if (entries.findAny().isPresent()) {
+                        break;
+                    }
+                }
+                Files.delete(dir);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while removing " + file, e);
+        }
     }
 
     public void checkoutFile(String filePath) throws GitException {
@@ -397,8 +754,11 @@ public class Repository implements Serializable {
             throw new GitException("previous commit doesn't exist");
         }
         GitCommitObject commit = (GitCommitObject) GitObject.readObject(this, commitSha);
-        String blobSha = commit.index.pathToIndexItem.get(filePath).sha;
-        updateSingleFileContent(filePath, blobSha);
+        GitTreeObject.TreeElement elem = commit.getTree().lookup(filePath);
+        if (elem == null || elem.type != GitObject.ObjectType.blob) {
+            throw new GitException("File " + filePath + " isn't present in the last commit");
+        }
+        updateSingleFileContent(filePath, elem.sha);
         System.out.println("Checkout completed successful");
     }
 
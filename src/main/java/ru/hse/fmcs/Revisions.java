@@ -0,0 +1,591 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Revision expressions are parsed once into a small tree and resolved against a snapshot of the refs:
+//   <name>        full or abbreviated id, HEAD (or @), refs/<name>, refs/tags/<name> or refs/heads/<name>
+//   <rev>^<n>     n-th parent of a commit, the first one if n is omitted, the commit itself for ^0
+//   <rev>~<n>     n-th ancestor following first parents
+//   <ref>@{<n>}   n-th previous value of a ref, from its ref log; @{<n>} for the current branch
+//   <ref>@{<when>} value of a ref at a moment: 2024-05-01, 2024-05-01 12:30, 3.days.ago, 2 hours ago, yesterday
+//   <rev>:<path>  blob or tree at the path in the commit's tree
+//   <a>..<b>      commits reachable from b but not from a; <a>...<b> from either but not both
+// Parsed expressions, resolved sub-expressions and read commits are kept for the lifetime of the object, which
+// is one command, so resolving many related revisions reads every ref and commit once.
+public class Revisions {
+    public abstract static class Expression {
+        abstract @Nullable String evaluate(Revisions revisions) throws GitException;
+    }
+
+    private static class Name extends Expression {
+        final String name;
+
+        Name(String refName) {
+            name = refName;
+        }
+
+        @Override
+        @Nullable String evaluate(Revisions revisions) throws GitException {
+            return revisions.lookupName(name);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class Parent extends Expression {
+        final Expression base;
+        final int n;
+
+        Parent(Expression baseExpression, int number) {
+            base = baseExpression;
+            n = number;
+        }
+
+        @Override
+        @Nullable String evaluate(Revisions revisions) throws GitException {
+            String sha = revisions.peelToCommit(revisions.resolve(base), base);
+            if (sha == null || n == 0) {
+                return sha;
+            }
+            List<String> parents = revisions.readCommit(sha).parents;
+            return n <= parents.size() ? parents.get(n - 1) : null;
+        }
+
+        @Override
+        public String toString() {
+            return base + "^" + n;
+        }
+    }
+
+    private static class Ancestor extends Expression {
+        final Expression base;
+        final int n;
+
+        Ancestor(Expression baseExpression, int number) {
+            base = baseExpression;
+            n = number;
+        }
+
+        @Override
+        @Nullable String evaluate(Revisions revisions) throws GitException {
+            String sha = revisions.peelToCommit(revisions.resolve(base), base);
+            for (int i = 0; i < n && sha != null; i++) {
+                sha = revisions.readCommit(sha).getFirstParent();
+            }
+            return sha;
+        }
+
+        @Override
+        public String toString() {
+            return base + "~" + n;
+        }
+    }
+
+    private static class RefLogEntry extends Expression {
+        final String ref;       // empty for the current branch
+        final String selector;
+        final long n;           // -1 when the selector is a moment
+        final Instant time;
+
+        RefLogEntry(String refName, String refSelector, long number, Instant moment) {
+            ref = refName;
+            selector = refSelector;
+            n = number;
+            time = moment;
+        }
+
+        @Override
+        @Nullable String evaluate(Revisions revisions) throws GitException {
+            String refName = revisions.getLogName(ref);
+            RefLog refLog = RefLog.of(revisions.repository, refName);
+            if (refLog.size() == 0) {
+                if (n == 0) {
+                    return revisions.lookupName(refName);
+                }
+                throw new GitException("No previous values are recorded for " + refName);
+            }
+            return n >= 0 ? refLog.valueBefore(n) : refLog.valueAt(time);
+        }
+
+        @Override
+        public String toString() {
+            return ref + "@{" + selector + "}";
+        }
+    }
+
+    private static class TreePath extends Expression {
+        final Expression base;
+        final String path;
+
+        TreePath(Expression baseExpression, String treePath) {
+            base = baseExpression;
+            path = treePath;
+        }
+
+        @Override
+        @Nullable String evaluate(Revisions revisions) throws GitException {
+            String sha = revisions.resolve(base);
+            if (sha == null) {
+                return null;
+            }
+            Repository repository = revisions.repository;
+            sha = revisions.peelTag(sha);
+            GitObject.ObjectType type = GitObject.getObjectType(repository, sha);
+            if (type == GitObject.ObjectType.commit) {
+                sha = revisions.readCommit(sha).treeSha;
+            } else if (type != GitObject.ObjectType.tree) {
+                throw new GitException(base + " is a " + type + ", not a commit or a tree");
+            }
+            String trimmed = path.replaceAll("^/+|/+$", "");
+            if (trimmed.isEmpty()) {
+                return sha;
+            }
+            GitTreeObject.TreeElement element = ((GitTreeObject) GitObject.readObject(repository, sha)).lookup(trimmed);
+            return element == null ? null : element.sha;
+        }
+
+        @Override
+        public String toString() {
+            return base + ":" + path;
+        }
+    }
+
+    // from is null for a single revision, which stands for its whole first-parent history in log
+    public static class Range {
+        public final @Nullable Expression from;
+        public final @NotNull Expression to;
+        public final boolean symmetric;
+
+        Range(@Nullable Expression fromExpression, @NotNull Expression toExpression, boolean symmetricDifference) {
+            from = fromExpression;
+            to = toExpression;
+            symmetric = symmetricDifference;
+        }
+
+        public boolean isRange() {
+            return from != null;
+        }
+    }
+
+    private static final Pattern RELATIVE_TIME =
+            Pattern.compile("(\\d+) +(second|minute|hour|day|week|month|year)s? +ago");
+
+    private final Repository repository;
+    private final Map<String, Expression> parsed = new HashMap<>();
+    private final Map<String, String> resolved = new HashMap<>();
+    private final Map<String, GitCommitObject> commits = new HashMap<>();
+    private Map<String, String> refs;   // "HEAD" and "refs/..." to ids, read on first use
+    private String headRef;             // what HEAD points to: a full branch ref, or HEAD itself when it's detached
+
+    Revisions(@NotNull Repository rep) {
+        repository = rep;
+    }
+
+    public static @NotNull Expression parse(@NotNull String text) throws GitException {
+        int colon = pathSeparator(text);
+        if (colon == 0) {
+            throw new GitException("Paths in the index (':<path>') aren't supported");
+        }
+        if (colon > 0) {
+            return new TreePath(parseRevision(text.substring(0, colon), text), text.substring(colon + 1));
+        }
+        return parseRevision(text, text);
+    }
+
+    // the colon before a path, ignoring the ones in a time like @{2024-05-01 12:30}
+    private static int pathSeparator(String text) {
+        boolean inBraces = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '{') {
+                inBraces = true;
+            } else if (c == '}') {
+                inBraces = false;
+            } else if (c == ':' && !inBraces) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Expression parseRevision(String text, String whole) throws GitException {
+        int i = 0;
+        while (i < text.length() && text.charAt(i) != '^' && text.charAt(i) != '~' && !text.startsWith("@{", i)) {
+            i++;
+        }
+        String name = text.substring(0, i);
+        if (name.contains("..") || name.isEmpty() && !text.startsWith("@{")) {
+            throw new GitException("Bad revision '" + whole + "'");
+        }
+        Expression expression;
+        if (text.startsWith("@{", i)) {
+            int close = text.indexOf('}', i);
+            if (close < 0) {
+                throw new GitException("Bad revision '" + whole + "'");
+            }
+            String selector = text.substring(i + 2, close).trim();
+            if (!selector.isEmpty() && selector.chars().allMatch(Character::isDigit)) {
+                expression = new RefLogEntry(name, selector, parseNumber(selector, whole), null);
+            } else {
+                expression = new RefLogEntry(name, selector, -1, parseTime(selector, whole));
+            }
+            i = close + 1;
+        } else {
+            expression = new Name(name);
+        }
+        while (i < text.length()) {
+            char operator = text.charAt(i++);
+            int start = i;
+            while (i < text.length() && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+            int n = start == i ? 1 : parseNumber(text.substring(start, i), whole);
+            if (operator == '^') {
+                expression = new Parent(expression, n);
+            } else if (operator == '~') {
+                expression = new Ancestor(expression, n);
+            } else {
+                throw new GitException("Bad revision '" + whole + "'");
+            }
+        }
+        return expression;
+    }
+
+    private static int parseNumber(String digits, String whole) throws GitException {
+        try {
+            return Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            throw new GitException("Bad revision '" + whole + "'");
+        }
+    }
+
+    private static Instant parseTime(String text, String whole) throws GitException {
+        String normalized = text.toLowerCase(Locale.ROOT).replace('.', ' ').trim();
+        Instant now = Instant.now();
+        if (normalized.equals("now")) {
+            return now;
+        }
+        if (normalized.equals("yesterday")) {
+            return now.minus(Duration.ofDays(1));
+        }
+        Matcher relative = RELATIVE_TIME.matcher(normalized);
+        if (relative.matches()) {
+            long amount = Long.parseLong(relative.group(1));
+            long seconds;
+            switch (relative.group(2)) {
+                case "second":
+                    seconds = 1;
+                    break;
+                case "minute":
+                    seconds = 60;
+                    break;
+                case "hour":
+                    seconds = 3600;
+                    break;
+                case "day":
+                    seconds = 86400;
+                    break;
+                case "week":
+                    seconds = 7 * 86400;
+                    break;
+                case "month":
+                    seconds = 30 * 86400;
+                    break;
+                default:
+                    seconds = 365 * 86400;
+                    break;
+            }
+            return now.minusSeconds(amount * seconds);
+        }
+        try {
+            if (text.length() == "yyyy-MM-dd".length()) {
+                return LocalDate.parse(text).atStartOfDay(ZoneId.systemDefault()).toInstant();
+            }
+            return LocalDateTime.parse(text.replace(' ', 'T')).atZone(ZoneId.systemDefault()).toInstant();
+        } catch (DateTimeParseException e) {
+            throw new GitException("Bad time '" + text + "' in revision '" + whole + "'");
+        }
+    }
+
+    // a missing side of a range stands for HEAD
+    public static @NotNull Range parseRange(@NotNull String text) throws GitException {
+        if (pathSeparator(text) < 0) {
+            int dots = text.indexOf("...");
+            int length = 3;
+            if (dots < 0) {
+                dots = text.indexOf("..");
+                length = 2;
+            }
+            if (dots >= 0) {
+                String from = text.substring(0, dots);
+                String to = text.substring(dots + length);
+                return new Range(parse(from.isEmpty() ? "HEAD" : from), parse(to.isEmpty() ? "HEAD" : to), length == 3);
+            }
+        }
+        return new Range(null, parse(text), false);
+    }
+
+    // id the expression stands for, null if a name or an ancestor in it doesn't exist
+    public @Nullable String resolve(@NotNull String text) throws GitException {
+        Expression expression = parsed.get(text);
+        if (expression == null) {
+            expression = parse(text);
+            parsed.put(text, expression);
+        }
+        return resolve(expression);
+    }
+
+    public @Nullable String resolve(@NotNull Expression expression) throws GitException {
+        String key = expression.toString();
+        if (resolved.containsKey(key)) {
+            return resolved.get(key);
+        }
+        String sha = expression.evaluate(this);
+        resolved.put(key, sha);
+        return sha;
+    }
+
+    // commit the revision names, annotated tags are followed
+    public @NotNull String resolveCommit(@NotNull String text) throws GitException {
+        String sha = peelToCommit(resolve(text), parse(text));
+        if (sha == null) {
+            throw new GitException("Unknown revision '" + text + "'");
+        }
+        return sha;
+    }
+
+    // arguments of commands that transfer history: "<ref>" adds the ref and its commit to refs, "^<revision>" adds
+    // the commit whose history is left out to bases, and "<revision>..<ref>" does both
+    public void resolveRefArguments(@NotNull List<String> arguments, @NotNull Map<String, String> refs,
+                                    @NotNull List<String> bases) throws GitException {
+        for (String argument : arguments) {
+            if (argument.startsWith("^")) {
+                bases.add(resolveCommit(argument.substring(1)));
+                continue;
+            }
+            Range range = parseRange(argument);
+            if (range.symmetric) {
+                throw new GitException("Symmetric ranges aren't supported here: " + argument);
+            }
+            if (range.isRange()) {
+                String from = peelToCommit(resolve(range.from), range.from);
+                if (from == null) {
+                    throw new GitException("Unknown revision '" + range.from + "'");
+                }
+                bases.add(from);
+            }
+            String to = range.to.toString();
+            String refName = getRefName(to);
+            if (refName == null) {
+                throw new GitException("'" + to + "' isn't a ref");
+            }
+            refs.put(refName, resolveCommit(to));
+        }
+    }
+
+    // full name of the ref the revision is, HEAD stands for its branch; null for any other revision
+    public @Nullable String getRefName(@NotNull String revision) throws GitException {
+        Map<String, String> snapshot = getRefs();
+        if (revision.equals("HEAD") || revision.equals("@")) {
+            return headRef.equals("HEAD") || !snapshot.containsKey(headRef) ? null : headRef;
+        }
+        for (String prefix : new String[]{"", "refs/", "refs/tags/", "refs/heads/"}) {
+            if ((prefix + revision).startsWith("refs/") && snapshot.containsKey(prefix + revision)) {
+                return prefix + revision;
+            }
+        }
+        return null;
+    }
+
+    // every ref under refs/ and the id it points to, by name
+    public @NotNull SortedMap<String, String> listRefs() throws GitException {
+        SortedMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, String> ref : getRefs().entrySet()) {
+            if (ref.getKey().startsWith("refs/")) {
+                result.put(ref.getKey(), ref.getValue());
+            }
+        }
+        return result;
+    }
+
+    // whether the revision is just the name of a branch, so that checkout attaches HEAD to it
+    public boolean isBranch(@NotNull String revision) throws GitException {
+        return !revision.startsWith("refs/") && getRefs().containsKey("refs/heads/" + revision);
+    }
+
+    // refs changed by the command itself are read again on the next lookup
+    public void invalidateRefs() {
+        refs = null;
+        resolved.clear();
+    }
+
+    // commits of a range, newest first
+    public @NotNull List<String> listCommits(@NotNull Range range) throws GitException {
+        if (!range.isRange()) {
+            throw new GitException("Not a range of revisions");
+        }
+        String from = peelToCommit(resolve(range.from), range.from);
+        String to = peelToCommit(resolve(range.to), range.to);
+        if (from == null || to == null) {
+            throw new GitException("Unknown revision '" + (from == null ? range.from : range.to) + "'");
+        }
+        Set<String> included = ancestors(to);
+        Set<String> excluded = ancestors(from);
+        List<String> result = new ArrayList<>();
+        for (String sha : included) {
+            if (!excluded.contains(sha)) {
+                result.add(sha);
+            }
+        }
+        if (range.symmetric) {
+            for (String sha : excluded) {
+                if (!included.contains(sha)) {
+                    result.add(sha);
+                }
+            }
+        }
+        Map<String, Long> timestamps = new HashMap<>();
+        for (String sha : result) {
+            timestamps.put(sha, readCommit(sha).timestamp);
+        }
+        result.sort((a, b) -> Long.compare(timestamps.get(b), timestamps.get(a)));
+        return result;
+    }
+
+    private Set<String> ancestors(String tip) throws GitException {
+        Set<String> seen = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(tip);
+        seen.add(tip);
+        while (!queue.isEmpty()) {
+            for (String parent : readCommit(queue.poll()).parents) {
+                if (seen.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return seen;
+    }
+
+    public @NotNull GitCommitObject readCommit(@NotNull String sha) throws GitException {
+        GitCommitObject commit = commits.get(sha);
+        if (commit == null) {
+            GitObject object = GitObject.readObject(repository, sha);
+            if (!(object instanceof GitCommitObject)) {
+                throw new GitException(sha + " is a " + object.format + ", not a commit");
+            }
+            commit = (GitCommitObject) object;
+            commits.put(sha, commit);
+        }
+        return commit;
+    }
+
+    private @Nullable String peelToCommit(@Nullable String sha, Expression expression) throws GitException {
+        if (sha == null || commits.containsKey(sha)) {
+            return sha;
+        }
+        sha = peelTag(sha);
+        GitObject.ObjectType type = GitObject.getObjectType(repository, sha);
+        if (type != GitObject.ObjectType.commit) {
+            throw new GitException(expression + " is a " + type + ", not a commit");
+        }
+        return sha;
+    }
+
+    // annotated tags are followed to the object they tag
+    private String peelTag(String sha) throws GitException {
+        while (!commits.containsKey(sha) && GitObject.getObjectType(repository, sha) == GitObject.ObjectType.tag) {
+            sha = GitTagObject.getTarget(GitObject.readRawObject(repository, sha).payload);
+        }
+        return sha;
+    }
+
+    // full name of the ref whose log ref@{...} reads
+    private String getLogName(String ref) throws GitException {
+        Map<String, String> snapshot = getRefs();
+        if (ref.isEmpty()) {
+            return headRef;
+        }
+        if (ref.equals("HEAD") || ref.equals("@")) {
+            return "HEAD";
+        }
+        for (String prefix : new String[]{"", "refs/", "refs/tags/", "refs/heads/"}) {
+            if (snapshot.containsKey(prefix + ref) && (prefix + ref).startsWith("refs/")) {
+                return prefix + ref;
+            }
+        }
+        throw new GitException("Unknown ref " + ref);
+    }
+
+    private @Nullable String lookupName(String name) throws GitException {
+        if (name.equals("HEAD") || name.equals("@")) {
+            return getRefs().get("HEAD");
+        }
+        if (repository.isObjectId(name)) {
+            return name;
+        }
+        Map<String, String> snapshot = getRefs();
+        for (String prefix : new String[]{"", "refs/", "refs/tags/", "refs/heads/"}) {
+            String sha = snapshot.get(prefix + name);
+            if (sha != null) {
+                return sha;
+            }
+        }
+        AbbreviatedIds abbreviatedIds = repository.getAbbreviatedIds();
+        return abbreviatedIds.isAbbreviation(name) ? abbreviatedIds.resolve(name) : null;
+    }
+
+    private Map<String, String> getRefs() throws GitException {
+        if (refs != null) {
+            return refs;
+        }
+        Map<String, String> snapshot = new HashMap<>();
+        Path gitDir = repository.getGitDir();
+        Path refsDir = gitDir.resolve("refs");
+        try {
+            if (Files.isDirectory(refsDir)) {
+                try (var files = Files.walk(refsDir)) {
+                    for (Path ref : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                        String sha = Files.readString(ref).trim();
+                        if (repository.isObjectId(sha)) {
+                            snapshot.put(gitDir.relativize(ref).toString().replace('\\', '/'), sha);
+                        }
+                    }
+                }
+            }
+            String head = Files.readString(gitDir.resolve("HEAD")).trim();
+            headRef = "HEAD";
+            if (head.startsWith("ref: ")) {
+                headRef = head.substring("ref: ".length());
+                String sha = snapshot.get(headRef);
+                if (sha != null) {
+                    snapshot.put("HEAD", sha);
+                }
+            } else {
+                snapshot.put("HEAD", head);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new GitException("Error while reading refs", e);
+        }
+        refs = snapshot;
+        return refs;
+    }
+}
@@ -0,0 +1,104 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Cone-mode sparse checkout. git/info/sparse-checkout lists directories ("dir/sub" or "/dir/sub/"), the working tree
+// holds the top level files, everything below the listed directories and the files directly inside their parents.
+// Lines of the git cone format that only repeat these rules ("/*", "!/*/", "/dir/*" and negations) are skipped.
+public class SparseCheckout {
+    private final Set<String> directories = new TreeSet<>();
+    private final Set<String> parents = new HashSet<>();    // proper ancestors of listed directories, "" is the root
+
+    private SparseCheckout(Collection<String> coneDirectories) {
+        parents.add("");
+        for (String dir : coneDirectories) {
+            directories.add(dir);
+            Path parent = Path.of(dir).getParent();
+            while (parent != null) {
+                parents.add(parent.toString());
+                parent = parent.getParent();
+            }
+        }
+    }
+
+    public static Path getFile(@NotNull Repository repository) {
+        return repository.getGitDir().resolve("info").resolve("sparse-checkout");
+    }
+
+    // null if sparse checkout is disabled, then every file is checked out
+    public static @Nullable SparseCheckout load(@NotNull Repository repository) throws GitException {
+        Path file = getFile(repository);
+        if (!repository.getConfigBoolean("core", "sparsecheckout", false) || !Files.exists(file)) {
+            return null;
+        }
+        try {
+            return new SparseCheckout(parse(Files.readAllLines(file, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new GitException("Error while reading " + file, e);
+        }
+    }
+
+    public static List<String> parse(@NotNull List<String> lines) {
+        List<String> result = new ArrayList<>();
+        for (String line : lines) {
+            String dir = line.trim();
+            if (dir.isEmpty() || dir.startsWith("#") || dir.startsWith("!") || dir.endsWith("*")) {
+                continue;
+            }
+            while (dir.startsWith("/")) {
+                dir = dir.substring(1);
+            }
+            while (dir.endsWith("/")) {
+                dir = dir.substring(0, dir.length() - 1);
+            }
+            if (!dir.isEmpty()) {
+                result.add(dir.replace("/", File.separator));
+            }
+        }
+        return result;
+    }
+
+    public static void write(@NotNull Repository repository, @NotNull Collection<String> coneDirectories) throws GitException {
+        StringBuilder sb = new StringBuilder();
+        for (String dir : new TreeSet<>(parse(new ArrayList<>(coneDirectories)))) {
+            sb.append('/').append(dir.replace(File.separator, "/")).append("/\n");
+        }
+        Path file = getFile(repository);
+        try {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, sb.toString());
+        } catch (IOException e) {
+            throw new GitException("Error while writing " + file, e);
+        }
+    }
+
+    public Set<String> getDirectories() {
+        return Collections.unmodifiableSet(directories);
+    }
+
+    public boolean includesFile(@NotNull String path) {
+        Path parent = Path.of(path).getParent();
+        return includesDirectory(parent == null ? "" : parent.toString());
+    }
+
+    // whether the directory itself has to exist in the working tree
+    public boolean includesDirectory(@NotNull String dirPath) {
+        if (parents.contains(dirPath)) {
+            return true;
+        }
+        for (Path dir = Path.of(dirPath); dir != null; dir = dir.getParent()) {
+            if (directories.contains(dir.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
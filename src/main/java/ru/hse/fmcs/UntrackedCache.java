@@ -0,0 +1,161 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// Index extension remembering what listing every directory of the working tree produced last time.
+// A directory's mtime changes whenever an entry is added, removed or renamed in it, so while the mtime
+// (and the ignore rules) stay the same, status replays the remembered entries instead of reading the directory.
+public class UntrackedCache implements Serializable {
+    // directories modified this close to the scan may still change within the same mtime tick
+    private static final long RACY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    public static class Entry implements Serializable {
+        public final String name;
+        public final boolean directory;
+        public final boolean ignored;
+
+        public Entry(String entryName, boolean isDirectory, boolean isIgnored) {
+            name = entryName;
+            directory = isDirectory;
+            ignored = isIgnored;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Entry) {
+                Entry other = (Entry) o;
+                return name.equals(other.name) && directory == other.directory && ignored == other.ignored;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, directory, ignored);
+        }
+    }
+
+    public static class DirectoryState implements Serializable {
+        final long mtimeNanos;
+        final String ignoreFileStamp;
+        final List<Entry> entries;      // in the order they are visited
+
+        DirectoryState(long mtime, String ignoreStamp, List<Entry> dirEntries) {
+            mtimeNanos = mtime;
+            ignoreFileStamp = ignoreStamp;
+            entries = dirEntries;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof DirectoryState) {
+                DirectoryState other = (DirectoryState) o;
+                return mtimeNanos == other.mtimeNanos && ignoreFileStamp.equals(other.ignoreFileStamp)
+                        && entries.equals(other.entries);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mtimeNanos, ignoreFileStamp, entries);
+        }
+    }
+
+    private final TreeMap<String, DirectoryState> directories = new TreeMap<>();
+    private String excludeFileStamp = "";
+    private transient long scanStartNanos;
+    private transient boolean modified;
+
+    // must be called before every walk; drops everything if the global exclude file changed
+    public void startScan(Path excludeFile) {
+        scanStartNanos = toNanos(FileTime.fromMillis(System.currentTimeMillis()));
+        String stamp = stamp(excludeFile);
+        if (!stamp.equals(excludeFileStamp)) {
+            directories.clear();
+            excludeFileStamp = stamp;
+            modified = true;
+        }
+    }
+
+    public boolean isModified() {
+        return modified;
+    }
+
+    // returns remembered entries if the directory and its ignore file haven't changed since they were recorded
+    public @Nullable List<Entry> getValidEntries(String dirPath, FileTime mtime, String ignoreStamp) {
+        DirectoryState state = directories.get(dirPath);
+        if (state == null || state.mtimeNanos != toNanos(mtime) || !state.ignoreFileStamp.equals(ignoreStamp)) {
+            return null;
+        }
+        return state.entries;
+    }
+
+    public @Nullable String getIgnoreFileStamp(String dirPath) {
+        DirectoryState state = directories.get(dirPath);
+        return state == null ? null : state.ignoreFileStamp;
+    }
+
+    public void record(String dirPath, FileTime mtime, String ignoreStamp, List<Entry> entries, String separator) {
+        long mtimeNanos = toNanos(mtime);
+        DirectoryState previous = directories.get(dirPath);
+        if (previous != null) {
+            // subdirectories that disappeared take their cached subtrees with them
+            List<String> stillPresent = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (entry.directory) {
+                    stillPresent.add(entry.name);
+                }
+            }
+            for (Entry entry : previous.entries) {
+                if (entry.directory && !stillPresent.contains(entry.name)) {
+                    removeSubtree(dirPath.isEmpty() ? entry.name : dirPath + separator + entry.name, separator);
+                }
+            }
+        }
+        DirectoryState state;
+        if (mtimeNanos > scanStartNanos - RACY_INTERVAL_NANOS) {
+            // only the ignore file stamp is kept, the listing has to be read again next time
+            state = new DirectoryState(-1, ignoreStamp, List.of());
+        } else {
+            state = new DirectoryState(mtimeNanos, ignoreStamp, entries);
+        }
+        // the index is rewritten only if some directory's state actually changed
+        if (!state.equals(previous)) {
+            directories.put(dirPath, state);
+            modified = true;
+        }
+    }
+
+    private void removeSubtree(String dirPath, String separator) {
+        directories.remove(dirPath);
+        directories.subMap(dirPath + separator, true, dirPath + separator + Character.MAX_VALUE, true).clear();
+    }
+
+    // identifies the version of an ignore file without reading it
+    public static String stamp(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return toNanos(attributes.lastModifiedTime()) + ":" + attributes.size();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,305 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Walks the working tree in the order of full paths. Ignore rules are checked on the name before a child is
+// stat'ed: a name ignored both as a file and as a directory, with nothing tracked under it, is never stat'ed, and
+// ignored directories are never listed unless they contain tracked files. With an untracked cache, directories
+// that haven't changed since the previous walk aren't listed at all.
+public class WorkTreeWalker {
+    public static final String IGNORE_FILE = ".gitignore";
+
+    public interface FileVisitor {
+        // attributes are null for untracked files replayed from the untracked cache, those are never stat'ed
+        void visitFile(String relativePath, @Nullable BasicFileAttributes attributes) throws GitException;
+    }
+
+    // a listed child that is visited, with its attributes and whether ignore rules cover it
+    private static class Child {
+        final Path path;
+        final String name;
+        final BasicFileAttributes attributes;
+        final boolean ignored;
+
+        Child(Path childPath, BasicFileAttributes childAttributes, boolean isIgnored) {
+            path = childPath;
+            name = childPath.getFileName().toString();
+            attributes = childAttributes;
+            ignored = isIgnored;
+        }
+    }
+
+    private static class IgnoreLevel {
+        final int depth;        // number of path segments of the directory holding the ignore file
+        final Path file;
+        GitIgnore rules;        // loaded on the first match
+
+        IgnoreLevel(int depth, Path ignoreFile) {
+            this.depth = depth;
+            this.file = ignoreFile;
+        }
+
+        GitIgnore getRules() throws GitException {
+            if (rules == null) {
+                rules = GitIgnore.load(file);
+                if (rules == null) {
+                    rules = GitIgnore.parse(List.of());
+                }
+            }
+            return rules;
+        }
+    }
+
+    private final Repository repository;
+    private final GitIndex index;
+    private final UntrackedCache cache;
+    private final SparseCheckout sparse;
+    private final List<IgnoreLevel> ignoreStack = new ArrayList<>();
+    private final List<String> segments = new ArrayList<>();
+
+    public WorkTreeWalker(@NotNull Repository rep, @NotNull GitIndex gitIndex, @Nullable UntrackedCache untrackedCache) throws GitException {
+        repository = rep;
+        index = gitIndex;
+        cache = untrackedCache;
+        sparse = SparseCheckout.load(rep);
+    }
+
+    public void walk(@NotNull FileVisitor visitor) throws GitException {
+        Path exclude = resetToRoot();
+        if (cache != null) {
+            cache.startScan(exclude);
+        }
+        Path root = repository.getWorkingDirPath();
+        walkDirectory(root, "", readAttributes(root), false, false, visitor);
+    }
+
+    // walks only the given directory, ignore rules of its ancestors are applied as if the whole tree was walked
+    public void walkSubtree(@NotNull String relativeDir, @NotNull FileVisitor visitor) throws GitException {
+        if (sparse != null && !sparse.includesDirectory(relativeDir)) {
+            return;
+        }
+        boolean ignored = descendTo(relativeDir);
+        if (ignored && !index.hasTrackedUnder(relativeDir)) {
+            return;
+        }
+        Path dir = repository.getWorkingDirPath().resolve(relativeDir);
+        walkDirectory(dir, relativeDir, readAttributes(dir), ignored, true, visitor);
+    }
+
+    public boolean isIgnoredPath(@NotNull String relativePath, boolean isDirectory) throws GitException {
+        Path path = Path.of(relativePath);
+        Path parent = path.getParent();
+        boolean ignored = descendTo(parent == null ? "" : parent.toString());
+        segments.add(path.getFileName().toString());
+        return ignored || isIgnored(isDirectory);
+    }
+
+    public boolean isInSparseCone(@NotNull String relativePath) {
+        return sparse == null || sparse.includesFile(relativePath);
+    }
+
+    private Path resetToRoot() {
+        ignoreStack.clear();
+        segments.clear();
+        Path exclude = repository.getGitDir().resolve("info").resolve("exclude");
+        if (Files.exists(exclude)) {
+            ignoreStack.add(new IgnoreLevel(0, exclude));
+        }
+        return exclude;
+    }
+
+    // loads ignore rules of every directory on the way; returns whether the directory itself is ignored
+    private boolean descendTo(String relativeDir) throws GitException {
+        resetToRoot();
+        Path dir = repository.getWorkingDirPath();
+        pushIgnoreLevel(dir, Files.exists(dir.resolve(IGNORE_FILE)));
+        boolean ignored = false;
+        if (relativeDir.isEmpty()) {
+            return false;
+        }
+        for (Path name : Path.of(relativeDir)) {
+            segments.add(name.toString());
+            ignored = ignored || isIgnored(true);
+            dir = dir.resolve(name);
+            pushIgnoreLevel(dir, Files.exists(dir.resolve(IGNORE_FILE)));
+        }
+        return ignored;
+    }
+
+    public boolean isIgnored(boolean isDirectory) throws GitException {
+        for (int i = ignoreStack.size() - 1; i >= 0; i--) {
+            IgnoreLevel level = ignoreStack.get(i);
+            Boolean ignored = level.getRules().match(segments, level.depth, isDirectory);
+            if (ignored != null) {
+                return ignored;
+            }
+        }
+        return false;
+    }
+
+    private void walkDirectory(Path dir, String prefix, BasicFileAttributes dirAttributes, boolean insideIgnored,
+                               boolean ignoreRulesChanged, FileVisitor visitor) throws GitException {
+        String previousIgnoreStamp = cache == null ? null : cache.getIgnoreFileStamp(prefix);
+        if (previousIgnoreStamp != null && !ignoreRulesChanged) {
+            // an ignore file can't appear without changing the directory mtime, so it's stat'ed only if it was there
+            String ignoreStamp = previousIgnoreStamp.isEmpty() ? "" : UntrackedCache.stamp(dir.resolve(IGNORE_FILE));
+            List<UntrackedCache.Entry> entries = cache.getValidEntries(prefix, dirAttributes.lastModifiedTime(), ignoreStamp);
+            if (entries != null) {
+                boolean pushed = pushIgnoreLevel(dir, !ignoreStamp.isEmpty());
+                replayDirectory(dir, prefix, entries, visitor);
+                popIgnoreLevel(pushed);
+                return;
+            }
+        }
+
+        List<Path> children = new ArrayList<>();
+        boolean hasIgnoreFile = false;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                if (prefix.isEmpty() && child.equals(repository.getGitDir())) {
+                    continue;
+                }
+                children.add(child);
+                hasIgnoreFile |= child.getFileName().toString().equals(IGNORE_FILE);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error while listing directory " + dir, e);
+        }
+        String ignoreStamp = hasIgnoreFile ? UntrackedCache.stamp(dir.resolve(IGNORE_FILE)) : "";
+        // remembered listings below this directory are stale if its ignore rules changed
+        boolean childRulesChanged = ignoreRulesChanged || !ignoreStamp.equals(previousIgnoreStamp);
+        boolean pushed = pushIgnoreLevel(dir, hasIgnoreFile);
+        List<UntrackedCache.Entry> entries = new ArrayList<>();
+        List<Child> visited = new ArrayList<>();
+        for (Path child : children) {
+            String name = child.getFileName().toString();
+            String relativePath = childPath(prefix, name);
+            segments.add(name);
+            try {
+                boolean ignoredAsFile = insideIgnored || isIgnored(false);
+                boolean ignoredAsDirectory = ignoredAsFile ? insideIgnored || isIgnored(true) : false;
+                if (ignoredAsFile && ignoredAsDirectory && !index.isTracked(relativePath) && !index.hasTrackedUnder(relativePath)) {
+                    // ignored whatever it is, there's no need to know which; a replay stats it if it gets tracked
+                    entries.add(new UntrackedCache.Entry(name, false, true));
+                    continue;
+                }
+                BasicFileAttributes attributes = readAttributes(child);
+                boolean ignored = !attributes.isDirectory() ? ignoredAsFile
+                        : ignoredAsFile ? ignoredAsDirectory : insideIgnored || isIgnored(true);
+                visited.add(new Child(child, attributes, ignored));
+            } finally {
+                segments.remove(segments.size() - 1);
+            }
+        }
+        // a directory sorts as "name/", so files come out in the order of their full paths, as in the index
+        visited.sort(Comparator.comparing(child -> sortKey(child.name, child.attributes.isDirectory())));
+        for (Child child : visited) {
+            String relativePath = childPath(prefix, child.name);
+            segments.add(child.name);
+            try {
+                if (child.attributes.isDirectory()) {
+                    entries.add(new UntrackedCache.Entry(child.name, true, child.ignored));
+                    // ignored directory is skipped as a whole unless something inside it is tracked
+                    if ((!child.ignored || index.hasTrackedUnder(relativePath)) && isInSparseDirectory(relativePath)) {
+                        walkDirectory(child.path, relativePath, child.attributes, child.ignored, childRulesChanged, visitor);
+                    }
+                } else if (child.attributes.isRegularFile()) {
+                    entries.add(new UntrackedCache.Entry(child.name, false, child.ignored));
+                    if (!child.ignored || index.isTracked(relativePath)) {
+                        visitor.visitFile(relativePath, child.attributes);
+                    }
+                }
+            } finally {
+                segments.remove(segments.size() - 1);
+            }
+        }
+        // a replay visits the entries in this order, names that weren't stat'ed sort as files
+        entries.sort(Comparator.comparing(entry -> sortKey(entry.name, entry.directory)));
+        popIgnoreLevel(pushed);
+        if (cache != null) {
+            cache.record(prefix, dirAttributes.lastModifiedTime(), ignoreStamp, entries, File.separator);
+        }
+    }
+
+    // visits remembered entries of an unchanged directory, only tracked files and subdirectories are stat'ed
+    private void replayDirectory(Path dir, String prefix, List<UntrackedCache.Entry> entries, FileVisitor visitor) throws GitException {
+        for (UntrackedCache.Entry entry : entries) {
+            String relativePath = childPath(prefix, entry.name);
+            Path child = dir.resolve(entry.name);
+            segments.add(entry.name);
+            try {
+                // an ignored name recorded without being stat'ed may be a directory that has tracked files by now
+                if (entry.directory || (entry.ignored && index.hasTrackedUnder(relativePath))) {
+                    if ((!entry.ignored || index.hasTrackedUnder(relativePath)) && isInSparseDirectory(relativePath)) {
+                        BasicFileAttributes attributes = readAttributes(child);
+                        if (attributes.isDirectory()) {
+                            walkDirectory(child, relativePath, attributes, entry.ignored, false, visitor);
+                        }
+                    }
+                } else if (index.isTracked(relativePath)) {
+                    visitor.visitFile(relativePath, readAttributes(child));
+                } else if (!entry.ignored) {
+                    visitor.visitFile(relativePath, null);
+                }
+            } finally {
+                segments.remove(segments.size() - 1);
+            }
+        }
+    }
+
+    // directories outside the sparse-checkout cone are walked only for entries still in the working tree
+    private boolean isInSparseDirectory(String relativePath) {
+        return sparse == null || sparse.includesDirectory(relativePath) || index.hasWorkTreeEntriesUnder(relativePath);
+    }
+
+    private boolean pushIgnoreLevel(Path dir, boolean hasIgnoreFile) {
+        if (hasIgnoreFile) {
+            ignoreStack.add(new IgnoreLevel(segments.size(), dir.resolve(IGNORE_FILE)));
+        }
+        return hasIgnoreFile;
+    }
+
+    private void popIgnoreLevel(boolean pushed) {
+        if (pushed) {
+            ignoreStack.remove(ignoreStack.size() - 1);
+        }
+    }
+
+    private static String sortKey(String name, boolean directory) {
+        return directory ? name + File.separator : name;
+    }
+
+    private static String childPath(String prefix, String name) {
+        return prefix.isEmpty() ? name : prefix + File.separator + name;
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws GitException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isSymbolicLink()) {
+                // symlinks to files are treated as files, symlinks to directories aren't followed
+                try {
+                    BasicFileAttributes target = Files.readAttributes(path, BasicFileAttributes.class);
+                    return target.isRegularFile() ? target : attributes;
+                } catch (IOException e) {
+                    return attributes;  // dangling symlink
+                }
+            }
+            return attributes;
+        } catch (IOException e) {
+            throw new GitException("Error while reading attributes of " + path, e);
+        }
+    }
+}
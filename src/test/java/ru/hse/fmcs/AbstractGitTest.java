@@ -1,18 +1,28 @@
 package ru.hse.fmcs;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.PrintStream;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.TimeZone;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.ini4j.Ini;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.jupiter.api.BeforeEach;
@@ -44,6 +54,7 @@ public abstract class AbstractGitTest {
     private ByteArrayOutputStream byteArrayOutputStream;
     private final File projectDir = new File("./playground/");
     private final GitCli cli = createCli(projectDir.getAbsolutePath());
+    private @Nullable FileChannel fsMonitorLock;    // held while the test plays the fsmonitor daemon
 
     // ------------------------------------ Различные утильные функции -----------------------------------------
 
@@ -105,6 +116,95 @@ public abstract class AbstractGitTest {
         FileUtils.writeStringToFile(file, content, Charset.defaultCharset());
     }
 
+    // git config section.key value
+    protected void setConfig(@NotNull String section, @NotNull String key, @NotNull String value) throws Exception {
+        output.println(DASHES);
+        output.println("Set config '" + section + "." + key + "' to '" + value + "'");
+        Ini config = new Ini(new File(projectDir, "git/config"));
+        config.put(section, key, value);
+        config.store();
+    }
+
+    // git tag -a name revision -m name
+    protected void createAnnotatedTag(@NotNull String name, @NotNull String revision) throws Exception {
+        output.println(DASHES);
+        output.println("Create annotated tag '" + name + "' for " + revision);
+        Repository repository = Repository.findRepository(projectDir.getAbsolutePath());
+        String payload = "object " + repository.getRevisions().resolveCommit(revision) + "\ntype commit\ntag " + name
+                + "\ntagger A <a@x> 1700000000 +0000\n\n" + name + "\n";
+        String sha = GitObject.writeObject(new GitTagObject(repository, payload.getBytes(StandardCharsets.UTF_8)));
+        repository.flushObjectWrites();
+        repository.updateRef("refs/tags/" + name, sha, "tag: " + name);
+    }
+
+    // touch -r from to
+    protected void copyModifiedTime(@NotNull String from, @NotNull String to) throws Exception {
+        output.println(DASHES);
+        output.println("Set modification time of '" + to + "' to the one of '" + from + "'");
+        Files.setLastModifiedTime(projectDir.toPath().resolve(to), Files.getLastModifiedTime(projectDir.toPath().resolve(from)));
+    }
+
+    // touch -d instant path
+    protected void setModifiedTime(@NotNull String path, @NotNull String instant) throws Exception {
+        output.println(DASHES);
+        output.println("Set modification time of '" + path + "' to " + instant);
+        Files.setLastModifiedTime(projectDir.toPath().resolve(path), FileTime.from(Instant.parse(instant)));
+    }
+
+    // stat -c %y path
+    protected void showModifiedTime(@NotNull String path) throws Exception {
+        output.println(DASHES);
+        output.println("Modification time of '" + path + "': " + Files.getLastModifiedTime(projectDir.toPath().resolve(path)));
+    }
+
+    // ls git/prefix*, the prefix may start with subdirectories
+    protected @NotNull List<String> gitFiles(@NotNull String prefix) {
+        File path = new File(projectDir, "git/" + prefix);
+        String[] names = path.getParentFile().list((dir, name) -> name.startsWith(path.getName()));
+        List<String> files = names == null ? List.of() : Arrays.asList(names);
+        Collections.sort(files);
+        return files;
+    }
+
+    // prints whether git/prefix* files are still the given ones, their names aren't stable between runs
+    protected void checkGitFilesKept(@NotNull String prefix, @NotNull List<String> files) {
+        output.println(DASHES);
+        output.println("Files 'git/" + prefix + "*' " + (gitFiles(prefix).equals(files) ? "kept" : "replaced"));
+    }
+
+    protected void showGitFiles(@NotNull String prefix) {
+        output.println(DASHES);
+        List<String> files = gitFiles(prefix);
+        output.println("Files 'git/" + prefix + "*': " + (files.isEmpty() ? "none" : String.join(" ", files)));
+    }
+
+    // a stand-in for git fsmonitor --daemon that journals only the changes the test reports
+    protected void startFsMonitor() throws Exception {
+        output.println(DASHES);
+        output.println("Start fsmonitor");
+        Path dir = projectDir.toPath().resolve("git/fsmonitor");
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve("instance"), "test");
+        Files.writeString(dir.resolve("journal"), "");
+        fsMonitorLock = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        fsMonitorLock.lock();
+    }
+
+    protected void reportToFsMonitor(@NotNull String path) throws Exception {
+        output.println(DASHES);
+        output.println("Report '" + path + "' to fsmonitor");
+        Files.writeString(projectDir.toPath().resolve("git/fsmonitor/journal"), path + "\n", StandardOpenOption.APPEND);
+    }
+
+    protected void stopFsMonitor() throws Exception {
+        output.println(DASHES);
+        output.println("Stop fsmonitor");
+        if (fsMonitorLock != null) {
+            fsMonitorLock.close();
+            fsMonitorLock = null;
+        }
+    }
+
     // rm fileName
     protected void deleteFile(@NotNull String fileName) {
         output.println(DASHES);
@@ -126,6 +226,11 @@ public abstract class AbstractGitTest {
         runCommand(GitConstants.STATUS);
     }
 
+    // git status --porcelain
+    protected void statusPorcelain() throws GitException {
+        runCommand(GitConstants.STATUS, "--porcelain");
+    }
+
     // git add files
     protected void add(String... files) throws GitException {
         runCommand(GitConstants.ADD, files);
@@ -146,6 +251,11 @@ public abstract class AbstractGitTest {
         runRelativeCommand(GitConstants.RESET, to);
     }
 
+    // git reset revision
+    protected void reset(@NotNull String revision) throws GitException {
+        runCommand(GitConstants.RESET, revision);
+    }
+
     // git checkout files
     protected void checkoutFiles(String... args) throws GitException {
         runCommand(GitConstants.CHECKOUT, args);
@@ -156,14 +266,24 @@ public abstract class AbstractGitTest {
         runRelativeCommand(GitConstants.CHECKOUT, to);
     }
 
+    // git checkout revision
+    protected void checkoutRevision(@NotNull String revision) throws GitException {
+        runCommand(GitConstants.CHECKOUT, revision);
+    }
+
     // git checkout master
     protected void checkoutMaster() throws GitException {
         checkoutBranch(GitConstants.MASTER);
     }
 
-    // git log
-    protected void log() throws GitException {
-        runCommand(GitConstants.LOG);
+    // git log args
+    protected void log(String... args) throws GitException {
+        runCommand(GitConstants.LOG, args);
+    }
+
+    // git annotate args
+    protected void annotate(String... args) throws GitException {
+        runCommand(GitConstants.ANNOTATE, args);
     }
 
     // git branch-create branch
@@ -191,6 +311,67 @@ public abstract class AbstractGitTest {
         runCommand(GitConstants.MERGE, branch);
     }
 
+    // git cat-file option object
+    protected void catFile(@NotNull String option, @NotNull String object) throws GitException {
+        runCommand(GitConstants.CAT_FILE, option, object);
+    }
+
+    // git reflog args
+    protected void reflog(String... args) throws GitException {
+        runCommand(GitConstants.REFLOG, args);
+    }
+
+    // git fast-import < stream
+    protected void fastImport(@NotNull String stream) throws GitException {
+        System.setIn(new ByteArrayInputStream(stream.getBytes(StandardCharsets.UTF_8)));
+        runCommand(GitConstants.FAST_IMPORT);
+    }
+
+    // git fast-export args
+    protected void fastExport(String... args) throws GitException {
+        runCommand(GitConstants.FAST_EXPORT, args);
+    }
+
+    // git sparse-checkout args
+    protected void sparseCheckout(String... args) throws GitException {
+        runCommand(GitConstants.SPARSE_CHECKOUT, args);
+    }
+
+    // git gc args
+    protected void gc(String... args) throws GitException {
+        runCommand(GitConstants.GC, args);
+    }
+
+    // git prune args
+    protected void prune(String... args) throws GitException {
+        runCommand(GitConstants.PRUNE, args);
+    }
+
+    // git count-objects args
+    protected void countObjects(String... args) throws GitException {
+        runCommand(GitConstants.COUNT_OBJECTS, args);
+    }
+
+    // git fsmonitor
+    protected void runFsMonitor() throws GitException {
+        runCommand(GitConstants.FSMONITOR);
+    }
+
+    // git fsck args
+    protected void fsck(String... args) throws GitException {
+        runCommand(GitConstants.FSCK, args);
+    }
+
+    // git init
+    protected void init() throws GitException {
+        runCommand(GitConstants.INIT);
+    }
+
+    // git bundle args
+    protected void bundle(String... args) throws GitException {
+        runCommand(GitConstants.BUNDLE, args);
+    }
+
     /*
      * echo content > fileName
      * git add fileName
@@ -219,7 +400,10 @@ public abstract class AbstractGitTest {
     // --------------------------------------------------------------------------------------------
 
     @BeforeEach
-    public void setUp() throws GitException {
+    public void setUp() throws Exception {
+        if (fsMonitorLock != null) {
+            fsMonitorLock.close();
+        }
         cleanPlayground();
         switch (testMode()) {
             case SYSTEM_OUT:
@@ -231,6 +415,8 @@ public abstract class AbstractGitTest {
                 break;
         }
         cli.setOutputStream(output);
+        // log prints dates in the local time zone, fast-imported commits print the same everywhere in UTC
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
         runCommand(GitConstants.INIT);
     }
 }
@@ -3,6 +3,8 @@ package ru.hse.fmcs;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+
 /*
  * Т.к. в коммитах при каждом новом запуске получаются разные хеши и
  *   разное время отправки, то в expected логах на их местах используются
@@ -162,5 +164,616 @@ public class GitTest extends AbstractGitTest {
 
         check("branchRemove.txt");
     }
-}
 
+    @Test
+    public void testCatFile() throws Exception {
+        createFileAndCommit("file.txt", "aaa");
+        catFile("-t", "master");
+        catFile("-t", "HEAD~0");
+        catFile("-s", "7c4a013e52c76442ab80ee5572399a30373600a2");
+        catFile("-p", "7c4a013e52c76442ab80ee5572399a30373600a2");
+
+        check("catFile.txt");
+    }
+
+    @Test
+    public void testStatusPorcelain() throws Exception {
+        createFile("c.txt", "c");
+        createFile("dir/a.txt", "a");
+        createFile("dir.txt", "d");
+        createFile("gone.txt", "g");
+        add("c.txt", "dir/a.txt", "dir.txt", "gone.txt");
+        commit("First commit");
+
+        createFile("c.txt", "changed");
+        deleteFile("gone.txt");
+        createFile("dir/b.txt", "b");
+        createFile("new.txt", "new");
+        add("new.txt");
+        createFile("dir.txt", "staged");
+        add("dir.txt");
+        createFile("dir.txt", "changed again");
+        statusPorcelain();
+
+        check("statusPorcelain.txt");
+    }
+
+    @Test
+    public void testGitIgnore() throws Exception {
+        createFile("build/tracked.txt", "t");
+        createFile("tmp/tracked.txt", "t");
+        add("build/tracked.txt", "tmp/tracked.txt");
+        commit("tracked");
+        createFile(".gitignore", "build/\n*.log\n!keep.log\ntmp\n");
+        createFile("a.txt", "a");
+        createFile("debug.log", "d");
+        createFile("keep.log", "k");
+        createFile("build/out.bin", "o");
+        createFile("tmp/scratch.txt", "s");
+        createFile("tmp.txt", "t");
+        createFile("sub/tmp", "t");
+        createFile("sub/b.log", "b");
+        createFile("cache.log/x.txt", "x");
+        createFile("tracked.log", "t");
+        add("tracked.log");
+        // files tracked under ignored directories are still compared
+        createFile("build/tracked.txt", "changed");
+        createFile("tmp/tracked.txt", "changed");
+        status();
+        statusPorcelain();
+        setConfig("core", "untrackedcache", "true");
+        // the listing of a directory modified within the last moments isn't remembered
+        setModifiedTime(".", "2020-01-01T00:00:00Z");
+        status();
+        // listings remembered by the previous status are replayed, an ignored name gets looked into once it's tracked
+        createFile("tracked.log", "changed");
+        add("cache.log/x.txt");
+        createFile("cache.log/x.txt", "changed");
+        status();
+        // nothing changed since, so the index isn't written again
+        setModifiedTime("git/index", "2020-01-01T00:00:00Z");
+        status();
+        showModifiedTime("git/index");
+
+        check("gitIgnore.txt");
+    }
+
+    @Test
+    public void testSplitIndexFlags() throws Exception {
+        setConfig("core", "splitindex", "true");
+        setConfig("core", "untrackedcache", "true");
+        createFile("a.txt", "a");
+        createFile("b.txt", "b");
+        createFile("dir/c.txt", "c");
+        createFile("dir/d.txt", "d");
+        createFile("other/e.txt", "e");
+        add("a.txt", "b.txt", "dir/c.txt", "dir/d.txt", "other/e.txt");
+        commit("files");
+        sparseCheckout("set", "dir");
+        List<String> shared = gitFiles("sharedindex.");
+        // flags refreshed by status are written with the delta, the shared entries stay as they are
+        status();
+        checkGitFilesKept("sharedindex.", shared);
+        createFile("dir/c.txt", "changed");
+        statusPorcelain();
+        checkGitFilesKept("sharedindex.", shared);
+        sparseCheckout("disable");
+        fileContent("other/e.txt");
+        status();
+
+        check("splitIndexFlags.txt");
+    }
+
+    @Test
+    public void testObjectFormat() throws Exception {
+        setConfig("core", "objectformat", "sha256");
+        createFile("a.txt", "a");
+        createFile("dir/b.txt", "b");
+        add("a.txt", "dir/b.txt");
+        commit("sha256");
+        catFile("-p", "HEAD:");
+        catFile("-p", "HEAD:dir");
+        catFile("-p", "HEAD:a.txt");
+        createFile("a.txt", "changed");
+        status();
+
+        check("objectFormat.txt");
+    }
+
+    @Test
+    public void testGc() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 5\nfirst\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline a.txt\ndata 6\nsecond\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000200 +0000\ndata 6\nthird\n"
+                + "M 100644 inline dir/b.txt\ndata 1\nb\n\n");
+        reset("master");
+        createFile("tmp.txt", "staged, then removed");
+        add("tmp.txt");
+        rm("tmp.txt");
+        deleteFile("tmp.txt");
+        countObjects();
+        // the removed blob isn't reachable, but it's too new to be pruned
+        prune();
+        gc("--prune=now");
+        countObjects();
+        countObjects("--reachable");
+        catFile("-p", "HEAD:a.txt");
+        catFile("-p", "HEAD~2:a.txt");
+        log("--", "dir");
+        status();
+
+        check("gc.txt");
+    }
+
+    @Test
+    public void testGcAnnotatedTag() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 1\na\n\n");
+        fastImport("commit refs/heads/side\ncommitter A <a@x> 1700000100 +0000\ndata 5\nside\n"
+                + "M 100644 inline c.txt\ndata 4\nside\n\n");
+        // the side commit is kept only by the tag
+        createAnnotatedTag("v1", "side");
+        deleteFile("git/refs/heads/side");
+        deleteFile("git/logs/refs/heads/side");
+        gc("--prune=now");
+        countObjects();
+        catFile("-p", "v1:c.txt");
+        log("v1");
+        // once a bitmap exists, reachability walks peel the tag as well
+        fastImport("commit refs/heads/other\ncommitter A <a@x> 1700000200 +0000\ndata 6\nother\n"
+                + "M 100644 inline d.txt\ndata 5\nother\n\n");
+        createAnnotatedTag("v2", "other");
+        deleteFile("git/refs/heads/other");
+        deleteFile("git/logs/refs/heads/other");
+        countObjects("--reachable");
+        gc("--prune=now");
+        countObjects("--reachable");
+        catFile("-p", "v2:d.txt");
+
+        check("gcAnnotatedTag.txt");
+    }
+
+    @Test
+    public void testCommitObject() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 1\na\nM 100644 inline dir/sub/b.txt\ndata 1\nb\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline dir/sub/b.txt\ndata 7\nchanged\nM 100644 inline other/c.txt\ndata 1\nc\n\n");
+        // a commit holds ids of its tree and parents, not a copy of the index
+        catFile("-p", "master~1");
+        catFile("-p", "master");
+        reset("master");
+        fileContent("dir/sub/b.txt");
+        status();
+        checkoutRevision("master~1");
+        fileContent("dir/sub/b.txt");
+        checkoutMaster();
+        fileContent("other/c.txt");
+        status();
+
+        check("commitObject.txt");
+    }
+
+    @Test
+    public void testStagedChanges() throws Exception {
+        createFile("a.txt", "a");
+        createFile("dir/b.txt", "b");
+        createFile("dir/sub/c.txt", "c");
+        createFile("same/d.txt", "d");
+        createFile("same/sub/e.txt", "e");
+        add("a.txt", "dir/b.txt", "dir/sub/c.txt", "same/d.txt", "same/sub/e.txt");
+        commit("first");
+        // index and HEAD are walked together, unchanged directories are skipped by their tree ids
+        createFile("dir/sub/c.txt", "changed");
+        createFile("dir/sub/new.txt", "new");
+        createFile("dir0", "after dir");
+        add("dir/sub/c.txt", "dir/sub/new.txt", "dir0");
+        rm("dir/b.txt");
+        deleteFile("dir/b.txt");
+        status();
+        statusPorcelain();
+        commit("second");
+        status();
+
+        check("stagedChanges.txt");
+    }
+
+    @Test
+    public void testFsMonitor() throws Exception {
+        createFile("a.txt", "a");
+        createFile("dir/b.txt", "b");
+        add("a.txt", "dir/b.txt");
+        commit("first");
+        setConfig("core", "fsmonitor", "true");
+        runFsMonitor();
+        startFsMonitor();
+        runFsMonitor();
+        // the first status walks everything and remembers the journal position
+        status();
+        // changes the monitor didn't report aren't looked at
+        createFile("a.txt", "changed");
+        status();
+        reportToFsMonitor("a.txt");
+        createFile("dir/new.txt", "new");
+        reportToFsMonitor("dir/new.txt");
+        status();
+        deleteFile("dir/b.txt");
+        reportToFsMonitor("dir/b.txt");
+        statusPorcelain();
+        // lost events make status walk the whole tree again
+        createFile("c.txt", "c");
+        reportToFsMonitor("*");
+        status();
+        stopFsMonitor();
+        runFsMonitor();
+
+        check("fsMonitor.txt");
+    }
+
+    @Test
+    public void testSparseCheckout() throws Exception {
+        createFile("top.txt", "top");
+        createFile("app/main.txt", "main");
+        createFile("app/ui/view.txt", "view");
+        createFile("lib/util.txt", "util");
+        createFile("docs/readme.txt", "readme");
+        add("top.txt", "app/main.txt", "app/ui/view.txt", "lib/util.txt", "docs/readme.txt");
+        commit("first");
+        // top level files and everything under the cone directories stay
+        sparseCheckout("set", "app/ui");
+        sparseCheckout("list");
+        fileContent("app/ui/view.txt");
+        fileContent("lib/util.txt");
+        status();
+        // a modified file outside the cone is left alone
+        createFile("app/main.txt", "edited");
+        sparseCheckout("set", "lib");
+        fileContent("app/main.txt");
+        fileContent("lib/util.txt");
+        fileContent("app/ui/view.txt");
+        createFile("lib/util.txt", "changed");
+        status();
+        sparseCheckout("disable");
+        fileContent("docs/readme.txt");
+        status();
+
+        check("sparseCheckout.txt");
+    }
+
+    @Test
+    public void testLooseObjectWrites() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 1\na\n\n");
+        reset("master");
+        // objects are written to temporary files and renamed into place, batch syncs them once per command
+        setConfig("core", "fsyncobjects", "batch");
+        createFile("b.txt", "b");
+        createFile("dir/c.txt", "c");
+        add("b.txt", "dir/c.txt");
+        setConfig("core", "fsyncobjects", "true");
+        createFile("d.txt", "d");
+        add("d.txt");
+        setConfig("core", "fsyncobjects", "sometimes");
+        createFile("e.txt", "e");
+        add("e.txt");
+        showGitFiles("objects/tmp_");
+        fsck("--no-progress");
+        // a temporary file left by a crashed writer is deleted once it's old enough
+        createFile("git/objects/tmp_obj_crashed", "partial");
+        setModifiedTime("git/objects/tmp_obj_crashed", "2020-01-01T00:00:00Z");
+        showGitFiles("objects/tmp_");
+        setConfig("core", "fsyncobjects", "false");
+        prune();
+        showGitFiles("objects/tmp_");
+        statusPorcelain();
+
+        check("looseObjectWrites.txt");
+    }
+
+    @Test
+    public void testKnownObjects() throws Exception {
+        createFile("a.txt", "same");
+        createFile("b.txt", "same");
+        createFile("dir/c.txt", "same");
+        add("a.txt", "b.txt", "dir/c.txt");
+        countObjects();
+        // objects already in the store aren't written again
+        createFile("other/e.txt", "same");
+        add("other/e.txt");
+        countObjects();
+        gc("--prune=now");
+        countObjects();
+        // packed objects are known as well, so nothing new is written
+        createFile("d.txt", "same");
+        add("d.txt");
+        countObjects();
+        statusPorcelain();
+        fsck("--no-progress");
+
+        check("knownObjects.txt");
+    }
+
+    @Test
+    public void testReachabilityBitmaps() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 1\na\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline dir/b.txt\ndata 1\nb\n\n");
+        countObjects("--reachable");
+        gc();
+        // the ref tip has a bitmap, nothing is walked
+        countObjects("--reachable");
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000200 +0000\ndata 6\nthird\nfrom master\n"
+                + "M 100644 inline dir/c.txt\ndata 1\nc\n\n");
+        // only the new commit and its new objects are read
+        countObjects("--reachable");
+        countObjects();
+
+        check("reachabilityBitmaps.txt");
+    }
+
+    @Test
+    public void testFsck() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 1\na\n\n");
+        reset("master");
+        createFile("b.txt", "b");
+        add("b.txt");
+        // a commit reachable only through an annotated tag isn't dangling
+        fastImport("commit refs/heads/side\ncommitter A <a@x> 1700000100 +0000\ndata 5\nside\n"
+                + "M 100644 inline c.txt\ndata 1\nc\n\n");
+        createAnnotatedTag("v1", "side");
+        deleteFile("git/refs/heads/side");
+        deleteFile("git/logs/refs/heads/side");
+        fsck("--no-progress");
+        // a loose object whose content doesn't match its id, and a branch pointing to a missing commit
+        createFile("git/objects/63/d8dbd40c23542e740659a7168a0ce3138ea748", "garbage");
+        createFile("git/refs/heads/broken", "0123456789012345678901234567890123456789");
+        fsck("--no-progress", "--no-dangling");
+        fsck("--no-progress", "--threads=1", "--no-dangling");
+
+        check("fsck.txt");
+    }
+
+    @Test
+    public void testRefLog() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 5\nfirst\n\n");
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\nfrom master\n"
+                + "M 100644 inline a.txt\ndata 6\nsecond\n\n");
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000200 +0000\ndata 6\nthird\nfrom master\n"
+                + "M 100644 inline a.txt\ndata 5\nthird\n\n");
+        reset("master");
+        // master@{N} is where master was N moves ago
+        catFile("-p", "master@{1}:a.txt");
+        reset("master@{2}");
+        fileContent("a.txt");
+        reflog("master");
+        reflog("-n", "2");
+        // the reset is undone through the log
+        reset("master@{1}");
+        fileContent("a.txt");
+        catFile("-p", "master@{9}");
+        reflog("refs/heads/master");
+
+        check("refLog.txt");
+    }
+
+    @Test
+    public void testAnnotate() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 19\none\ntwo\nthree\nfour\n\n"
+                + "commit refs/heads/master\ncommitter B <b@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline b.txt\ndata 4\nnew\n\n"
+                + "commit refs/heads/master\ncommitter C <c@x> 1700000200 +0000\ndata 6\nthird\n"
+                + "M 100644 inline a.txt\ndata 24\none\nTWO\nthree\nfour\nfive\n\n"
+                + "commit refs/heads/master\ncommitter D <d@x> 1700000300 +0000\ndata 7\nfourth\n"
+                + "M 100644 inline b.txt\ndata 12\nnew\nchanged\n\n");
+        reset("master");
+        annotate("a.txt");
+        // gc computes the changed-path filters, so commits that only touched b.txt are skipped by them
+        gc();
+        annotate("a.txt");
+        annotate("b.txt");
+        annotate("--rev=master~2", "a.txt");
+        annotate("--rev=master~3", "b.txt");
+
+        check("annotate.txt");
+    }
+
+    @Test
+    public void testTreeOrder() throws Exception {
+        createFile("a.txt", "1");
+        createFile("a/b.txt", "2");
+        createFile("a0", "3");
+        createFile("a-b", "4");
+        add("a.txt", "a/b.txt", "a0", "a-b");
+        commit("tree");
+        // a directory sorts as if its name ended with '/'
+        catFile("-p", "HEAD:");
+        catFile("-p", "HEAD:a/b.txt");
+        // a file replaced by a directory moves to the directory's place
+        rm("a0");
+        deleteFile("a0");
+        createFile("a0/c.txt", "5");
+        add("a0/c.txt");
+        commit("file to directory");
+        catFile("-p", "HEAD:");
+        status();
+
+        check("treeOrder.txt");
+    }
+
+    @Test
+    public void testEmptyObjects() throws Exception {
+        createFile("e", "");
+        createFile("f", "hi");
+        add("e", "f");
+        commit("files");
+        rm("e", "f");
+        deleteFile("e");
+        deleteFile("f");
+        commit("nothing");
+        // the empty tree and the empty blob have different ids, as their headers differ
+        catFile("-t", "e69de29bb2d1d6434b8b29ae775ad8c2e48c5391");
+        catFile("-t", "4b825dc642cb6eb9a060e54bf8d69288fbee4904");
+        checkoutRevision(1);
+        fileContent("f");
+        checkoutMaster();
+
+        check("emptyObjects.txt");
+    }
+
+    @Test
+    public void testRacyTimestamps() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        // the index was written in the same timestamp tick as the file, then the file changed within that tick
+        copyModifiedTime("a.txt", "git/index");
+        createFile("a.txt", "bbb");
+        copyModifiedTime("git/index", "a.txt");
+        status();
+
+        check("racyTimestamps.txt");
+    }
+
+    @Test
+    public void testFastImport() throws Exception {
+        fastImport("blob\nmark :1\ndata 4\naaa\n\n"
+                + "commit refs/heads/master\nmark :2\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 :1 file.txt\nM 100644 inline \"dir/q\\\"uoted\\n\"\ndata 3\nbb\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\nD file.txt\n\n");
+        catFile("-p", "master");
+        catFile("-p", "master~1:file.txt");
+        catFile("-p", "master:dir");
+        reflog("master");
+
+        // bad ref names and ids of missing objects are rejected before anything is written
+        fastImport("commit ../../escaped\ncommitter A <a@x> 1700000000 +0000\ndata 0\n\n");
+        fastImport("reset refs/heads/x.lock\nfrom :1\n");
+        fastImport("reset git/master\n");
+        fastImport("commit refs/heads/other\ncommitter A <a@x> 1700000000 +0000\ndata 0\n"
+                + "M 100644 0123456789012345678901234567890123456789 missing.txt\n\n");
+        reflog("refs/heads/other");
+
+        check("fastImport.txt");
+    }
+
+    @Test
+    public void testFastExport() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline file.txt\ndata 4\naaa\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline \"dir/new\\nline\"\ndata 4\nbbb\n"
+                + "M 100644 inline \"q\\\"uote\\\\back\"\ndata 4\nccc\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000200 +0000\ndata 6\nthird\nD file.txt\n\n");
+        fastExport("master");
+        // the excluded history is referred to by id
+        fastExport("master~1..master");
+        fastExport("^master", "master");
+
+        check("fastExport.txt");
+    }
+
+    @Test
+    public void testLogAbbrev() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline file.txt\ndata 4\naaa\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline file.txt\ndata 4\nbbb\n\n");
+        log("--abbrev=10");
+        // without "=" the next argument is a revision, not the length
+        log("--abbrev", "master@{0}");
+        log("--abbrev", "master~1");
+
+        check("logAbbrev.txt");
+    }
+
+    @Test
+    public void testAnnotatedTag() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline file.txt\ndata 4\naaa\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline file.txt\ndata 4\nbbb\n\n");
+        createAnnotatedTag("v1", "master~1");
+        catFile("-t", "v1");
+        // commands that need a commit follow the tag to it
+        checkoutRevision("v1");
+        fileContent("file.txt");
+        checkoutMaster();
+        reset("v1");
+        fileContent("file.txt");
+        log("v1");
+
+        check("annotatedTag.txt");
+    }
+
+    @Test
+    public void testLogPaths() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline a.txt\ndata 2\na\nM 100644 inline dir/b.txt\ndata 2\nb\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline a.txt\ndata 3\naa\n\n"
+                + "commit refs/heads/master\ncommitter A <a@x> 1700000200 +0000\ndata 6\nthird\n"
+                + "M 100644 inline dir/c.txt\ndata 2\nc\n\n");
+        log("--abbrev", "--", "a.txt");
+        log("--abbrev", "master~1", "--", "dir");
+        log("--abbrev", "--", "a.txt", "dir/c.txt");
+        // without "--" a second argument isn't silently dropped
+        log("master", "a.txt");
+
+        check("logPaths.txt");
+    }
+
+    @Test
+    public void testBundle() throws Exception {
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000000 +0000\ndata 6\nfirst\n"
+                + "M 100644 inline file.txt\ndata 4\naaa\n\n");
+        bundle("create", "full.bundle", "master");
+        fastImport("commit refs/heads/master\ncommitter A <a@x> 1700000100 +0000\ndata 7\nsecond\n"
+                + "M 100644 inline dir/new.txt\ndata 4\nbbb\n\n");
+        bundle("create", "incremental.bundle", "master~1..master");
+
+        // a new repository without the history
+        deleteFile("git");
+        init();
+        bundle("unbundle", "incremental.bundle");
+        bundle("unbundle", "full.bundle");
+        fileContent("file.txt");
+        status();
+        // the checked-out branch isn't moved under the working tree
+        bundle("unbundle", "incremental.bundle");
+        createFile("escaping.bundle", "# v2 git bundle\n0123456789012345678901234567890123456789 refs/../../x\n\n");
+        bundle("unbundle", "escaping.bundle");
+
+        check("bundle.txt");
+    }
+
+    @Test
+    public void testChunkedFiles() throws Exception {
+        // a file starting like a chunk manifest is an ordinary file
+        createFileAndCommit("doc.txt", "vcs chunked file\nsize 3\n");
+        createFileAndCommit("other.txt", "x");
+        checkoutRevision(1);
+        checkoutMaster();
+        fileContent("doc.txt");
+
+        setConfig("largefiles", "threshold", "300");
+        setConfig("largefiles", "chunksize", "256");
+        createFileAndCommit("big.txt", "0123456789abcdef".repeat(25));
+        createFile("big.txt", "0123456789abcdef".repeat(12) + "edit" + "0123456789abcdef".repeat(13));
+        add("big.txt");
+        commit("big.txt");
+        createFileAndCommit("fake.txt", "vcs chunked file\nsize 3\n");
+        checkoutRevision(2);
+        status();
+        checkoutMaster();
+        fileContent("doc.txt");
+        fileContent("fake.txt");
+
+        status();
+
+        check("chunkedFiles.txt");
+    }
+}